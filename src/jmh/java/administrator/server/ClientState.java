@@ -0,0 +1,47 @@
+package administrator.server;
+
+import beans.HeartRateMeasurements;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * The requests of a single benchmark thread, which plays a random player of the shared server state at every call,
+ * so that the threads spread over the players as real clients do.
+ */
+@State(Scope.Thread)
+public class ClientState {
+    private final Random random = new Random();
+
+    /**
+     * @return the id of one of the players of the history.
+     */
+    int randomPlayer(ServerState state) {
+        return random.nextInt(state.players);
+    }
+
+    /**
+     * @return a batch of a random player, timestamped now.
+     */
+    HeartRateMeasurements nextBatch(ServerState state) {
+        return new HeartRateMeasurements(randomPlayer(state), System.currentTimeMillis(), ServerState.randomValues(random));
+    }
+
+    /**
+     * @return a number of last values between 1 and the size of the history.
+     */
+    int randomLastN(ServerState state) {
+        return 1 + random.nextInt(Math.max(1, state.history));
+    }
+
+    /**
+     * @return a random range inside the history, as {t1, t2}.
+     */
+    long[] randomRange(ServerState state) {
+        long span = state.lastTimestamp - state.firstTimestamp + 1;
+        long t1 = state.firstTimestamp + (long) (random.nextDouble() * span);
+        long t2 = t1 + (long) (random.nextDouble() * (state.lastTimestamp - t1 + 1));
+        return new long[]{t1, t2};
+    }
+}
@@ -0,0 +1,54 @@
+package administrator.server;
+
+import beans.AddPlayerResponse;
+import beans.HeartRateMeasurements;
+import beans.IngestResult;
+import beans.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The write paths of the server: ingestion of single batches, as sent by the players, and of many batches at once,
+ * as relayed by a gateway, and registration of players. Every call waits for its records to be durable, so the
+ * scores include the group commit of the write-ahead log. Run with more threads (-t) to measure the contention
+ * between writers. The players registered by addPlayer accumulate over the iterations of a trial.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class ServerIngestBenchmark {
+    private static final int BULK_BATCHES = 64;
+
+    @Benchmark
+    public void addHRMeasurements(ServerState state, ClientState client) {
+        state.server.addHRMeasurements(client.nextBatch(state));
+    }
+
+    @Benchmark
+    public List<IngestResult> addHRMeasurementsBulk(ServerState state, ClientState client) {
+        List<HeartRateMeasurements> batches = new ArrayList<>(BULK_BATCHES);
+        for (int i = 0; i < BULK_BATCHES; i++) {
+            batches.add(client.nextBatch(state));
+        }
+        return state.server.addHRMeasurements(batches);
+    }
+
+    @Benchmark
+    public AddPlayerResponse addPlayer(ServerState state) {
+        int id = state.nextPlayerId();
+        return state.server.addPlayer(new Player(id, 50000, "localhost", 0, 0));
+    }
+}
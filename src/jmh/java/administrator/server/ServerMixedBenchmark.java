@@ -0,0 +1,70 @@
+package administrator.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readers and writers running together on the same server, to measure how much each slows the other down. The
+ * readHeavy group has one writer for four readers, the writeHeavy group four writers for two readers; other mixes
+ * can be set on the command line with -tg, giving the number of threads of each method of the group.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ServerMixedBenchmark {
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public void readHeavyWrite(ServerState state, ClientState client) {
+        state.server.addHRMeasurements(client.nextBatch(state));
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(2)
+    public double readHeavyLastN(ServerState state, ClientState client) {
+        return state.server.getAverageLastNHR(client.randomLastN(state), client.randomPlayer(state));
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(2)
+    public Double readHeavyRange(ServerState state, ClientState client) {
+        long[] range = client.randomRange(state);
+        return state.server.getAverageRangeHR(range[0], range[1]);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(4)
+    public void writeHeavyWrite(ServerState state, ClientState client) {
+        state.server.addHRMeasurements(client.nextBatch(state));
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(1)
+    public double writeHeavyLastN(ServerState state, ClientState client) {
+        return state.server.getAverageLastNHR(client.randomLastN(state), client.randomPlayer(state));
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(1)
+    public Double writeHeavyRange(ServerState state, ClientState client) {
+        long[] range = client.randomRange(state);
+        return state.server.getAverageRangeHR(range[0], range[1]);
+    }
+}
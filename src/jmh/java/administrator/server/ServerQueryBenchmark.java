@@ -0,0 +1,41 @@
+package administrator.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The read paths of the server on a history that does not change, with random players, numbers of values and
+ * ranges. Run with more threads (-t) to measure the contention between readers.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class ServerQueryBenchmark {
+
+    @Benchmark
+    public double getAverageLastNHR(ServerState state, ClientState client) {
+        return state.server.getAverageLastNHR(client.randomLastN(state), client.randomPlayer(state));
+    }
+
+    @Benchmark
+    public Double getAverageRangeHR(ServerState state, ClientState client) {
+        long[] range = client.randomRange(state);
+        return state.server.getAverageRangeHR(range[0], range[1]);
+    }
+
+    @Benchmark
+    public int measurementsCount(ServerState state, ClientState client) {
+        return state.server.measurementsCount(client.randomPlayer(state));
+    }
+}
@@ -0,0 +1,117 @@
+package administrator.server;
+
+import beans.HeartRateMeasurements;
+import beans.Player;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * A server holding the heart rate history of a number of players, shared by all the threads of a benchmark.
+ * The server runs without the rest server, with its write-ahead log in a temporary directory and the retention
+ * policy and the snapshots disabled, so that the history does not change under the queries and no background
+ * snapshot competes with the measured threads. The query cache is disabled by default,
+ * so that the store itself is measured; -p cacheMaxEntries=1024 measures it with the cache.
+ */
+@State(Scope.Benchmark)
+public class ServerState {
+    // the number of values of a batch, as sent by a player
+    static final int BATCH_SIZE = 8;
+    // the interval in milliseconds between the batches of the history of a player
+    static final long BATCH_INTERVAL = 10_000;
+    // the number of batches added with each call while the history is loaded
+    private static final int LOAD_BATCHES = 1024;
+
+    @Param({"10", "100", "1000"})
+    public int players;
+
+    // the number of values of each player
+    @Param({"1000", "10000"})
+    public int history;
+
+    @Param({"0"})
+    public int cacheMaxEntries;
+
+    Server server;
+    // the range of timestamps of the history
+    long firstTimestamp;
+    long lastTimestamp;
+    private Path dataDir;
+    private AtomicInteger nextPlayerId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("watchout-bench");
+        Properties properties = new Properties();
+        properties.setProperty("watchout.dataDir", dataDir.toString());
+        properties.setProperty("watchout.retention.maxBytes", "0");
+        properties.setProperty("watchout.retention.rollupMaxAges", "0,0,0");
+        properties.setProperty("watchout.compaction.interval", String.valueOf(Long.MAX_VALUE));
+        properties.setProperty("watchout.snapshot.interval", "0");
+        properties.setProperty("watchout.cache.maxEntries", String.valueOf(cacheMaxEntries));
+        server = new Server(new ServerConfig(properties), false);
+
+        for (int id = 0; id < players; id++) {
+            server.addPlayer(new Player(id, 50000 + id, "localhost", 0, 0));
+        }
+        nextPlayerId = new AtomicInteger(players);
+
+        int batchesPerPlayer = Math.max(1, history / BATCH_SIZE);
+        lastTimestamp = System.currentTimeMillis();
+        firstTimestamp = lastTimestamp - (batchesPerPlayer - 1) * BATCH_INTERVAL;
+        Random random = new Random(42);
+        List<HeartRateMeasurements> load = new ArrayList<>(LOAD_BATCHES);
+        for (int batch = 0; batch < batchesPerPlayer; batch++) {
+            for (int id = 0; id < players; id++) {
+                load.add(new HeartRateMeasurements(id, firstTimestamp + batch * BATCH_INTERVAL, randomValues(random)));
+                if (load.size() == LOAD_BATCHES) {
+                    server.addHRMeasurements(load);
+                    load.clear();
+                }
+            }
+        }
+        if (!load.isEmpty()) server.addHRMeasurements(load);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        server.shutdown();
+        try (Stream<Path> files = Files.walk(dataDir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * @return an id that no player has used yet.
+     */
+    int nextPlayerId() {
+        return nextPlayerId.getAndIncrement();
+    }
+
+    /**
+     * @return the values of a batch, plausible averages of a heart rate sensor.
+     */
+    static List<Double> randomValues(Random random) {
+        List<Double> values = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            values.add(Math.round((60 + random.nextDouble() * 120) * 100) / 100.0);
+        }
+        return values;
+    }
+}
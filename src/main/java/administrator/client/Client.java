@@ -1,9 +1,10 @@
 package administrator.client;
 
 
+import beans.LiveHeartRateUpdate;
 import beans.Player;
+import beans.PlayerChanges;
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
@@ -16,7 +17,13 @@ import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Scanner;
 
 /**
  * A class that collects the administration client functionalities
@@ -26,6 +33,10 @@ class Client {
     private final com.sun.jersey.api.client.Client client;
     private MqttClient mqttClient;
     private final String mqttClientId;
+    // the players registered to the server up to playersVersion of playersEpoch, in order of registration
+    private final List<Player> knownPlayers = new ArrayList<>();
+    private long playersEpoch = 0;
+    private long playersVersion = 0;
 
     /**
      * Constructs a client, initializing jersey and mqtt clients.
@@ -87,13 +98,59 @@ class Client {
      * if server is not available, returns null
      */
     public List<Player> getPlayers() {
-        String getPath = "/players/get-all";
+        String getPath = "/players/changes";
+        // the players known from the previous calls are kept, and only the ones registered since are fetched
+        for (int attempt = 0; attempt < 2; attempt++) {
+            MultivaluedMapImpl queryParam = new MultivaluedMapImpl();
+            queryParam.add("since", String.valueOf(playersVersion));
+            queryParam.add("epoch", String.valueOf(playersEpoch));
+            ClientResponse clientResponse;
+            try {
+                clientResponse = client.resource(serverAddress + getPath).queryParams(queryParam)
+                        .accept("application/json").header("If-None-Match", "\"" + playersEpoch + "-" + playersVersion + "\"")
+                        .get(ClientResponse.class);
+            } catch (ClientHandlerException e) {
+                System.out.println("Server not available");
+                return null;
+            }
+            if (clientResponse.getStatus() == 304) {
+                clientResponse.close();
+                return new ArrayList<>(knownPlayers);
+            }
+            if (clientResponse.getStatus() == 200) {
+                PlayerChanges changes = clientResponse.getEntity(PlayerChanges.class);
+                if (changes.getPlayers() != null) knownPlayers.addAll(changes.getPlayers());
+                playersEpoch = changes.getEpoch();
+                playersVersion = changes.getVersion();
+                return new ArrayList<>(knownPlayers);
+            }
+            if (clientResponse.getStatus() != 400) {
+                System.out.println("Error " + clientResponse.getStatus() + ":" + clientResponse.getEntity(String.class));
+                return null;
+            }
+            // the server does not know the version, because it restarted or lost its data: start over
+            clientResponse.close();
+            knownPlayers.clear();
+            playersEpoch = 0;
+            playersVersion = 0;
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of players currently registered to the administration server.
+     * if server is not available, returns null
+     */
+    public Integer countPlayers() {
+        String getPath = "/players/count";
         ClientResponse clientResponse = getRequest(serverAddress + getPath);
         if (clientResponse == null) return null;
-        String body = clientResponse.getEntity(String.class).toString();
-        List<Player> players = new Gson().fromJson(body, new TypeToken<List<Player>>() {
-        }.getType());
-        return players;
+        String body = clientResponse.getEntity(String.class);
+        if (clientResponse.getStatus() != 200) {
+            System.out.println("Error " + clientResponse.getStatus() + ":" + body);
+            return null;
+        }
+        return Integer.parseInt(body.trim());
     }
 
     /** Prints the average of the last n heart rate measurements sent to the server by a given player, if server is available.
@@ -135,6 +192,55 @@ class Client {
         }
     }
 
+    /** Subscribes to the live stream of the rolling averages of heart rate, and prints every update until the user
+     * presses enter, if server is available.
+     * @param player the id of the player whose updates are printed, null for the updates of all the players
+     * @param scanner the scanner of the console, used to wait for the user
+     */
+    public void subscribeLiveHR(Integer player, Scanner scanner) {
+        MultivaluedMapImpl queryParam = new MultivaluedMapImpl();
+        if (player != null) queryParam.add("player", player);
+        String getPath = "/players/heart-rate/live";
+        ClientResponse clientResponse;
+        try {
+            clientResponse = client.resource(serverAddress + getPath).queryParams(queryParam)
+                    .accept("text/event-stream").get(ClientResponse.class);
+        } catch (ClientHandlerException e) {
+            System.out.println("Server not available");
+            return;
+        }
+        if (clientResponse.getStatus() != 200) {
+            System.out.println("Error " + clientResponse.getStatus() + ":" + clientResponse.getEntity(String.class));
+            return;
+        }
+        Thread reader = new Thread(() -> {
+            try (BufferedReader lines = new BufferedReader(new InputStreamReader(clientResponse.getEntityInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (line.startsWith("data: ")) {
+                        LiveHeartRateUpdate update = new Gson().fromJson(line.substring(6), LiveHeartRateUpdate.class);
+                        System.out.println("[LIVE] player " + update.getPlayer() + ": " + update.getPlayerAverage()
+                                + " (" + update.getPlayerCount() + " values), all players: " + update.getAverage()
+                                + " (" + update.getCount() + " values)");
+                    }
+                }
+                System.out.println("Live stream closed by the server");
+            } catch (IOException e) {
+                // the stream has been closed by the user
+            }
+        });
+        reader.start();
+        System.out.println("Subscribed to live heart rate updates, press enter to stop");
+        scanner.nextLine();
+        scanner.nextLine();
+        clientResponse.close();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /** Sends a message through mqtt to the players subscribed to the specified topic
      * @param payload the message to be sent
      * @param topic the topic in which to publish the message
@@ -16,6 +16,7 @@ public class StartClient {
             System.out.println("3 - average of the heart rate sent by all the players to the server and occurred from timestamps t1 and t2");
             System.out.println("4 - announce the start of the game");
             System.out.println("5 - broadcast a message to all players");
+            System.out.println("6 - follow the live rolling averages of heart rate");
             Scanner scanner = new Scanner(System.in);
             String input = scanner.next();
             switch (input) {
@@ -42,8 +43,8 @@ public class StartClient {
                     client.printAverageRangeHR(t1, t2);
                     break;
                 case "4":
-                    if (client.getPlayers() == null) continue;
-                    int numPlayers = client.getPlayers().size();
+                    Integer numPlayers = client.countPlayers();
+                    if (numPlayers == null) continue;
                     if(numPlayers < 2){
                         System.out.println("To start game at least 2 players are required, registered:"+ numPlayers);
                         continue;
@@ -57,6 +58,11 @@ public class StartClient {
                     client.broadcastMessage(m);
                     System.out.println("message:'"+ m +"' delivered");
                     break;
+                case "6":
+                    System.out.print("Insert the player id, or 'all' for all the players: ");
+                    String id = scanner.next();
+                    client.subscribeLiveHR(id.equals("all") ? null : Integer.valueOf(id), scanner);
+                    break;
                 default:
                     System.out.println("Operation not available.");
                     break;
@@ -0,0 +1,118 @@
+package administrator.server;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A mutable accumulator of count, sum, minimum and maximum of heart rate values. It is used both as the content of
+ * a rollup bucket and to collect the result of a query. This class is not thread safe.
+ */
+class Aggregate implements Rollup.Bucket<Aggregate> {
+    // estimated heap footprint: object header and fields
+    private static final int BYTES = 40;
+    // writes the counts, the sums, the minimums and the maximums of the buckets of a rollup in four columns
+    static final Rollup.Codec<Aggregate> CODEC = new Rollup.Codec<Aggregate>() {
+        @Override
+        public void write(List<Aggregate> buckets, DataOutput out) throws IOException {
+            for (Aggregate bucket : buckets) out.writeLong(bucket.count);
+            for (Aggregate bucket : buckets) out.writeDouble(bucket.sum);
+            for (Aggregate bucket : buckets) out.writeDouble(bucket.min);
+            for (Aggregate bucket : buckets) out.writeDouble(bucket.max);
+        }
+
+        @Override
+        public List<Aggregate> read(ByteBuffer in, int size) {
+            List<Aggregate> buckets = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                Aggregate bucket = new Aggregate();
+                bucket.count = in.getLong();
+                buckets.add(bucket);
+            }
+            for (Aggregate bucket : buckets) bucket.sum = in.getDouble();
+            for (Aggregate bucket : buckets) bucket.min = in.getDouble();
+            for (Aggregate bucket : buckets) bucket.max = in.getDouble();
+            return buckets;
+        }
+    };
+
+    private long count = 0;
+    private double sum = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Adds a single value.
+     * @param value the value.
+     */
+    @Override
+    public void add(double value) {
+        count++;
+        sum += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    /**
+     * Adds all the values accumulated by another aggregate.
+     * @param other the other aggregate.
+     */
+    @Override
+    public void merge(Aggregate other) {
+        merge(other.count, other.sum, other.min, other.max);
+    }
+
+    /**
+     * Adds a group of values given their summary.
+     * @param count the number of values.
+     * @param sum the sum of the values.
+     * @param min the minimum value.
+     * @param max the maximum value.
+     */
+    void merge(long count, double sum, double min, double max) {
+        this.count += count;
+        this.sum += sum;
+        if (min < this.min) this.min = min;
+        if (max > this.max) this.max = max;
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return BYTES;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    double getSum() {
+        return sum;
+    }
+
+    /**
+     * @return the minimum value, +Infinity if the aggregate is empty.
+     */
+    double getMin() {
+        return min;
+    }
+
+    /**
+     * @return the maximum value, -Infinity if the aggregate is empty.
+     */
+    double getMax() {
+        return max;
+    }
+
+    /**
+     * @return the average of the values, NaN if the aggregate is empty.
+     */
+    double getAverage() {
+        return sum / count;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+}
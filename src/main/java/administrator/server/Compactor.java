@@ -0,0 +1,108 @@
+package administrator.server;
+
+import java.util.Collection;
+
+/**
+ * A background thread that periodically enforces the retention policy on the heart rate measurements, so that the
+ * memory used by the server stays bounded. Each run evicts the raw values older than the maximum age, then the
+ * oldest raw values of the players over their byte budget, then the oldest raw values of every player in
+ * proportion if all together they are over the global byte budget. The budgets count only the raw values, which
+ * are all that eviction frees: evicted values remain available at a lower resolution in the rollups, whose tiers
+ * are bounded by their own maximum ages instead. Finally, the uncompressed values of every
+ * player are sealed into a compressed chunk and the arrays are shrunk to the size of their content.
+ * Each player is locked, as a writer, only for the duration of its own compaction, so the ingestion of the other
+ * players goes on, while the queries keep reading the version of its values it published last.
+ */
+class Compactor extends Thread {
+    private final Server server;
+    private final ServerConfig config;
+
+    /**
+     * @param server the server whose measurements are compacted.
+     * @param config the configuration with the retention policy.
+     */
+    Compactor(Server server, ServerConfig config) {
+        super("compactor");
+        setDaemon(true);
+        this.server = server;
+        this.config = config;
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            try {
+                Thread.sleep(config.getCompactionInterval());
+            } catch (InterruptedException e) {
+                return;
+            }
+            compact(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Runs the retention policy once.
+     * @param now the current time, from which the ages are computed.
+     */
+    void compact(long now) {
+        Collection<PlayerMeasurements> allMeasurements = server.getAllPlayerMeasurements();
+        long[] rollupMaxAges = config.getRollupMaxAges();
+        long totalRawBytes = 0;
+        boolean rawEvicted = false;
+        // the cached range averages starting before this timestamp may be changed by the eviction
+        long evictedBefore = Long.MIN_VALUE;
+        for (PlayerMeasurements measurements : allMeasurements) {
+            if (config.getRetentionMaxAge() > 0) {
+                rawEvicted |= measurements.evictBefore(now - config.getRetentionMaxAge());
+            }
+            if (config.getRetentionMaxBytesPerPlayer() > 0) {
+                rawEvicted |= evictOverBudget(measurements, config.getRetentionMaxBytesPerPlayer());
+            }
+            for (int tier = 0; tier < rollupMaxAges.length; tier++) {
+                if (rollupMaxAges[tier] > 0) measurements.evictRollupBefore(tier, now - rollupMaxAges[tier]);
+            }
+            measurements.compact();
+            totalRawBytes += measurements.rawBytes();
+        }
+        for (int tier = 0; tier < rollupMaxAges.length; tier++) {
+            if (rollupMaxAges[tier] > 0) {
+                server.getGlobalRollup().evictBefore(tier, now - rollupMaxAges[tier]);
+                server.getGlobalSketches().evictResolutionBefore(Rollup.RESOLUTIONS[tier], now - rollupMaxAges[tier]);
+                evictedBefore = Math.max(evictedBefore, now - rollupMaxAges[tier]);
+            }
+        }
+
+        long maxBytes = config.getRetentionMaxBytes();
+        if (maxBytes > 0 && totalRawBytes > maxBytes) {
+            double excessFraction = (double) (totalRawBytes - maxBytes) / totalRawBytes;
+            for (PlayerMeasurements measurements : allMeasurements) {
+                rawEvicted |= measurements.evictOldest((int) Math.ceil(measurements.valuesCount() * excessFraction));
+                measurements.compact();
+            }
+        }
+
+        long rawRetainedFrom = Long.MIN_VALUE;
+        for (PlayerMeasurements measurements : allMeasurements) {
+            rawRetainedFrom = Math.max(rawRetainedFrom, measurements.rawRetainedFrom());
+        }
+        server.setRawRetainedFrom(rawRetainedFrom);
+        server.getQueryCache().invalidateEvicted(rawEvicted, Math.max(evictedBefore, rawRetainedFrom));
+    }
+
+    /**
+     * Evicts the oldest raw values of a player until their estimated footprint fits the budget.
+     * @return true if values may have been evicted.
+     */
+    private boolean evictOverBudget(PlayerMeasurements measurements, long maxBytes) {
+        long bytes = measurements.rawBytes();
+        long excessBytes = bytes - maxBytes;
+        if (excessBytes > 0) {
+            // values are compressed with a variable ratio, so the average footprint of a value is used
+            double bytesPerValue = (double) bytes / Math.max(1, measurements.valuesCount());
+            boolean evicted = measurements.evictOldest((int) Math.min(Integer.MAX_VALUE, excessBytes / bytesPerValue + 1));
+            measurements.compact();
+            return evicted;
+        }
+        return false;
+    }
+}
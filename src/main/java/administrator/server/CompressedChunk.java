@@ -0,0 +1,439 @@
+package administrator.server;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * An immutable, compressed run of heart rate values of a player, ordered by timestamp, in the style of the Gorilla
+ * time series encoding. Timestamps are stored as delta-of-delta, which takes a single bit when values arrive at a
+ * regular pace, and are decoded exactly. Values are rounded to the nearest 0.01 bpm, so a decoded value may differ
+ * from the stored one by up to 0.005 bpm, and the rounded value is stored as the delta from the previous one, in the
+ * smallest of a few bit widths that fits it. Apart from this rounding the encoding is exact. A value that cannot be
+ * rounded this way (not finite or absurdly large) is stored verbatim and decoded exactly.
+ * The count, sum, minimum and maximum of the values are kept uncompressed, so that a chunk entirely inside a range
+ * is aggregated without decoding it. All the statistics refer to the quantized values.
+ * A chunk loaded from a snapshot keeps its bits in the mapped snapshot file, and copies them to the heap the first
+ * time it is decoded.
+ */
+final class CompressedChunk {
+    private static final double SCALE = 100;
+    // values whose magnitude is below this are quantized exactly into a long that a double can represent
+    private static final double MAX_QUANTIZABLE = 1e13;
+    private static final int CHUNK_OVERHEAD_BYTES = 64;
+
+    // null until a chunk loaded from a snapshot is first decoded, then the bits are read from the heap
+    private volatile long[] words;
+    // the bits in the mapped snapshot file, null once copied to the heap
+    private volatile LongBuffer mappedWords;
+    private final int wordCount;
+    private final int count;
+    private final long firstTimestamp;
+    private final long lastTimestamp;
+    private final double sum;
+    private final double min;
+    private final double max;
+
+    private CompressedChunk(long[] words, int count, long firstTimestamp, long lastTimestamp, double sum, double min, double max) {
+        this.words = words;
+        this.wordCount = words.length;
+        this.count = count;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    private CompressedChunk(LongBuffer mappedWords, int count, long firstTimestamp, long lastTimestamp, double sum,
+                            double min, double max) {
+        this.mappedWords = mappedWords;
+        this.wordCount = mappedWords.remaining();
+        this.count = count;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * Compresses a run of values.
+     * @param timestamps the timestamps, ordered.
+     * @param values the values.
+     * @param from the index of the first value of the run.
+     * @param to the index following the last value of the run, must be greater than from.
+     * @return the chunk.
+     */
+    static CompressedChunk encode(long[] timestamps, double[] values, int from, int to) {
+        BitWriter writer = new BitWriter(to - from);
+        long previousTimestamp = 0;
+        long previousDelta = 0;
+        long previousQuantized = 0;
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            if (i == from) {
+                writer.write(timestamps[i], 64);
+            } else {
+                long delta = timestamps[i] - previousTimestamp;
+                writeDeltaOfDelta(writer, delta - previousDelta);
+                previousDelta = delta;
+            }
+            previousTimestamp = timestamps[i];
+
+            double value = values[i];
+            if (Math.abs(value) < MAX_QUANTIZABLE && writeValueDelta(writer, Math.round(value * SCALE) - previousQuantized)) {
+                previousQuantized = Math.round(value * SCALE);
+                value = previousQuantized / SCALE;
+            } else {
+                writer.write(0b11111, 5);
+                writer.write(Double.doubleToRawLongBits(value), 64);
+            }
+            sum += value;
+            if (value < min) min = value;
+            if (value > max) max = value;
+        }
+        return new CompressedChunk(writer.toArray(), to - from, timestamps[from], timestamps[to - 1], sum, min, max);
+    }
+
+    private static void writeDeltaOfDelta(BitWriter writer, long dod) {
+        if (dod == 0) {
+            writer.write(0, 1);
+        } else if (fits(dod, 7)) {
+            writer.write(0b10, 2);
+            writer.writeSigned(dod, 7);
+        } else if (fits(dod, 9)) {
+            writer.write(0b110, 3);
+            writer.writeSigned(dod, 9);
+        } else if (fits(dod, 12)) {
+            writer.write(0b1110, 4);
+            writer.writeSigned(dod, 12);
+        } else if (fits(dod, 32)) {
+            writer.write(0b11110, 5);
+            writer.writeSigned(dod, 32);
+        } else {
+            writer.write(0b11111, 5);
+            writer.write(dod, 64);
+        }
+    }
+
+    /**
+     * Writes the delta between two quantized values, if it fits one of the widths.
+     * @return false if the delta is too large, in that case nothing is written.
+     */
+    private static boolean writeValueDelta(BitWriter writer, long delta) {
+        if (delta == 0) {
+            writer.write(0, 1);
+        } else if (fits(delta, 10)) {
+            writer.write(0b10, 2);
+            writer.writeSigned(delta, 10);
+        } else if (fits(delta, 14)) {
+            writer.write(0b110, 3);
+            writer.writeSigned(delta, 14);
+        } else if (fits(delta, 20)) {
+            writer.write(0b1110, 4);
+            writer.writeSigned(delta, 20);
+        } else if (fits(delta, 32)) {
+            writer.write(0b11110, 5);
+            writer.writeSigned(delta, 32);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the value is representable with writeSigned in the given number of bits.
+     */
+    private static boolean fits(long value, int bits) {
+        long bias = (1L << (bits - 1)) - 1;
+        return value >= -bias && value <= bias + 1;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    double getSum() {
+        return sum;
+    }
+
+    /**
+     * Adds all the values of the chunk to the accumulator, without decoding them.
+     */
+    void mergeInto(Aggregate acc) {
+        acc.merge(count, sum, min, max);
+    }
+
+    /**
+     * Adds the values whose timestamp is between t1 and t2 (inclusive) to the accumulator, decoding the chunk up to
+     * the end of the range.
+     */
+    void accumulateRange(long t1, long t2, Rollup.Bucket<?> acc) {
+        Reader reader = new Reader();
+        while (reader.next()) {
+            if (reader.timestamp > t2) break;
+            if (reader.timestamp >= t1) acc.add(reader.value);
+        }
+    }
+
+    /**
+     * @return the sum of the first k values.
+     */
+    double sumOfFirst(int k) {
+        if (k == count) return sum;
+        Reader reader = new Reader();
+        double result = 0;
+        for (int i = 0; i < k && reader.next(); i++) {
+            result += reader.value;
+        }
+        return result;
+    }
+
+    /**
+     * @return the timestamp of the value at the given index.
+     */
+    long timestampAt(int index) {
+        Reader reader = new Reader();
+        for (int i = 0; i <= index; i++) {
+            reader.next();
+        }
+        return reader.timestamp;
+    }
+
+    /**
+     * Decodes all the values into the given arrays.
+     * @param timestamps the array receiving the timestamps.
+     * @param values the array receiving the values.
+     * @param offset the index at which the first value is written.
+     */
+    void decode(long[] timestamps, double[] values, int offset) {
+        Reader reader = new Reader();
+        for (int i = offset; reader.next(); i++) {
+            timestamps[i] = reader.timestamp;
+            values[i] = reader.value;
+        }
+    }
+
+    /**
+     * @return the estimated number of bytes of heap used by the chunk.
+     */
+    long estimatedBytes() {
+        return CHUNK_OVERHEAD_BYTES + 8L * wordCount;
+    }
+
+    /**
+     * @return the bits of the chunk, copied to the heap the first time if the chunk was loaded from a snapshot.
+     * Concurrent first calls copy them twice, to equal arrays.
+     */
+    private long[] words() {
+        long[] result = words;
+        if (result == null) {
+            LongBuffer mapped = mappedWords;
+            if (mapped == null) return words;
+            result = new long[wordCount];
+            mapped.duplicate().get(result);
+            words = result;
+            mappedWords = null;
+        }
+        return result;
+    }
+
+    /**
+     * Writes the chunks to a snapshot in columns: first the counts, the timestamps, the sums, the minimums, the
+     * maximums and the number of words of all the chunks, then the words of all of them, so that a chunk is loaded
+     * from its summary alone.
+     * @param chunks the chunks.
+     * @param size the number of chunks to write.
+     * @param out the output.
+     */
+    static void writeColumns(CompressedChunk[] chunks, int size, DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) out.writeInt(chunks[i].count);
+        for (int i = 0; i < size; i++) out.writeLong(chunks[i].firstTimestamp);
+        for (int i = 0; i < size; i++) out.writeLong(chunks[i].lastTimestamp);
+        for (int i = 0; i < size; i++) out.writeDouble(chunks[i].sum);
+        for (int i = 0; i < size; i++) out.writeDouble(chunks[i].min);
+        for (int i = 0; i < size; i++) out.writeDouble(chunks[i].max);
+        for (int i = 0; i < size; i++) out.writeInt(chunks[i].wordCount);
+        for (int i = 0; i < size; i++) {
+            for (long word : chunks[i].words()) out.writeLong(word);
+        }
+    }
+
+    /**
+     * Reads the chunks written by writeColumns. The words are not copied: each chunk keeps a view of them in the
+     * buffer, which must stay valid for the lifetime of the chunks, as a mapped file does.
+     * @param in the buffer, positioned at the chunks, and positioned after them on return.
+     * @return the chunks.
+     */
+    static CompressedChunk[] readColumns(ByteBuffer in) {
+        int size = in.getInt();
+        int[] counts = new int[size];
+        long[] firstTimestamps = new long[size];
+        long[] lastTimestamps = new long[size];
+        double[] sums = new double[size];
+        double[] mins = new double[size];
+        double[] maxs = new double[size];
+        int[] wordCounts = new int[size];
+        for (int i = 0; i < size; i++) counts[i] = in.getInt();
+        for (int i = 0; i < size; i++) firstTimestamps[i] = in.getLong();
+        for (int i = 0; i < size; i++) lastTimestamps[i] = in.getLong();
+        for (int i = 0; i < size; i++) sums[i] = in.getDouble();
+        for (int i = 0; i < size; i++) mins[i] = in.getDouble();
+        for (int i = 0; i < size; i++) maxs[i] = in.getDouble();
+        for (int i = 0; i < size; i++) wordCounts[i] = in.getInt();
+        CompressedChunk[] chunks = new CompressedChunk[size];
+        for (int i = 0; i < size; i++) {
+            ByteBuffer view = in.slice();
+            view.limit(8 * wordCounts[i]);
+            chunks[i] = new CompressedChunk(view.asLongBuffer(), counts[i], firstTimestamps[i], lastTimestamps[i],
+                    sums[i], mins[i], maxs[i]);
+            in.position(in.position() + 8 * wordCounts[i]);
+        }
+        return chunks;
+    }
+
+    /**
+     * A sequential decoder of the values of the chunk.
+     */
+    private final class Reader {
+        private final BitReader bits = new BitReader(words());
+        private int read = 0;
+        private long delta = 0;
+        private long quantized = 0;
+        private long timestamp;
+        private double value;
+
+        /**
+         * Decodes the next value.
+         * @return false if all the values have been read.
+         */
+        boolean next() {
+            if (read == count) return false;
+            if (read == 0) {
+                timestamp = bits.read(64);
+            } else {
+                delta += readDeltaOfDelta();
+                timestamp += delta;
+            }
+            readValue();
+            read++;
+            return true;
+        }
+
+        private long readDeltaOfDelta() {
+            if (bits.read(1) == 0) return 0;
+            if (bits.read(1) == 0) return bits.readSigned(7);
+            if (bits.read(1) == 0) return bits.readSigned(9);
+            if (bits.read(1) == 0) return bits.readSigned(12);
+            if (bits.read(1) == 0) return bits.readSigned(32);
+            return bits.read(64);
+        }
+
+        private void readValue() {
+            if (bits.read(1) == 0) {
+                value = quantized / SCALE;
+                return;
+            }
+            long delta;
+            if (bits.read(1) == 0) delta = bits.readSigned(10);
+            else if (bits.read(1) == 0) delta = bits.readSigned(14);
+            else if (bits.read(1) == 0) delta = bits.readSigned(20);
+            else if (bits.read(1) == 0) delta = bits.readSigned(32);
+            else {
+                value = Double.longBitsToDouble(bits.read(64));
+                return;
+            }
+            quantized += delta;
+            value = quantized / SCALE;
+        }
+    }
+
+    /**
+     * Writes bits, most significant first, into a growing array of longs.
+     */
+    private static final class BitWriter {
+        private long[] words;
+        private int position = 0;
+
+        BitWriter(int expectedValues) {
+            // about two bytes per value in the common case
+            words = new long[Math.max(4, expectedValues / 4)];
+        }
+
+        /**
+         * Writes the n low bits of the given bits, with 1 <= n <= 64.
+         */
+        void write(long bits, int n) {
+            if (position + n > words.length * 64L) {
+                words = Arrays.copyOf(words, words.length * 2);
+            }
+            if (n < 64) bits &= (1L << n) - 1;
+            int index = position >>> 6;
+            int free = 64 - (position & 63);
+            if (n <= free) {
+                words[index] |= bits << (free - n);
+            } else {
+                words[index] |= bits >>> (n - free);
+                words[index + 1] |= bits << (64 - (n - free));
+            }
+            position += n;
+        }
+
+        /**
+         * Writes a signed value that fits in n bits, as an offset from the smallest representable value.
+         */
+        void writeSigned(long value, int n) {
+            write(value + (1L << (n - 1)) - 1, n);
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(words, (position + 63) >>> 6);
+        }
+    }
+
+    /**
+     * Reads the bits written by a BitWriter.
+     */
+    private static final class BitReader {
+        private final long[] words;
+        private int position = 0;
+
+        BitReader(long[] words) {
+            this.words = words;
+        }
+
+        /**
+         * Reads the next n bits, with 1 <= n <= 64.
+         */
+        long read(int n) {
+            int index = position >>> 6;
+            int free = 64 - (position & 63);
+            long result;
+            if (n <= free) {
+                result = words[index] >>> (free - n);
+            } else {
+                result = (words[index] << (n - free)) | (words[index + 1] >>> (64 - (n - free)));
+            }
+            position += n;
+            return n == 64 ? result : result & ((1L << n) - 1);
+        }
+
+        long readSigned(int n) {
+            return read(n) - ((1L << (n - 1)) - 1);
+        }
+    }
+}
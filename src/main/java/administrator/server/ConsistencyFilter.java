@@ -0,0 +1,69 @@
+package administrator.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tags every read with the version of the data it is served from, and lets a read require a minimum version, so
+ * that a client that wrote to the primary reads its own writes from a replica. The writes of the primary return the
+ * version that includes them in the VERSION_HEADER, and a read that sends it back in the MIN_VERSION_HEADER waits
+ * until the server has reached it, or fails with 503 if that takes longer than the maximum wait.
+ */
+class ConsistencyFilter extends Filter {
+    static final String VERSION_HEADER = "X-WatchOut-Version";
+    static final String MIN_VERSION_HEADER = "X-WatchOut-Min-Version";
+
+    private final Server server;
+    private final long maxWait;
+
+    /**
+     * @param server the server whose version is checked.
+     * @param maxWait the maximum time in milliseconds that a read waits for its version.
+     */
+    ConsistencyFilter(Server server, long maxWait) {
+        this.server = server;
+        this.maxWait = maxWait;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        if ("GET".equals(exchange.getRequestMethod())) {
+            String minVersion = exchange.getRequestHeaders().getFirst(MIN_VERSION_HEADER);
+            if (minVersion != null) {
+                long version;
+                try {
+                    version = Long.parseLong(minVersion.trim());
+                } catch (NumberFormatException e) {
+                    reject(exchange, 400, MIN_VERSION_HEADER + " must be a number, instead got: " + minVersion);
+                    return;
+                }
+                if (!server.awaitVersion(version, maxWait)) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    reject(exchange, 503, "The replica has not reached version " + version + " yet, it is at "
+                            + server.getVersion());
+                    return;
+                }
+            }
+            exchange.getResponseHeaders().set(VERSION_HEADER, Long.toString(server.getVersion()));
+        }
+        chain.doFilter(exchange);
+    }
+
+    private static void reject(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Tags the reads with the version of the data and waits for the version they require";
+    }
+}
@@ -0,0 +1,75 @@
+package administrator.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations or sizes with fixed bucket bounds, rendered in the Prometheus text format. Recording an
+ * observation increments striped counters without locking and without allocating, so it can stay on in production.
+ */
+class Histogram {
+    // upper bounds of the buckets of latencies, in nanoseconds
+    static final long[] LATENCY_BOUNDS = {
+            100_000L, 250_000L, 500_000L, 1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L,
+            50_000_000L, 100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 5_000_000_000L
+    };
+
+    private final long[] bounds;
+    // counts[i] is the number of observations in bucket i, not cumulative; the last bucket is +Inf
+    private final LongAdder[] counts;
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * @param bounds the inclusive upper bounds of the buckets, in increasing order.
+     */
+    Histogram(long[] bounds) {
+        this.bounds = bounds.clone();
+        counts = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records an observation.
+     * @param value the observed value, in the unit of the bounds.
+     */
+    void observe(long value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) i++;
+        counts[i].increment();
+        sum.add(value);
+    }
+
+    /**
+     * @return the number of observations.
+     */
+    long count() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format, without the HELP and TYPE lines.
+     * @param out the output.
+     * @param name the name of the metric.
+     * @param labels the labels of the series, e.g. {@code path="/players"}, empty if none.
+     * @param scale the factor that converts the values to the unit of the metric, e.g. 1e-9 from nanoseconds to
+     *              seconds.
+     */
+    void appendTo(StringBuilder out, String name, String labels, double scale) {
+        String separator = labels.isEmpty() ? "" : ",";
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i].sum();
+            String le = i < bounds.length ? Metrics.format(bounds[i] * scale) : "+Inf";
+            out.append(name).append("_bucket{").append(labels).append(separator).append("le=\"").append(le)
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(braces).append(' ').append(Metrics.format(sum.sum() * scale)).append('\n');
+        out.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+    }
+}
@@ -0,0 +1,42 @@
+package administrator.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the pools of worker threads of the rest servers. The JDK HttpServer is built on NIO: a single dispatcher
+ * thread accepts the connections, keeps them alive between requests, and reads the requests without blocking,
+ * then hands every request to the executor of the server. The pool has a fixed number of workers and a bounded
+ * queue, so that a burst of requests neither spawns unbounded threads nor exhausts the heap. When the queue is full
+ * the dispatcher waits for a free slot, so it stops reading new requests and the clients are pushed back through
+ * their connections, instead of having their requests dropped.
+ */
+final class HttpWorkers {
+    private HttpWorkers() {
+    }
+
+    /**
+     * @param name the prefix of the names of the threads.
+     * @param workers the number of worker threads.
+     * @param queueCapacity the maximum number of requests waiting for a worker.
+     * @return the pool, to be shut down with its server.
+     */
+    static ThreadPoolExecutor create(String name, int workers, int queueCapacity) {
+        AtomicInteger threads = new AtomicInteger();
+        return new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> new Thread(runnable, name + "-" + threads.incrementAndGet()),
+                (runnable, executor) -> {
+                    if (executor.isShutdown()) throw new RejectedExecutionException("The server is stopping");
+                    try {
+                        executor.getQueue().put(runnable);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+    }
+}
@@ -0,0 +1,127 @@
+package administrator.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decides whether an upload of heart rate measurements is admitted, so that an overloaded server rejects the
+ * excess early and cheaply, with a hint of when to retry, instead of letting the requests pile up in the rest
+ * server. An upload is admitted if:
+ * <ul>
+ *     <li>fewer than maxInFlight uploads are being ingested, including the ones waiting for the write-ahead log
+ *     sync, which bounds the ingestion queue;</li>
+ *     <li>the token bucket of its player has a token, which limits the uploads of a single player;</li>
+ *     <li>the global token bucket has a token for each of its batches, which limits the uploads of all the
+ *     players together.</li>
+ * </ul>
+ * The buckets are charged per upload, not per value, so a sender that is told to slow down sends the same values in
+ * fewer, larger batches. Both buckets are checked before either is charged, so a rejected upload costs nothing.
+ * A rate of 0 disables a bucket. All the state is guarded by the lock of this object, which is held only for a few
+ * arithmetic operations.
+ */
+class IngestAdmission {
+    // the retry hint when the uploads in flight are at the limit: about the time of a write-ahead log sync
+    private static final long IN_FLIGHT_RETRY_AFTER = 1000;
+
+    private final int maxInFlight;
+    private final double playerRate;
+    private final double playerBurst;
+    private final TokenBucket global;
+    private final Map<Integer, TokenBucket> players = new HashMap<>();
+    // the buckets are pruned when there are this many, so that ids that stop sending do not accumulate
+    private int pruneAt = 1024;
+    private int inFlight = 0;
+
+    /**
+     * @param maxInFlight the maximum number of uploads ingested at the same time.
+     * @param playerRate the uploads per second allowed to a player, 0 for no limit.
+     * @param playerBurst the uploads a player can send at once after being idle.
+     * @param globalRate the batches per second allowed to all the players together, 0 for no limit.
+     * @param globalBurst the batches that can arrive at once after an idle period.
+     */
+    IngestAdmission(int maxInFlight, double playerRate, double playerBurst, double globalRate, double globalBurst) {
+        this.maxInFlight = maxInFlight;
+        this.playerRate = playerRate;
+        this.playerBurst = Math.max(1, playerBurst);
+        this.global = globalRate > 0 ? new TokenBucket(globalRate, Math.max(1, globalBurst)) : null;
+    }
+
+    /**
+     * Tries to admit an upload. An admitted upload must be released once it has been ingested.
+     * @param playerId the player of the upload, or null for an upload of many players, which is not limited per
+     *                 player.
+     * @param batches the number of batches of the upload.
+     * @return 0 if the upload is admitted, otherwise the time in milliseconds after which it may be admitted.
+     */
+    synchronized long tryAdmit(Integer playerId, int batches) {
+        if (inFlight >= maxInFlight) return IN_FLIGHT_RETRY_AFTER;
+        long now = System.nanoTime();
+        TokenBucket player = null;
+        if (playerId != null && playerRate > 0) {
+            player = players.get(playerId);
+            if (player == null) {
+                if (players.size() >= pruneAt) prune(now);
+                player = new TokenBucket(playerRate, playerBurst);
+                players.put(playerId, player);
+            }
+        }
+        // a gateway upload larger than the burst is charged the whole burst, or it would never be admitted
+        double globalCost = global == null ? 0 : Math.min(batches, global.capacity);
+        long wait = Math.max(player == null ? 0 : player.waitFor(1, now), global == null ? 0 : global.waitFor(globalCost, now));
+        if (wait > 0) return wait;
+        if (player != null) player.take(1);
+        if (global != null) global.take(globalCost);
+        inFlight++;
+        return 0;
+    }
+
+    /**
+     * Releases an upload admitted by tryAdmit, once it has been ingested.
+     */
+    synchronized void release() {
+        inFlight--;
+    }
+
+    /**
+     * Removes the buckets of the players that are full again, which behave as new ones.
+     */
+    private void prune(long now) {
+        players.values().removeIf(bucket -> bucket.waitFor(bucket.capacity, now) == 0);
+        pruneAt = Math.max(pruneAt, 2 * players.size());
+    }
+
+    /**
+     * A token bucket: tokens accumulate at a fixed rate up to the capacity, and each admitted unit takes one.
+     * Guarded by the lock of the admission.
+     */
+    private static final class TokenBucket {
+        private final double ratePerNano;
+        private final double capacity;
+        private double tokens;
+        private long refilledAt;
+
+        private TokenBucket(double ratePerSecond, double capacity) {
+            this.ratePerNano = ratePerSecond / 1e9;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.refilledAt = System.nanoTime();
+        }
+
+        /**
+         * Refills the bucket up to the given time.
+         * @return the time in milliseconds until the bucket has the given number of tokens, 0 if it has them now.
+         */
+        private long waitFor(double cost, long now) {
+            if (now > refilledAt) {
+                tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerNano);
+                refilledAt = now;
+            }
+            if (tokens >= cost) return 0;
+            return Math.max(1, (long) Math.ceil((cost - tokens) / ratePerNano / 1e6));
+        }
+
+        private void take(double cost) {
+            tokens -= cost;
+        }
+    }
+}
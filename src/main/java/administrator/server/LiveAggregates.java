@@ -0,0 +1,141 @@
+package administrator.server;
+
+import beans.HeartRateMeasurements;
+import beans.LiveHeartRateUpdate;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rolling averages of heart rate, per player and of all the players, pushed to the subscribers of the live
+ * stream. Every ingested batch updates the rolling windows incrementally and, while there are subscribers, produces
+ * a single event, which is appended to a ring of the most recent events. The event is encoded as a server-sent
+ * event frame by the first subscriber that writes it, outside the lock, so the ingestion only pays for a few
+ * arithmetic operations. Subscribers do not have queues of their own: each keeps the sequence number of the last
+ * event it has written and waits for newer ones, so publishing costs the same regardless of the number of
+ * subscribers. A subscriber that falls behind by more than the capacity of the ring skips the events it has missed.
+ * Every subscriber holds a worker thread of the rest server for the whole stream, so their number is bounded.
+ * This class is thread safe.
+ */
+class LiveAggregates {
+    private final long windowLength;
+    private final Map<Integer, RollingWindow> playerWindows = new HashMap<>();
+    private static final Gson GSON = new GsonBuilder().serializeSpecialFloatingPointValues().create();
+    private final RollingWindow globalWindow;
+
+    private final Event[] ring;
+    // the sequence number of the last event published, events are numbered from 1
+    private long lastSeq = 0;
+    private final int maxStreams;
+    private int streams = 0;
+
+    /**
+     * An event of the live stream.
+     */
+    static final class Event {
+        final long seq;
+        final int playerId;
+        private final LiveHeartRateUpdate update;
+        private byte[] frame;
+
+        private Event(long seq, int playerId, LiveHeartRateUpdate update) {
+            this.seq = seq;
+            this.playerId = playerId;
+            this.update = update;
+        }
+
+        /**
+         * @return the server-sent event frame of the event, encoded on the first call.
+         */
+        synchronized byte[] frame() {
+            if (frame == null) {
+                String text = "id: " + seq + "\nevent: heart-rate\ndata: " + GSON.toJson(update) + "\n\n";
+                frame = text.getBytes(StandardCharsets.UTF_8);
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * @param windowLength the length in milliseconds of the rolling windows.
+     * @param capacity the number of recent events kept for the subscribers.
+     * @param maxStreams the maximum number of subscribers at the same time.
+     */
+    LiveAggregates(long windowLength, int capacity, int maxStreams) {
+        this.windowLength = windowLength;
+        this.maxStreams = maxStreams;
+        this.globalWindow = new RollingWindow(windowLength);
+        this.ring = new Event[capacity];
+    }
+
+    /**
+     * Registers a new subscriber, unless there are already the maximum number.
+     * @return true if the subscriber can open its stream, and must call closeStream when it ends.
+     */
+    synchronized boolean openStream() {
+        if (streams >= maxStreams) return false;
+        streams++;
+        return true;
+    }
+
+    /**
+     * Unregisters a subscriber whose stream has ended.
+     */
+    synchronized void closeStream() {
+        streams--;
+    }
+
+    /**
+     * Updates the rolling averages with a batch of measurements and publishes the resulting event, if there are
+     * subscribers.
+     * @param measurements the batch, which must not be empty.
+     */
+    synchronized void publish(HeartRateMeasurements measurements) {
+        RollingWindow playerWindow = playerWindows.computeIfAbsent(measurements.getId(), id -> new RollingWindow(windowLength));
+        List<Double> values = measurements.getAverageHRList();
+        for (int i = 0; i < values.size(); i++) {
+            playerWindow.add(measurements.getTimestamp(i), values.get(i));
+            globalWindow.add(measurements.getTimestamp(i), values.get(i));
+        }
+        // the windows are kept up to date for the next subscriber, but nobody would read the event
+        if (streams == 0) return;
+        LiveHeartRateUpdate update = new LiveHeartRateUpdate(measurements.getId(), playerWindow.getLatest(),
+                playerWindow.getCount(), playerWindow.getAverage(), globalWindow.getCount(), globalWindow.getAverage());
+        long seq = ++lastSeq;
+        ring[(int) (seq % ring.length)] = new Event(seq, measurements.getId(), update);
+        notifyAll();
+    }
+
+    /**
+     * @return the sequence number of the last event published, 0 if there is none.
+     */
+    synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * Waits for events newer than the given sequence number.
+     * @param after the sequence number of the last event already received.
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return the events newer than after still in the ring, oldest first, empty if the timeout elapsed.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    synchronized List<Event> awaitAfter(long after, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (lastSeq <= after && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        List<Event> events = new ArrayList<>();
+        for (long seq = Math.max(after + 1, lastSeq - ring.length + 1); seq <= lastSeq; seq++) {
+            events.add(ring[(int) (seq % ring.length)]);
+        }
+        return events;
+    }
+}
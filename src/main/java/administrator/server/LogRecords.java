@@ -0,0 +1,141 @@
+package administrator.server;
+
+import beans.HeartRateMeasurements;
+import beans.Player;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The types of the records written by the server to its write-ahead log, with their binary encoding.
+ */
+final class LogRecords {
+    static final byte PLAYER = 1;
+    static final byte HEART_RATE = 2;
+    static final byte HEART_RATE_SAMPLES = 3;
+    // the same layouts of HEART_RATE and HEART_RATE_SAMPLES, followed by the sequence number of the batch
+    static final byte HEART_RATE_SEQUENCED = 4;
+    static final byte HEART_RATE_SAMPLES_SEQUENCED = 5;
+
+    private LogRecords() {
+    }
+
+    /**
+     * Encodes a registered player, including the coordinates assigned by the server.
+     * Layout: {@code int id | int listenPort | int x | int y | short addressLength | address (UTF-8)}.
+     */
+    static byte[] encodePlayer(Player player) {
+        String playerAddress = player.getPlayerAddress() == null ? "" : player.getPlayerAddress();
+        byte[] address = playerAddress.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(18 + address.length);
+        buffer.putInt(player.getId()).putInt(player.getListenPort()).putInt(player.getX()).putInt(player.getY());
+        buffer.putShort((short) address.length).put(address);
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a player encoded by encodePlayer.
+     */
+    static Player decodePlayer(ByteBuffer payload) {
+        int id = payload.getInt();
+        int listenPort = payload.getInt();
+        int x = payload.getInt();
+        int y = payload.getInt();
+        byte[] address = new byte[payload.getShort()];
+        payload.get(address);
+        return new Player(id, listenPort, new String(address, StandardCharsets.UTF_8), x, y);
+    }
+
+    /**
+     * @return the type of the record of a batch of heart rate measurements: HEART_RATE_SAMPLES if its values have
+     * each their own timestamp, HEART_RATE otherwise, in their SEQUENCED variant if the batch has a sequence number.
+     */
+    static byte measurementsType(HeartRateMeasurements measurements) {
+        if (measurements.getSequence() > 0) {
+            return measurements.getTimestamps() == null ? HEART_RATE_SEQUENCED : HEART_RATE_SAMPLES_SEQUENCED;
+        }
+        return measurements.getTimestamps() == null ? HEART_RATE : HEART_RATE_SAMPLES;
+    }
+
+    /**
+     * @return true if the records of the given type are batches of heart rate measurements.
+     */
+    static boolean isMeasurements(byte type) {
+        return type >= HEART_RATE && type <= HEART_RATE_SAMPLES_SEQUENCED;
+    }
+
+    private static boolean hasSampleTimestamps(byte type) {
+        return type == HEART_RATE_SAMPLES || type == HEART_RATE_SAMPLES_SEQUENCED;
+    }
+
+    private static boolean isSequenced(byte type) {
+        return type == HEART_RATE_SEQUENCED || type == HEART_RATE_SAMPLES_SEQUENCED;
+    }
+
+    /**
+     * @return the size in bytes of the encoding of a batch of heart rate measurements.
+     */
+    static int measurementsSize(HeartRateMeasurements measurements) {
+        byte type = measurementsType(measurements);
+        int sequenceSize = isSequenced(type) ? 8 : 0;
+        int count = measurements.getAverageHRList().size();
+        return (hasSampleTimestamps(type) ? 8 + 16 * count : 16 + 8 * count) + sequenceSize;
+    }
+
+    /**
+     * Encodes a batch of heart rate measurements, with the layout of its type.
+     * Layout of HEART_RATE: {@code int id | long timestamp | int count | double[count] values}.
+     * Layout of HEART_RATE_SAMPLES: {@code int id | int count | long[count] timestamps | double[count] values}.
+     * The SEQUENCED variants append {@code long sequence}.
+     */
+    static byte[] encodeMeasurements(HeartRateMeasurements measurements) {
+        List<Double> values = measurements.getAverageHRList();
+        byte type = measurementsType(measurements);
+        ByteBuffer buffer = ByteBuffer.allocate(measurementsSize(measurements));
+        if (!hasSampleTimestamps(type)) {
+            buffer.putInt(measurements.getId()).putLong(measurements.getTimestamp()).putInt(values.size());
+        } else {
+            buffer.putInt(measurements.getId()).putInt(values.size());
+            for (Long timestamp : measurements.getTimestamps()) {
+                buffer.putLong(timestamp);
+            }
+        }
+        for (Double value : values) {
+            buffer.putDouble(value);
+        }
+        if (isSequenced(type)) buffer.putLong(measurements.getSequence());
+        return buffer.array();
+    }
+
+    /**
+     * Decodes a batch of heart rate measurements encoded by encodeMeasurements.
+     * @param type the type of the record, one of the heart rate types.
+     */
+    static HeartRateMeasurements decodeMeasurements(byte type, ByteBuffer payload) {
+        int id = payload.getInt();
+        HeartRateMeasurements measurements;
+        if (!hasSampleTimestamps(type)) {
+            long timestamp = payload.getLong();
+            measurements = new HeartRateMeasurements(id, timestamp, decodeValues(payload, payload.getInt()));
+        } else {
+            int count = payload.getInt();
+            List<Long> timestamps = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                timestamps.add(payload.getLong());
+            }
+            measurements = new HeartRateMeasurements(id, timestamps, decodeValues(payload, count));
+        }
+        if (isSequenced(type)) measurements.setSequence(payload.getLong());
+        return measurements;
+    }
+
+    private static List<Double> decodeValues(ByteBuffer payload, int count) {
+        List<Double> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(payload.getDouble());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,195 @@
+package administrator.server;
+
+import beans.PlayerStorageStats;
+import beans.QueryCacheStats;
+import beans.StorageStats;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The performance metrics of the administration server, rendered in the Prometheus text format by the /metrics
+ * endpoint. Events are recorded with striped counters and fixed histograms, which neither lock nor allocate, so
+ * the metrics can stay on in production; the gauges of the measurement store are computed only when the metrics
+ * are scraped.
+ * This class is thread safe.
+ */
+class Metrics {
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+    private static final long[] BATCH_SIZE_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 5000};
+    // the request paths are labels, so their number is capped against clients requesting arbitrary paths
+    private static final int MAX_ENDPOINTS = 64;
+    private static final String[] METHODS = {"GET", "POST", "PUT", "DELETE", "other"};
+
+    private final LongAdder ingestBatches = new LongAdder();
+    private final LongAdder ingestValues = new LongAdder();
+    private final LongAdder ingestDuplicates = new LongAdder();
+    private final LongAdder ingestThrottled = new LongAdder();
+    private final Histogram ingestBatchSize = new Histogram(BATCH_SIZE_BOUNDS);
+    private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final Endpoint otherEndpoint = new Endpoint();
+    // responses by status class, from 1xx to 5xx
+    private final LongAdder[] responses = new LongAdder[5];
+    private final Histogram playerLockWait = new Histogram(Histogram.LATENCY_BOUNDS);
+    private final Histogram globalLockWait = new Histogram(Histogram.LATENCY_BOUNDS);
+
+    Metrics() {
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a batch of heart rate measurements ingested.
+     * @param values the number of values of the batch.
+     */
+    void recordIngest(int values) {
+        ingestBatches.increment();
+        ingestValues.add(values);
+        ingestBatchSize.observe(values);
+    }
+
+    /**
+     * Records a batch of heart rate measurements dropped because it had already been ingested.
+     */
+    void recordDuplicate() {
+        ingestDuplicates.increment();
+    }
+
+    /**
+     * Records an upload of heart rate measurements rejected because the server was saturated.
+     */
+    void recordThrottled() {
+        ingestThrottled.increment();
+    }
+
+    /**
+     * Records a request served by the REST server.
+     * @param method the HTTP method.
+     * @param path the path of the request, without the query.
+     * @param status the HTTP status code of the response.
+     * @param nanos the time taken to serve the request, in nanoseconds.
+     */
+    void recordRequest(String method, String path, int status, long nanos) {
+        Endpoint endpoint = endpoints.get(path);
+        if (endpoint == null) {
+            endpoint = endpoints.size() < MAX_ENDPOINTS ? endpoints.computeIfAbsent(path, p -> new Endpoint()) : otherEndpoint;
+        }
+        int methodIndex = 0;
+        while (methodIndex < METHODS.length - 1 && !METHODS[methodIndex].equals(method)) methodIndex++;
+        endpoint.latency[methodIndex].observe(nanos);
+        if (status >= 100 && status < 600) responses[status / 100 - 1].increment();
+    }
+
+    /**
+     * Records the time waited to lock the measurements of a player.
+     */
+    void recordPlayerLockWait(long nanos) {
+        playerLockWait.observe(nanos);
+    }
+
+    /**
+     * Records the time waited to lock a stripe of the global rollups.
+     */
+    void recordGlobalLockWait(long nanos) {
+        globalLockWait.observe(nanos);
+    }
+
+    /**
+     * Renders all the metrics in the Prometheus text format.
+     * @param storage the current statistics of the measurement store.
+     * @param cache the current statistics of the query cache.
+     * @return the metrics.
+     */
+    String render(StorageStats storage, QueryCacheStats cache) {
+        StringBuilder out = new StringBuilder(4096);
+        header(out, "watchout_ingest_batches_total", "Batches of heart rate measurements ingested.", "counter");
+        out.append("watchout_ingest_batches_total ").append(ingestBatches.sum()).append('\n');
+        header(out, "watchout_ingest_values_total", "Heart rate values ingested.", "counter");
+        out.append("watchout_ingest_values_total ").append(ingestValues.sum()).append('\n');
+        header(out, "watchout_ingest_duplicates_total", "Retried batches dropped as duplicates.", "counter");
+        out.append("watchout_ingest_duplicates_total ").append(ingestDuplicates.sum()).append('\n');
+        header(out, "watchout_ingest_throttled_total", "Uploads rejected with 429 by the admission control.", "counter");
+        out.append("watchout_ingest_throttled_total ").append(ingestThrottled.sum()).append('\n');
+        header(out, "watchout_ingest_batch_size", "Number of values per ingested batch.", "histogram");
+        ingestBatchSize.appendTo(out, "watchout_ingest_batch_size", "", 1);
+
+        header(out, "watchout_http_request_duration_seconds", "Time to serve a REST request, streams excluded.", "histogram");
+        Map<String, Endpoint> sortedEndpoints = new TreeMap<>(endpoints);
+        sortedEndpoints.put("other", otherEndpoint);
+        for (Map.Entry<String, Endpoint> entry : sortedEndpoints.entrySet()) {
+            for (int i = 0; i < METHODS.length; i++) {
+                Histogram latency = entry.getValue().latency[i];
+                if (latency.count() == 0) continue;
+                String labels = "method=\"" + METHODS[i] + "\",path=\"" + escape(entry.getKey()) + "\"";
+                latency.appendTo(out, "watchout_http_request_duration_seconds", labels, 1e-9);
+            }
+        }
+        header(out, "watchout_http_responses_total", "REST responses by status class.", "counter");
+        for (int i = 0; i < responses.length; i++) {
+            out.append("watchout_http_responses_total{code=\"").append(i + 1).append("xx\"} ").append(responses[i].sum()).append('\n');
+        }
+
+        header(out, "watchout_store_lock_wait_seconds", "Time waited by ingestion to lock the measurement store.", "histogram");
+        playerLockWait.appendTo(out, "watchout_store_lock_wait_seconds", "lock=\"player\"", 1e-9);
+        globalLockWait.appendTo(out, "watchout_store_lock_wait_seconds", "lock=\"global\"", 1e-9);
+
+        header(out, "watchout_store_values", "Raw heart rate values stored.", "gauge");
+        out.append("watchout_store_values ").append(storage.getValues()).append('\n');
+        header(out, "watchout_store_estimated_bytes", "Estimated heap used by the measurement store.", "gauge");
+        out.append("watchout_store_estimated_bytes ").append(storage.getEstimatedBytes()).append('\n');
+        header(out, "watchout_player_values", "Raw heart rate values stored per player.", "gauge");
+        for (PlayerStorageStats player : storage.getPlayers()) {
+            out.append("watchout_player_values{player=\"").append(player.getId()).append("\"} ").append(player.getValues()).append('\n');
+        }
+        header(out, "watchout_player_estimated_bytes", "Estimated heap used by the measurements of a player.", "gauge");
+        for (PlayerStorageStats player : storage.getPlayers()) {
+            out.append("watchout_player_estimated_bytes{player=\"").append(player.getId()).append("\"} ").append(player.getEstimatedBytes()).append('\n');
+        }
+
+        header(out, "watchout_query_cache_requests_total", "Aggregation queries by outcome in the query cache.", "counter");
+        out.append("watchout_query_cache_requests_total{result=\"hit\"} ").append(cache.getHits()).append('\n');
+        out.append("watchout_query_cache_requests_total{result=\"miss\"} ").append(cache.getMisses()).append('\n');
+        out.append("watchout_query_cache_requests_total{result=\"coalesced\"} ").append(cache.getCoalesced()).append('\n');
+        header(out, "watchout_query_cache_entries", "Results in the query cache.", "gauge");
+        out.append("watchout_query_cache_entries ").append(cache.getEntries()).append('\n');
+
+        header(out, "watchout_jvm_heap_used_bytes", "Heap used by the JVM.", "gauge");
+        out.append("watchout_jvm_heap_used_bytes ").append(storage.getHeapUsedBytes()).append('\n');
+        header(out, "watchout_jvm_heap_max_bytes", "Maximum heap of the JVM.", "gauge");
+        out.append("watchout_jvm_heap_max_bytes ").append(storage.getHeapMaxBytes()).append('\n');
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Formats a number for the Prometheus text format.
+     */
+    static String format(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * The request latencies of a path, one histogram per HTTP method.
+     */
+    private static final class Endpoint {
+        private final Histogram[] latency = new Histogram[METHODS.length];
+
+        Endpoint() {
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] = new Histogram(Histogram.LATENCY_BOUNDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package administrator.server;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+
+/**
+ * Records the latency and the status of every request served by the REST server. Streams of server-sent events
+ * are excluded, as their duration is the one of the subscription.
+ */
+class MetricsFilter extends Filter {
+    private final Metrics metrics;
+
+    MetricsFilter(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        long start = System.nanoTime();
+        try {
+            chain.doFilter(exchange);
+        } finally {
+            String contentType = exchange.getResponseHeaders().getFirst("Content-Type");
+            if (contentType == null || !contentType.startsWith("text/event-stream")) {
+                metrics.recordRequest(exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+                        exchange.getResponseCode(), System.nanoTime() - start);
+            }
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Records the latency of the REST requests";
+    }
+}
@@ -0,0 +1,24 @@
+package administrator.server;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+/**
+ * MetricsService class provides the performance metrics of the server in the Prometheus text format.
+ */
+@Path("metrics")
+public class MetricsService {
+
+    /**
+     * Retrieves the metrics of ingestion, REST requests, locking and storage.
+     *
+     * @return A Response containing the metrics in the Prometheus text format
+     */
+    @GET
+    @Produces(Metrics.CONTENT_TYPE)
+    public Response getMetrics() {
+        return Response.ok(Server.getInstance().renderMetrics()).build();
+    }
+}
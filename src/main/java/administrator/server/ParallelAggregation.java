@@ -0,0 +1,147 @@
+package administrator.server;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs the aggregations over all the players on a fork-join pool of its own. The players are split in halves until
+ * each part is small enough, every part is aggregated into its own accumulator, and the partial accumulators are
+ * merged pairwise while the parts join. The pool has a configurable parallelism, separate from the workers of the
+ * rest server, so that a large query uses several cores but never takes the threads that ingest measurements.
+ * Queries over fewer players than the threshold run sequentially on the calling thread, where splitting would cost
+ * more than it saves.
+ * Every part reads the versions that its players last published, without taking their locks, as in the sequential
+ * case.
+ */
+class ParallelAggregation {
+    // each worker gets a few parts, so that a slow part does not leave the others idle
+    private static final int PARTS_PER_THREAD = 4;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    /**
+     * @param parallelism the number of threads of the pool, 1 to aggregate always sequentially.
+     * @param threshold the number of players from which the aggregations run in parallel.
+     */
+    ParallelAggregation(int parallelism, int threshold) {
+        this.pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        this.threshold = Math.max(1, threshold);
+    }
+
+    /**
+     * Accumulates the values of all the players.
+     * @param players the players.
+     * @param factory creates the partial accumulators.
+     * @param step adds the values of a player to an accumulator.
+     * @param acc the accumulator of the result.
+     */
+    <B extends Rollup.Bucket<B>> void accumulate(PlayerMeasurements[] players, Supplier<B> factory,
+                                                 BiConsumer<PlayerMeasurements, B> step, B acc) {
+        if (!isParallel(players.length)) {
+            for (PlayerMeasurements player : players) {
+                step.accept(player, acc);
+            }
+            return;
+        }
+        acc.merge(pool.invoke(new AccumulateTask<>(players, 0, players.length, leafSize(players.length), factory, step)));
+    }
+
+    /**
+     * Runs an action for every index of the players, for the queries with a result per player, which the action
+     * stores at the index.
+     * @param size the number of players.
+     * @param action the action, called once for each index from 0 to size - 1, from any thread.
+     */
+    void forEach(int size, IntConsumer action) {
+        if (!isParallel(size)) {
+            for (int i = 0; i < size; i++) {
+                action.accept(i);
+            }
+            return;
+        }
+        pool.invoke(new ForEachTask(0, size, leafSize(size), action));
+    }
+
+    /**
+     * Stops the threads of the pool.
+     */
+    void shutdown() {
+        if (pool != null) pool.shutdownNow();
+    }
+
+    private boolean isParallel(int size) {
+        return pool != null && size >= threshold;
+    }
+
+    private int leafSize(int size) {
+        return Math.max(1, size / (pool.getParallelism() * PARTS_PER_THREAD));
+    }
+
+    private static final class AccumulateTask<B extends Rollup.Bucket<B>> extends RecursiveTask<B> {
+        private final PlayerMeasurements[] players;
+        private final int from;
+        private final int to;
+        private final int leafSize;
+        private final Supplier<B> factory;
+        private final BiConsumer<PlayerMeasurements, B> step;
+
+        AccumulateTask(PlayerMeasurements[] players, int from, int to, int leafSize, Supplier<B> factory,
+                       BiConsumer<PlayerMeasurements, B> step) {
+            this.players = players;
+            this.from = from;
+            this.to = to;
+            this.leafSize = leafSize;
+            this.factory = factory;
+            this.step = step;
+        }
+
+        @Override
+        protected B compute() {
+            if (to - from <= leafSize) {
+                B acc = factory.get();
+                for (int i = from; i < to; i++) {
+                    step.accept(players[i], acc);
+                }
+                return acc;
+            }
+            int mid = (from + to) >>> 1;
+            AccumulateTask<B> left = new AccumulateTask<>(players, from, mid, leafSize, factory, step);
+            left.fork();
+            B right = new AccumulateTask<>(players, mid, to, leafSize, factory, step).compute();
+            B acc = left.join();
+            acc.merge(right);
+            return acc;
+        }
+    }
+
+    private static final class ForEachTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final int leafSize;
+        private final IntConsumer action;
+
+        ForEachTask(int from, int to, int leafSize, IntConsumer action) {
+            this.from = from;
+            this.to = to;
+            this.leafSize = leafSize;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= leafSize) {
+                for (int i = from; i < to; i++) {
+                    action.accept(i);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ForEachTask(from, mid, leafSize, action), new ForEachTask(mid, to, leafSize, action));
+        }
+    }
+}
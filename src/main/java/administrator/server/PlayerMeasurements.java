@@ -0,0 +1,684 @@
+package administrator.server;
+
+import beans.HeartRateMeasurements;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The heart rate values sent by a single player, ordered by timestamp. The most recent values are kept uncompressed
+ * in the head, made of primitive arrays; when the head is full it is sealed into a compressed chunk, which takes a
+ * fraction of the memory and is decoded on the fly by the queries.
+ * Cumulative counts and sums are maintained for the chunks and for the values of the head, so that the last n
+ * average decodes at most one chunk, and a time range aggregates the chunks entirely inside it from their summaries,
+ * decoding only the chunks at its edges.
+ * The values are also pre-aggregated in a rollup, which answers the statistics of long time ranges, and keeps
+ * them at a lower resolution once the raw values are evicted by the retention policy, and in a rollup of quantile
+ * sketches by minute and hour, which answers the percentiles.
+ * Every player has its own instance, which is the monitor of its writers: writers of different players never
+ * contend with each other. The batches are logged and added under the same lock, and the LSN of the last one is
+ * kept, so a snapshot taken under the lock contains exactly the records of the player up to that LSN.
+ * The readers of the raw values never take the lock: at the end of every change the writer publishes an immutable
+ * Version of the chunks and of the head, and a query reads the one current when it starts, so long queries and
+ * ingestion do not wait for each other. The arrays of a version are never modified where it can read them: the
+ * writer appends past the published sizes, and copies the arrays before any other change. An old version is
+ * reclaimed by the garbage collector once the last query reading it is done. The rollups are read under their own
+ * lock, taken for the buckets of one tier at a time, so the buckets may include a batch added after the version
+ * read for the edges of the range.
+ */
+class PlayerMeasurements {
+    // the head is sealed into a chunk when it reaches this number of values
+    static final int CHUNK_SIZE = 1024;
+    // the compactor seals the head of idle players once it has at least this number of values
+    static final int MIN_SEAL_SIZE = 64;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // the state of the writer, guarded by this
+    // the sealed chunks, ordered by time and not overlapping
+    private CompressedChunk[] chunks = new CompressedChunk[8];
+    private int chunkCount = 0;
+    // valuesBefore[i] and sumBefore[i] are the number and the sum of the values of the chunks before chunk i
+    private int[] valuesBefore = new int[8];
+    private double[] sumBefore = new double[8];
+    private int sealedCount = 0;
+    private double sealedSum = 0;
+
+    private long[] headTimestamps = new long[INITIAL_CAPACITY];
+    private double[] headValues = new double[INITIAL_CAPACITY];
+    // headPrefixSums[i] is the sum of the first i values of the head, so headPrefixSums[0] is always 0
+    private double[] headPrefixSums = new double[INITIAL_CAPACITY + 1];
+    private int headSize = 0;
+
+    // the sequence numbers of the batches already stored, to drop the retried ones
+    private final SequenceWindow sequences = new SequenceWindow();
+    // the LSN of the last record of the write-ahead log added to the measurements, 0 if none
+    private long lastLsn = 0;
+    // the raw values older than this timestamp may have been evicted
+    private long rawRetainedFrom = Long.MIN_VALUE;
+    private final Rollup<Aggregate> rollup = new Rollup<>(Aggregate::new);
+    private final Rollup<QuantileSketch> sketches = new Rollup<>(QuantileSketch.RESOLUTIONS, QuantileSketch::new);
+    // the raw values as of the end of the last change, read by the queries without the lock
+    private volatile Version current = new Version(this);
+
+    /**
+     * Adds a batch of measurements, keeping the values ordered by timestamp. Values normally arrive in order, so
+     * this is an append to the head in the common case, while values older than the head are merged into the
+     * sealed chunk they belong to.
+     * @param measurements the batch to be added.
+     */
+    synchronized void add(HeartRateMeasurements measurements) {
+        List<Double> values = measurements.getAverageHRList();
+        // the values are added in runs that share the same timestamp, which is the whole batch unless every value
+        // has its own timestamp
+        for (int from = 0, to; from < values.size(); from = to) {
+            long timestamp = measurements.getTimestamp(from);
+            to = from + 1;
+            while (to < values.size() && measurements.getTimestamp(to) == timestamp) to++;
+            add(timestamp, values.subList(from, to));
+        }
+        rollup.add(measurements);
+        sketches.add(measurements);
+        if (headSize >= CHUNK_SIZE) seal();
+        publish();
+    }
+
+    /**
+     * Adds values that share the same timestamp.
+     */
+    private void add(long timestamp, List<Double> values) {
+        if (chunkCount > 0 && timestamp < chunks[chunkCount - 1].getLastTimestamp()) {
+            addToChunk(timestamp, values);
+        } else {
+            addToHead(timestamp, values);
+        }
+    }
+
+    /**
+     * Marks the sequence number of a batch of this player as stored. Batches without a sequence number are always
+     * accepted. The caller must hold the lock of this object until the batch is logged, so that a duplicate that
+     * arrives meanwhile is rejected.
+     * @param sequence the sequence number of the batch, 0 if it has none.
+     * @return true if the batch must be stored, false if it is a duplicate of a batch already stored.
+     */
+    synchronized boolean acceptSequence(long sequence) {
+        return sequence <= 0 || sequences.accept(sequence);
+    }
+
+    /**
+     * Adds a batch just appended to the write-ahead log, whose sequence number has already been accepted. The
+     * caller must hold the lock of this object since before the batch was appended, so that the records of the
+     * player are added in LSN order.
+     * @param lsn the LSN of the record of the batch.
+     * @param measurements the batch.
+     */
+    synchronized void addLogged(long lsn, HeartRateMeasurements measurements) {
+        add(measurements);
+        lastLsn = lsn;
+    }
+
+    /**
+     * Adds a batch read from the write-ahead log, at recovery or on a replica, unless its record is already
+     * included, as the records taken in a snapshot are. The sequence numbers seen are rebuilt, so that the retries
+     * of logged batches are still dropped.
+     * @param lsn the LSN of the record of the batch.
+     * @param measurements the batch.
+     * @return true if the batch has been added.
+     */
+    synchronized boolean applyLogged(long lsn, HeartRateMeasurements measurements) {
+        if (lsn <= lastLsn) return false;
+        lastLsn = lsn;
+        if (!acceptSequence(measurements.getSequence())) return false;
+        add(measurements);
+        return true;
+    }
+
+    /**
+     * Inserts values in the head, shifting the newer ones if needed, and updates the cumulative sums.
+     */
+    private void addToHead(long timestamp, List<Double> batch) {
+        int k = batch.size();
+        int position = upperBound(headTimestamps, headSize, timestamp);
+        // the values before the published size may be read by a query, so they are shifted into a copy
+        if (position < current.headSize && headTimestamps == current.headTimestamps) {
+            resizeHead(Math.max(headSize + k, headTimestamps.length));
+        } else {
+            ensureHeadCapacity(headSize + k);
+        }
+        if (position < headSize) {
+            System.arraycopy(headTimestamps, position, headTimestamps, position + k, headSize - position);
+            System.arraycopy(headValues, position, headValues, position + k, headSize - position);
+        }
+        for (int i = 0; i < k; i++) {
+            headTimestamps[position + i] = timestamp;
+            headValues[position + i] = batch.get(i);
+        }
+        headSize += k;
+        for (int i = position; i < headSize; i++) {
+            headPrefixSums[i + 1] = headPrefixSums[i] + headValues[i];
+        }
+    }
+
+    /**
+     * Merges late values into the sealed chunk that covers their timestamp, by decoding and encoding it again.
+     */
+    private void addToChunk(long timestamp, List<Double> batch) {
+        int index = Math.max(0, lastChunkStartingAtOrBefore(chunks, chunkCount, timestamp));
+        CompressedChunk chunk = chunks[index];
+        int k = batch.size();
+        long[] timestamps = new long[chunk.getCount() + k];
+        double[] values = new double[chunk.getCount() + k];
+        chunk.decode(timestamps, values, 0);
+        int position = upperBound(timestamps, chunk.getCount(), timestamp);
+        System.arraycopy(timestamps, position, timestamps, position + k, chunk.getCount() - position);
+        System.arraycopy(values, position, values, position + k, chunk.getCount() - position);
+        for (int i = 0; i < k; i++) {
+            timestamps[position + i] = timestamp;
+            values[position + i] = batch.get(i);
+        }
+        unshareChunks();
+        chunks[index] = CompressedChunk.encode(timestamps, values, 0, timestamps.length);
+        recomputeCumulative(index);
+    }
+
+    /**
+     * Compresses the values of the head into a new chunk and empties the head. The new head has arrays of its own,
+     * since the published version may still read the old ones.
+     */
+    private void seal() {
+        if (headSize == 0) return;
+        if (chunkCount == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunkCount * 2);
+            valuesBefore = Arrays.copyOf(valuesBefore, chunkCount * 2);
+            sumBefore = Arrays.copyOf(sumBefore, chunkCount * 2);
+        }
+        chunks[chunkCount++] = CompressedChunk.encode(headTimestamps, headValues, 0, headSize);
+        headSize = 0;
+        recomputeCumulative(chunkCount - 1);
+        int capacity = headTimestamps.length;
+        headTimestamps = new long[capacity];
+        headValues = new double[capacity];
+        headPrefixSums = new double[capacity + 1];
+    }
+
+    /**
+     * Copies the arrays of the chunks before they are changed in place, if the published version reads them.
+     * Appending a chunk does not need a copy, since it only writes past the published count.
+     */
+    private void unshareChunks() {
+        if (chunks != current.chunks) return;
+        chunks = chunks.clone();
+        valuesBefore = valuesBefore.clone();
+        sumBefore = sumBefore.clone();
+    }
+
+    /**
+     * Publishes the state of the writer to the queries. Called under the lock at the end of every change.
+     */
+    private void publish() {
+        current = new Version(this);
+    }
+
+    /**
+     * Recomputes the cumulative counts and sums of the chunks from the given index onwards.
+     */
+    private void recomputeCumulative(int from) {
+        for (int i = from; i < chunkCount; i++) {
+            valuesBefore[i] = i == 0 ? 0 : valuesBefore[i - 1] + chunks[i - 1].getCount();
+            sumBefore[i] = i == 0 ? 0 : sumBefore[i - 1] + chunks[i - 1].getSum();
+        }
+        if (chunkCount == 0) {
+            sealedCount = 0;
+            sealedSum = 0;
+        } else {
+            CompressedChunk last = chunks[chunkCount - 1];
+            sealedCount = valuesBefore[chunkCount - 1] + last.getCount();
+            sealedSum = sumBefore[chunkCount - 1] + last.getSum();
+        }
+    }
+
+    /**
+     * @return true if no raw heart rate value is held for this player, before its first batch or once the retention
+     * has evicted all of them.
+     */
+    boolean isEmpty() {
+        return current.valuesCount() == 0;
+    }
+
+    /**
+     * @return true if the player has heart rate values that a range query can read: raw values, or the buckets of
+     * the rollup that keep the evicted ones.
+     */
+    boolean hasHistory() {
+        return !isEmpty() || !rollup.isEmpty();
+    }
+
+    /**
+     * @return the version of the raw values published by the last change, which stays the same for a reader that
+     * keeps it while the writers go on.
+     */
+    Version version() {
+        return current;
+    }
+
+    /**
+     * @return the number of heart rate values stored for this player.
+     */
+    int valuesCount() {
+        return current.valuesCount();
+    }
+
+    /**
+     * Computes the average of the last n values, that is the n values with the most recent timestamps. At most one
+     * chunk is decoded, the one where the last n values start.
+     * @param n the number of values.
+     * @return the average.
+     * @throws IllegalArgumentException if n <= 0 or n is bigger than the number of stored values.
+     * @throws NoSuchElementException if there are no stored values.
+     */
+    double averageLastN(int n) {
+        return current.averageLastN(n);
+    }
+
+    /**
+     * Adds the values whose timestamp is between t1 and t2 (inclusive) to the accumulator. Chunks entirely inside
+     * the range contribute their summary, the others are decoded.
+     * Meant for short ranges, longer ones should use accumulate.
+     * @param t1 the start timestamp.
+     * @param t2 the end timestamp.
+     * @param acc the accumulator.
+     */
+    void accumulateRange(long t1, long t2, Aggregate acc) {
+        current.accumulateRaw(t1, t2, acc);
+    }
+
+    /**
+     * Adds the values whose timestamp is between t1 and t2 (inclusive) to the sketch, decoding the chunks that
+     * overlap the range. Meant for short ranges, longer ones should use sketch.
+     * @param t1 the start timestamp.
+     * @param t2 the end timestamp.
+     * @param acc the sketch.
+     */
+    void sketchRange(long t1, long t2, QuantileSketch acc) {
+        current.sketchSource.accumulateRaw(t1, t2, acc);
+    }
+
+    /**
+     * @return the timestamp from which the raw values are complete, older ones may have been evicted.
+     */
+    long rawRetainedFrom() {
+        return current.rawRetainedFrom;
+    }
+
+    /**
+     * Adds the values whose timestamp is between t1 and t2 (inclusive) to the accumulator, reading the rollup
+     * buckets inside the range and the raw values only at its edges.
+     * @param t1 the start timestamp.
+     * @param t2 the end timestamp.
+     * @param acc the accumulator.
+     */
+    void accumulate(long t1, long t2, Aggregate acc) {
+        rollup.accumulate(t1, t2, current, acc);
+    }
+
+    /**
+     * Adds the values whose timestamp is between t1 and t2 (inclusive) to the sketch, merging the sketches of the
+     * minutes and hours inside the range and reading the raw values only at its edges.
+     * @param t1 the start timestamp.
+     * @param t2 the end timestamp.
+     * @param acc the sketch.
+     */
+    void sketch(long t1, long t2, QuantileSketch acc) {
+        sketches.accumulate(t1, t2, current.sketchSource, acc);
+    }
+
+    /**
+     * Evicts the raw values older than the cutoff. They remain available, at a lower resolution, in the rollup.
+     * Whole chunks are dropped, only the chunk containing the cutoff is decoded and encoded again.
+     * @param cutoff the timestamp before which values are evicted.
+     * @return true if the cutoff is newer than the previous one, so that values may have been evicted.
+     */
+    synchronized boolean evictBefore(long cutoff) {
+        if (cutoff <= rawRetainedFrom) return false;
+        rawRetainedFrom = cutoff;
+        int dropped = firstChunkEndingAtOrAfter(chunks, chunkCount, cutoff);
+        boolean partial = dropped < chunkCount && chunks[dropped].getFirstTimestamp() < cutoff;
+        if (dropped > 0 || partial) {
+            unshareChunks();
+            System.arraycopy(chunks, dropped, chunks, 0, chunkCount - dropped);
+            Arrays.fill(chunks, chunkCount - dropped, chunkCount, null);
+            chunkCount -= dropped;
+            if (partial) {
+                CompressedChunk chunk = chunks[0];
+                long[] timestamps = new long[chunk.getCount()];
+                double[] values = new double[chunk.getCount()];
+                chunk.decode(timestamps, values, 0);
+                int kept = lowerBound(timestamps, timestamps.length, cutoff);
+                chunks[0] = CompressedChunk.encode(timestamps, values, kept, timestamps.length);
+            }
+            recomputeCumulative(0);
+        }
+        if (chunkCount == 0) {
+            int evicted = lowerBound(headTimestamps, headSize, cutoff);
+            if (evicted > 0) {
+                // the kept values are moved into new arrays, the published ones may still be read
+                headSize -= evicted;
+                headTimestamps = Arrays.copyOfRange(headTimestamps, evicted, evicted + headTimestamps.length);
+                headValues = Arrays.copyOfRange(headValues, evicted, evicted + headValues.length);
+                headPrefixSums = new double[headTimestamps.length + 1];
+                for (int i = 0; i < headSize; i++) {
+                    headPrefixSums[i + 1] = headPrefixSums[i] + headValues[i];
+                }
+            }
+        }
+        publish();
+        return true;
+    }
+
+    /**
+     * Evicts about the given number of oldest raw values. Values that share the timestamp of the first value kept
+     * are kept as well, so that the retained values are complete from their oldest timestamp onwards.
+     * @param count the number of values to evict.
+     * @return true if values may have been evicted.
+     */
+    synchronized boolean evictOldest(int count) {
+        // under the lock the published version is the state of the writer
+        Version version = current;
+        int size = version.valuesCount();
+        if (count <= 0 || size == 0) return false;
+        return evictBefore(count >= size ? version.timestampAt(size - 1) + 1 : version.timestampAt(count));
+    }
+
+    /**
+     * Evicts the buckets of a tier of the rollup older than the cutoff, together with the sketches of the same
+     * resolution.
+     * @param tier the index of the tier in Rollup.RESOLUTIONS.
+     * @param cutoff the timestamp before which buckets are evicted.
+     */
+    void evictRollupBefore(int tier, long cutoff) {
+        rollup.evictBefore(tier, cutoff);
+        sketches.evictResolutionBefore(Rollup.RESOLUTIONS[tier], cutoff);
+    }
+
+    /**
+     * Seals the head into a chunk if it holds enough values, so that the values of players that send rarely get
+     * compressed too, then shrinks the head arrays if they have grown much larger than their content.
+     */
+    synchronized void compact() {
+        if (headSize >= MIN_SEAL_SIZE) seal();
+        int capacity = Math.max(headSize, INITIAL_CAPACITY);
+        if (headTimestamps.length - capacity > capacity / 4) {
+            resizeHead(capacity);
+        }
+        publish();
+    }
+
+    /**
+     * @return the estimated number of bytes of heap used by the raw values, the rollup and the sketches.
+     */
+    synchronized long estimatedBytes() {
+        return rawBytes() + rollup.estimatedBytes() + sketches.estimatedBytes();
+    }
+
+    /**
+     * @return the estimated number of bytes of heap used by the raw values only, the part freed by their eviction.
+     */
+    synchronized long rawBytes() {
+        long bytes = 24L * headTimestamps.length + 24L * chunks.length;
+        for (int i = 0; i < chunkCount; i++) {
+            bytes += chunks[i].estimatedBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Adds the rollup and the sketches of this player to the global ones, which are rebuilt this way when the
+     * players are loaded from a snapshot.
+     * @param globalRollup the rollup of the values of all the players.
+     * @param globalSketches the rollup of the sketches of all the players.
+     */
+    void mergeRollupsInto(Rollup<Aggregate> globalRollup, Rollup<QuantileSketch> globalSketches) {
+        globalRollup.merge(rollup);
+        globalSketches.merge(sketches);
+    }
+
+    /**
+     * Writes the measurements to a snapshot: the LSN of the last record added, the sequence numbers seen and the
+     * retention, then the chunks and the head in columns, then the rollup and the sketches.
+     * @param out the output.
+     */
+    synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeLong(lastLsn);
+        out.writeLong(sequences.getHighest());
+        out.writeLong(sequences.getSeen());
+        out.writeLong(rawRetainedFrom);
+        CompressedChunk.writeColumns(chunks, chunkCount, out);
+        out.writeInt(headSize);
+        for (int i = 0; i < headSize; i++) out.writeLong(headTimestamps[i]);
+        for (int i = 0; i < headSize; i++) out.writeDouble(headValues[i]);
+        rollup.writeTo(out, Aggregate.CODEC);
+        sketches.writeTo(out, QuantileSketch.CODEC);
+    }
+
+    /**
+     * Reads measurements written by writeTo. The compressed chunks stay in the buffer until they are first decoded.
+     * @param in the buffer, which must stay valid for the lifetime of the measurements, as a mapped file does.
+     * @return the measurements.
+     */
+    static PlayerMeasurements readFrom(ByteBuffer in) {
+        PlayerMeasurements measurements = new PlayerMeasurements();
+        synchronized (measurements) {
+            measurements.lastLsn = in.getLong();
+            long highest = in.getLong();
+            measurements.sequences.restore(highest, in.getLong());
+            measurements.rawRetainedFrom = in.getLong();
+            CompressedChunk[] chunks = CompressedChunk.readColumns(in);
+            int capacity = Math.max(8, chunks.length);
+            measurements.chunks = Arrays.copyOf(chunks, capacity);
+            measurements.chunkCount = chunks.length;
+            measurements.valuesBefore = new int[capacity];
+            measurements.sumBefore = new double[capacity];
+            measurements.recomputeCumulative(0);
+            int headSize = in.getInt();
+            measurements.ensureHeadCapacity(headSize);
+            for (int i = 0; i < headSize; i++) measurements.headTimestamps[i] = in.getLong();
+            for (int i = 0; i < headSize; i++) {
+                measurements.headValues[i] = in.getDouble();
+                measurements.headPrefixSums[i + 1] = measurements.headPrefixSums[i] + measurements.headValues[i];
+            }
+            measurements.headSize = headSize;
+            measurements.rollup.readFrom(in, Aggregate.CODEC);
+            measurements.sketches.readFrom(in, QuantileSketch.CODEC);
+            measurements.publish();
+        }
+        return measurements;
+    }
+
+    /**
+     * Grows the head arrays, if needed, so that they can hold at least the given number of values.
+     */
+    private void ensureHeadCapacity(int capacity) {
+        if (capacity <= headTimestamps.length) return;
+        resizeHead(Math.max(capacity, headTimestamps.length * 2));
+    }
+
+    private void resizeHead(int capacity) {
+        headTimestamps = Arrays.copyOf(headTimestamps, capacity);
+        headValues = Arrays.copyOf(headValues, capacity);
+        headPrefixSums = Arrays.copyOf(headPrefixSums, capacity + 1);
+    }
+
+    /**
+     * @return the index of the chunk, among the first count, that contains the value with the given index, which
+     * must be sealed.
+     */
+    private static int chunkContaining(int[] valuesBefore, int count, int index) {
+        int low = 0, high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (valuesBefore[mid] <= index) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the first of the first count chunks whose last timestamp is greater than or equal to t.
+     */
+    private static int firstChunkEndingAtOrAfter(CompressedChunk[] chunks, int count, long t) {
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (chunks[mid].getLastTimestamp() < t) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the last of the first count chunks whose first timestamp is less than or equal to t, -1
+     * if there is none.
+     */
+    private static int lastChunkStartingAtOrBefore(CompressedChunk[] chunks, int count, long t) {
+        int low = 0, high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (chunks[mid].getFirstTimestamp() <= t) low = mid + 1;
+            else high = mid;
+        }
+        return low - 1;
+    }
+
+    /**
+     * @return the index of the first of the first size timestamps that is greater than or equal to t.
+     */
+    private static int lowerBound(long[] timestamps, int size, long t) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < t) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the first of the first size timestamps that is strictly greater than t.
+     */
+    private static int upperBound(long[] timestamps, int size, long t) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] <= t) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * An immutable view of the raw values of the player, published by the writer at the end of every change. It
+     * shares the arrays of the writer, but reads only the parts that the writer never changes again.
+     */
+    static final class Version implements Rollup.RawSource<Aggregate> {
+        private final CompressedChunk[] chunks;
+        private final int chunkCount;
+        private final int[] valuesBefore;
+        private final double[] sumBefore;
+        private final int sealedCount;
+        private final double sealedSum;
+        private final long[] headTimestamps;
+        private final double[] headValues;
+        private final double[] headPrefixSums;
+        private final int headSize;
+        private final long rawRetainedFrom;
+        private final Rollup.RawSource<QuantileSketch> sketchSource = new Rollup.RawSource<QuantileSketch>() {
+            @Override
+            public void accumulateRaw(long t1, long t2, QuantileSketch acc) {
+                for (int i = firstChunkEndingAtOrAfter(chunks, chunkCount, t1); i < chunkCount && chunks[i].getFirstTimestamp() <= t2; i++) {
+                    chunks[i].accumulateRange(t1, t2, acc);
+                }
+                for (int i = lowerBound(headTimestamps, headSize, t1); i < headSize && headTimestamps[i] <= t2; i++) {
+                    acc.add(headValues[i]);
+                }
+            }
+
+            @Override
+            public long rawRetainedFrom() {
+                return rawRetainedFrom;
+            }
+        };
+
+        /**
+         * Takes the state of the writer, whose lock must be held.
+         */
+        private Version(PlayerMeasurements writer) {
+            chunks = writer.chunks;
+            chunkCount = writer.chunkCount;
+            valuesBefore = writer.valuesBefore;
+            sumBefore = writer.sumBefore;
+            sealedCount = writer.sealedCount;
+            sealedSum = writer.sealedSum;
+            headTimestamps = writer.headTimestamps;
+            headValues = writer.headValues;
+            headPrefixSums = writer.headPrefixSums;
+            headSize = writer.headSize;
+            rawRetainedFrom = writer.rawRetainedFrom;
+        }
+
+        int valuesCount() {
+            return sealedCount + headSize;
+        }
+
+        double averageLastN(int n) {
+            int size = valuesCount();
+            if (size == 0) throw new NoSuchElementException("there are no measurements");
+            if (n > size || n <= 0) {
+                throw new IllegalArgumentException("'n' must be > 0 and not bigger than the number of HR values, got:"+ n + " but there are "+ size +" HR values");
+            }
+            double totalSum = sealedSum + headPrefixSums[headSize];
+            return (totalSum - sumOfFirst(size - n)) / n;
+        }
+
+        /**
+         * @return the sum of the k oldest values.
+         */
+        private double sumOfFirst(int k) {
+            if (k >= sealedCount) return sealedSum + headPrefixSums[k - sealedCount];
+            int index = chunkContaining(valuesBefore, chunkCount, k);
+            return sumBefore[index] + chunks[index].sumOfFirst(k - valuesBefore[index]);
+        }
+
+        /**
+         * @return the timestamp of the value with the given index, counting from the oldest.
+         */
+        private long timestampAt(int index) {
+            if (index >= sealedCount) return headTimestamps[index - sealedCount];
+            int chunk = chunkContaining(valuesBefore, chunkCount, index);
+            return chunks[chunk].timestampAt(index - valuesBefore[chunk]);
+        }
+
+        @Override
+        public void accumulateRaw(long t1, long t2, Aggregate acc) {
+            for (int i = firstChunkEndingAtOrAfter(chunks, chunkCount, t1); i < chunkCount; i++) {
+                CompressedChunk chunk = chunks[i];
+                if (chunk.getFirstTimestamp() > t2) break;
+                if (chunk.getFirstTimestamp() >= t1 && chunk.getLastTimestamp() <= t2) {
+                    chunk.mergeInto(acc);
+                } else {
+                    chunk.accumulateRange(t1, t2, acc);
+                }
+            }
+            for (int i = lowerBound(headTimestamps, headSize, t1); i < headSize && headTimestamps[i] <= t2; i++) {
+                acc.add(headValues[i]);
+            }
+        }
+
+        @Override
+        public long rawRetainedFrom() {
+            return rawRetainedFrom;
+        }
+    }
+}
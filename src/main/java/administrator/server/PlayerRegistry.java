@@ -0,0 +1,141 @@
+package administrator.server;
+
+import beans.Player;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * The registered players, in order of registration, with a version that grows by one at every registration.
+ * Players are only appended, so the version is also the number of players, and the changes since a version are
+ * the players registered after it. A version is only meaningful within an epoch: a random number drawn when the
+ * registry is created, which happens when a server or a router starts, possibly with no data, and drawn again when
+ * all the players are replaced. A client that knows the players of another epoch must fetch them all again.
+ * Readers get an immutable snapshot without locking: the players are kept in an append-only array, and a snapshot
+ * is the array together with the number of players it was taken at, published through a volatile field. The
+ * entries below that number never change, so a snapshot stays consistent while new players are appended.
+ * Registrations are serialized by the lock of this object.
+ */
+class PlayerRegistry {
+    private static final Random EPOCHS = new Random();
+    private final Set<Integer> ids = new HashSet<>();
+    private Player[] players = new Player[16];
+    private volatile Snapshot snapshot = new Snapshot(newEpoch(), players, 0);
+
+    /**
+     * @return true if a player with the given id is registered.
+     */
+    synchronized boolean contains(int id) {
+        return ids.contains(id);
+    }
+
+    /**
+     * Registers a player and publishes a new snapshot.
+     * @param player the player, whose id must not be registered yet.
+     */
+    synchronized void add(Player player) {
+        int size = snapshot.size;
+        if (size == players.length) {
+            players = Arrays.copyOf(players, size * 2);
+        }
+        players[size] = player;
+        ids.add(player.getId());
+        snapshot = new Snapshot(snapshot.epoch, players, size + 1);
+    }
+
+    /**
+     * Replaces all the players, as when a read replica loads the snapshot of its primary, and publishes a new
+     * snapshot in a new epoch.
+     * @param players the players, in order of registration, with unique ids.
+     */
+    synchronized void reset(List<Player> players) {
+        this.players = players.toArray(new Player[Math.max(16, players.size())]);
+        ids.clear();
+        for (Player player : players) {
+            ids.add(player.getId());
+        }
+        snapshot = new Snapshot(newEpoch(), this.players, players.size());
+    }
+
+    /**
+     * @return the current snapshot of the players.
+     */
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return a new random epoch, positive so that it is never confused with a missing one.
+     */
+    private static long newEpoch() {
+        synchronized (EPOCHS) {
+            return EPOCHS.nextLong() & Long.MAX_VALUE | 1;
+        }
+    }
+
+    /**
+     * An immutable view of the players at a version.
+     */
+    static final class Snapshot {
+        private final long epoch;
+        private final Player[] players;
+        private final int size;
+
+        private Snapshot(long epoch, Player[] players, int size) {
+            this.epoch = epoch;
+            this.players = players;
+            this.size = size;
+        }
+
+        /**
+         * @return the epoch of the registry, within which the versions are comparable.
+         */
+        long getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * @return the version of the registry, the number of registrations it has seen.
+         */
+        long getVersion() {
+            return size;
+        }
+
+        /**
+         * @return the number of players.
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * @param offset the index of the first player, in order of registration.
+         * @param limit the maximum number of players.
+         * @return a copy of the players in the page, empty if the offset is past the last player.
+         */
+        List<Player> page(int offset, int limit) {
+            int from = Math.min(offset, size);
+            int to = (int) Math.min((long) from + limit, size);
+            return new ArrayList<>(Arrays.asList(players).subList(from, to));
+        }
+
+        /**
+         * @return a copy of all the players.
+         */
+        List<Player> all() {
+            return page(0, size);
+        }
+
+        /**
+         * @param version a version of the registry, not greater than the one of this snapshot.
+         * @return the players registered since the given version.
+         */
+        List<Player> since(long version) {
+            return page((int) version, size);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package administrator.server;
+
+import beans.HeartRateMeasurements;
+import com.google.protobuf.InvalidProtocolBufferException;
+import measurements.HeartRateUploadOuterClass.HeartRateUpload;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the heart rate measurements uploaded in the protobuf format of HeartRateUpload, rebuilding the timestamp
+ * of every value from the deltas.
+ */
+@Provider
+@Consumes(ProtobufMeasurementsReader.MEDIA_TYPE)
+public class ProtobufMeasurementsReader implements MessageBodyReader<HeartRateMeasurements> {
+    static final String MEDIA_TYPE = "application/x-protobuf";
+
+    @Override
+    public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+        return type == HeartRateMeasurements.class;
+    }
+
+    @Override
+    public HeartRateMeasurements readFrom(Class<HeartRateMeasurements> type, Type genericType, Annotation[] annotations,
+                                          MediaType mediaType, MultivaluedMap<String, String> httpHeaders,
+                                          InputStream entityStream) throws IOException {
+        HeartRateUpload upload;
+        try {
+            upload = HeartRateUpload.parseFrom(entityStream);
+        } catch (InvalidProtocolBufferException e) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity("Malformed HeartRateUpload: " + e.getMessage()).build());
+        }
+        int count = upload.getAveragesCount();
+        if (upload.getTimestampDeltasCount() != count) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                    .entity("There are " + upload.getTimestampDeltasCount() + " timestamps for " + count + " HR values").build());
+        }
+        List<Long> timestamps = new ArrayList<>(count);
+        List<Double> values = new ArrayList<>(count);
+        long timestamp = upload.getBaseTimestamp();
+        for (int i = 0; i < count; i++) {
+            timestamp += upload.getTimestampDeltas(i);
+            timestamps.add(timestamp);
+            values.add(upload.getAverages(i));
+        }
+        HeartRateMeasurements measurements = new HeartRateMeasurements(upload.getId(), timestamps, values);
+        measurements.setSequence(upload.getSequence());
+        return measurements;
+    }
+}
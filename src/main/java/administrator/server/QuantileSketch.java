@@ -0,0 +1,195 @@
+package administrator.server;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A mergeable sketch of the distribution of heart rate values, which answers quantiles with a bounded relative
+ * error, in the style of DDSketch. Values are counted in logarithmic buckets, bucket i covering
+ * (GAMMA^(i-1), GAMMA^i], so that any value of a bucket is within RELATIVE_ACCURACY of the value reported for it.
+ * The buckets are stored densely between the lowest and the highest used, which for heart rates spans a few dozen
+ * buckets. Values are bucketed within [MIN_BUCKETED, MAX_BUCKETED] bpm, so a sketch never has more than a few
+ * hundred buckets; values outside these bounds are counted in the first or last bucket, and values not greater than
+ * zero in a bucket of their own, reported as 0. Minimum and maximum are exact, and clamp the reported quantiles.
+ * Two sketches are merged by summing their buckets, so the sketch of a time range is the merge of the sketches of
+ * its buckets, with the same accuracy.
+ * This class is not thread safe.
+ */
+class QuantileSketch implements Rollup.Bucket<QuantileSketch> {
+    // the resolutions of the tiers of the rollups of sketches: minutes and hours
+    static final long[] RESOLUTIONS = {60_000L, 3_600_000L};
+    static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final double MIN_BUCKETED = 1;
+    private static final double MAX_BUCKETED = 1000;
+    private static final int MIN_INDEX = index(MIN_BUCKETED);
+    private static final int MAX_INDEX = index(MAX_BUCKETED);
+    // estimated heap footprint besides the counts: object header, fields and array header
+    private static final int BYTES = 72;
+    // writes the buckets of a rollup in columns: the counts, the zero counts, the minimums, the maximums, the
+    // offsets and the number of counts of every sketch, then the counts of all of them
+    static final Rollup.Codec<QuantileSketch> CODEC = new Rollup.Codec<QuantileSketch>() {
+        @Override
+        public void write(List<QuantileSketch> buckets, DataOutput out) throws IOException {
+            for (QuantileSketch sketch : buckets) out.writeLong(sketch.count);
+            for (QuantileSketch sketch : buckets) out.writeLong(sketch.zeroCount);
+            for (QuantileSketch sketch : buckets) out.writeDouble(sketch.min);
+            for (QuantileSketch sketch : buckets) out.writeDouble(sketch.max);
+            for (QuantileSketch sketch : buckets) out.writeInt(sketch.offset);
+            for (QuantileSketch sketch : buckets) out.writeInt(sketch.counts.length);
+            for (QuantileSketch sketch : buckets) {
+                for (long bucketCount : sketch.counts) out.writeLong(bucketCount);
+            }
+        }
+
+        @Override
+        public List<QuantileSketch> read(ByteBuffer in, int size) {
+            List<QuantileSketch> buckets = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                QuantileSketch sketch = new QuantileSketch();
+                sketch.count = in.getLong();
+                buckets.add(sketch);
+            }
+            for (QuantileSketch sketch : buckets) sketch.zeroCount = in.getLong();
+            for (QuantileSketch sketch : buckets) sketch.min = in.getDouble();
+            for (QuantileSketch sketch : buckets) sketch.max = in.getDouble();
+            for (QuantileSketch sketch : buckets) sketch.offset = in.getInt();
+            for (QuantileSketch sketch : buckets) sketch.counts = new long[in.getInt()];
+            for (QuantileSketch sketch : buckets) {
+                for (int i = 0; i < sketch.counts.length; i++) sketch.counts[i] = in.getLong();
+            }
+            return buckets;
+        }
+    };
+
+    // counts[i] is the number of values in bucket offset + i
+    private long[] counts = new long[0];
+    private int offset = 0;
+    private long zeroCount = 0;
+    private long count = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    private static int index(double value) {
+        return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    /**
+     * @return the value reported for the values of a bucket, within the relative accuracy of all of them.
+     */
+    private static double value(int index) {
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+
+    /**
+     * Adds a single value. NaN is ignored.
+     * @param value the value.
+     */
+    @Override
+    public void add(double value) {
+        if (Double.isNaN(value)) return;
+        count++;
+        if (value < min) min = value;
+        if (value > max) max = value;
+        if (value <= 0) {
+            zeroCount++;
+            return;
+        }
+        int index = Math.max(MIN_INDEX, Math.min(MAX_INDEX, index(value)));
+        ensureCovers(index, index);
+        counts[index - offset]++;
+    }
+
+    /**
+     * Adds all the values counted by another sketch.
+     * @param other the other sketch.
+     */
+    @Override
+    public void merge(QuantileSketch other) {
+        if (other.count == 0) return;
+        if (other.counts.length > 0) {
+            ensureCovers(other.offset, other.offset + other.counts.length - 1);
+            for (int i = 0; i < other.counts.length; i++) {
+                counts[other.offset + i - offset] += other.counts[i];
+            }
+        }
+        zeroCount += other.zeroCount;
+        count += other.count;
+        if (other.min < min) min = other.min;
+        if (other.max > max) max = other.max;
+    }
+
+    /**
+     * Grows the counts, if needed, so that they cover the buckets from low to high.
+     */
+    private void ensureCovers(int low, int high) {
+        if (counts.length == 0) {
+            counts = new long[high - low + 1];
+            offset = low;
+            return;
+        }
+        int currentHigh = offset + counts.length - 1;
+        if (low >= offset && high <= currentHigh) return;
+        int newOffset = Math.min(low, offset);
+        long[] newCounts = new long[Math.max(high, currentHigh) - newOffset + 1];
+        System.arraycopy(counts, 0, newCounts, offset - newOffset, counts.length);
+        counts = newCounts;
+        offset = newOffset;
+    }
+
+    /**
+     * Computes a quantile of the values.
+     * @param q the quantile, between 0 and 1.
+     * @return the value with rank q * (count - 1), within the relative accuracy, NaN if the sketch is empty.
+     */
+    double quantile(double q) {
+        if (count == 0) return Double.NaN;
+        long rank = (long) Math.floor(q * (count - 1));
+        if (rank < zeroCount) return Math.max(min, Math.min(0, max));
+        long seen = zeroCount;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen > rank) {
+                return Math.max(min, Math.min(value(offset + i), max));
+            }
+        }
+        return max;
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the minimum value, +Infinity if the sketch is empty.
+     */
+    double getMin() {
+        return min;
+    }
+
+    /**
+     * @return the maximum value, -Infinity if the sketch is empty.
+     */
+    double getMax() {
+        return max;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return BYTES + 8L * counts.length;
+    }
+
+    @Override
+    public String toString() {
+        return "QuantileSketch{offset=" + offset + ", counts=" + Arrays.toString(counts) + ", zeroCount=" + zeroCount + '}';
+    }
+}
@@ -0,0 +1,263 @@
+package administrator.server;
+
+import beans.HeartRateMeasurements;
+import beans.QueryCacheStats;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * A cache of the results of the aggregation queries, bounded with LRU eviction. A query is computed by the first
+ * caller only: the callers that ask for the same query while it is being computed wait for its result instead of
+ * computing it again. The entries are invalidated precisely when new measurements could change them: a last n
+ * average when its player sends measurements, a range aggregate, also by player, when measurements fall inside its
+ * range.
+ * The keys are indexed by player and by the end of their range, so a batch finds the entries it invalidates
+ * without scanning the cache: only the ranges that end at or after its oldest timestamp are checked, and the
+ * measurements normally arrive in time order while most cached ranges end in the past.
+ * An entry invalidated while its query is being computed is removed right away, so the possibly stale result
+ * reaches only the callers that were already waiting for it.
+ * This class is thread safe.
+ */
+class QueryCache {
+    private final int maxEntries;
+    // iterated from the least recently used entry
+    private final LinkedHashMap<Key, Entry> entries;
+    // the keys of the cached last n averages, by player
+    private final Map<Integer, Set<Key>> lastNByPlayer = new HashMap<>();
+    // the keys of the cached range queries, by the end of their range
+    private final TreeMap<Long, Set<Key>> rangesByEnd = new TreeMap<>();
+    private long hits = 0;
+    private long misses = 0;
+    private long coalesced = 0;
+    private long invalidations = 0;
+
+    /**
+     * @param maxEntries the maximum number of cached results, 0 disables the cache.
+     */
+    QueryCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() <= QueryCache.this.maxEntries) return false;
+                unindex(eldest.getKey());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns the result of a query, computing it only if it is neither cached nor being computed by another
+     * caller. Exceptions are not cached: they are thrown to the caller that computed the query and to the callers
+     * waiting for it.
+     * @param key the key of the query.
+     * @param query the computation of the query.
+     * @return the result of the query.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(Key key, Supplier<T> query) {
+        if (maxEntries <= 0) return query.get();
+        Entry entry;
+        boolean owner;
+        synchronized (this) {
+            entry = entries.get(key);
+            owner = entry == null;
+            if (owner) {
+                misses++;
+                entry = new Entry();
+                entries.put(key, entry);
+                index(key);
+            } else if (entry.isDone()) {
+                hits++;
+            } else {
+                coalesced++;
+            }
+        }
+        // the cache is not locked while waiting, or a failing computation could not remove its entry
+        if (!owner) return (T) entry.await();
+        try {
+            T result = query.get();
+            entry.complete(result, null);
+            return result;
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (entries.remove(key, entry)) unindex(key);
+            }
+            entry.complete(null, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Invalidates the entries whose result could be changed by a batch of measurements.
+     * @param measurements the batch, just stored.
+     */
+    synchronized void invalidate(HeartRateMeasurements measurements) {
+        if (entries.isEmpty()) return;
+        List<Double> values = measurements.getAverageHRList();
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < values.size(); i++) {
+            min = Math.min(min, measurements.getTimestamp(i));
+            max = Math.max(max, measurements.getTimestamp(i));
+        }
+        List<Key> invalidated = new ArrayList<>();
+        Set<Key> lastN = lastNByPlayer.get(measurements.getId());
+        if (lastN != null) invalidated.addAll(lastN);
+        for (Set<Key> keys : rangesByEnd.tailMap(min, true).values()) {
+            for (Key key : keys) {
+                if (key.t1 <= max) invalidated.add(key);
+            }
+        }
+        for (Key key : invalidated) {
+            entries.remove(key);
+            unindex(key);
+            invalidations++;
+        }
+    }
+
+    /**
+     * Invalidates the entries whose result could be changed by the eviction of old values.
+     * @param lastN true if raw values have been evicted, so that the last n averages may change.
+     * @param before the range averages starting before this timestamp are invalidated.
+     */
+    synchronized void invalidateEvicted(boolean lastN, long before) {
+        for (Iterator<Key> iterator = entries.keySet().iterator(); iterator.hasNext(); ) {
+            Key key = iterator.next();
+            if (key.kind == Key.LAST_N ? lastN : key.t1 < before) {
+                iterator.remove();
+                unindex(key);
+                invalidations++;
+            }
+        }
+    }
+
+    private void index(Key key) {
+        if (key.kind == Key.LAST_N) {
+            lastNByPlayer.computeIfAbsent(key.player, player -> new HashSet<>()).add(key);
+        } else {
+            rangesByEnd.computeIfAbsent(key.t2, end -> new HashSet<>()).add(key);
+        }
+    }
+
+    private void unindex(Key key) {
+        if (key.kind == Key.LAST_N) {
+            Set<Key> keys = lastNByPlayer.get(key.player);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) lastNByPlayer.remove(key.player);
+        } else {
+            Set<Key> keys = rangesByEnd.get(key.t2);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) rangesByEnd.remove(key.t2);
+        }
+    }
+
+    /**
+     * @return the statistics of the cache.
+     */
+    synchronized QueryCacheStats getStats() {
+        return new QueryCacheStats(entries.size(), maxEntries, hits, misses, coalesced, invalidations);
+    }
+
+    /**
+     * The key of a cached query.
+     */
+    static final class Key {
+        private static final int LAST_N = 0;
+        private static final int RANGE = 1;
+        private static final int RANGE_BY_PLAYER = 2;
+
+        private final int kind;
+        private final int player;
+        private final long n;
+        private final long t1;
+        private final long t2;
+
+        private Key(int kind, int player, long n, long t1, long t2) {
+            this.kind = kind;
+            this.player = player;
+            this.n = n;
+            this.t1 = t1;
+            this.t2 = t2;
+        }
+
+        /**
+         * @return the key of the average of the last n values of a player.
+         */
+        static Key lastN(int player, int n) {
+            return new Key(LAST_N, player, n, 0, 0);
+        }
+
+        /**
+         * @return the key of the aggregate of the values of all the players between t1 and t2.
+         */
+        static Key range(long t1, long t2) {
+            return new Key(RANGE, 0, 0, t1, t2);
+        }
+
+        /**
+         * @return the key of the aggregates of the values of each player between t1 and t2.
+         */
+        static Key rangeByPlayer(long t1, long t2) {
+            return new Key(RANGE_BY_PLAYER, 0, 0, t1, t2);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return kind == key.kind && player == key.player && n == key.n && t1 == key.t1 && t2 == key.t2;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = kind;
+            result = 31 * result + player;
+            result = 31 * result + Long.hashCode(n);
+            result = 31 * result + Long.hashCode(t1);
+            result = 31 * result + Long.hashCode(t2);
+            return result;
+        }
+    }
+
+    /**
+     * The result of a query, available once its computation completes.
+     */
+    private static final class Entry {
+        private boolean done = false;
+        private Object result;
+        private RuntimeException failure;
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        synchronized void complete(Object result, RuntimeException failure) {
+            this.result = result;
+            this.failure = failure;
+            done = true;
+            notifyAll();
+        }
+
+        synchronized Object await() {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+            }
+            if (failure != null) throw failure;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package administrator.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * The thread of a read replica that follows the write-ahead log of its primary (see ReplicationSource) and
+ * applies every record to the server, in LSN order, through the same path as the recovery. The replica keeps no
+ * log of its own: when it starts, or reconnects, it asks the primary for the records after the last one it
+ * applied. If the primary no longer has them, it sends its latest snapshot first, which replaces the whole state of
+ * the replica. A replica that finds a gap in the records, or fails to apply one, resynchronizes the same way, asking
+ * for LSN 0 when it reconnects.
+ * The LSN of the last applied record is the version of the data served by the replica, which a read can require
+ * to see its own writes. The lag is computed from the heartbeats of the primary: the number of durable records
+ * not applied yet, and the time since the replica was last known to have applied everything the primary had.
+ */
+class ReplicaFollower extends Thread {
+    private static final long RECONNECT_DELAY = 1000;
+    // without frames for this long the primary is considered gone
+    private static final int READ_TIMEOUT = (int) (ReplicationSource.HEARTBEAT_INTERVAL * 10);
+
+    private final Server server;
+    private final String host;
+    private final int port;
+    private final Path snapshotDir;
+    // owned by this thread: the state of the replica is replaced by a snapshot at the next connection
+    private boolean resynchronize = false;
+    // guarded by this
+    private long appliedLsn;
+    private long primaryLsn;
+    private long upToDateAt = -1;
+    private boolean connected;
+
+    /**
+     * @param server the replica server to which the records are applied.
+     * @param primary the address of the replication port of the primary, as host:port.
+     * @param snapshotDir the directory where the snapshots received from the primary are stored.
+     */
+    ReplicaFollower(Server server, String primary, Path snapshotDir) {
+        super("replica-follower");
+        setDaemon(true);
+        this.server = server;
+        int colon = primary.lastIndexOf(':');
+        if (colon < 0) throw new IllegalArgumentException("watchout.replicaOf must be host:port, instead got: " + primary);
+        this.host = primary.substring(0, colon);
+        this.port = Integer.parseInt(primary.substring(colon + 1));
+        this.snapshotDir = snapshotDir;
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), READ_TIMEOUT);
+                socket.setSoTimeout(READ_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                long fromLsn = resynchronize ? 0 : appliedLsn() + 1;
+                out.writeLong(fromLsn);
+                out.flush();
+                setConnected(true);
+                System.out.println("Following the primary " + host + ":" + port + " from LSN " + fromLsn);
+                follow(new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024)));
+            } catch (IOException e) {
+                System.out.println("Lost the primary " + host + ":" + port + ": " + e.getMessage());
+            } catch (RuntimeException e) {
+                // a record or a snapshot that cannot be applied: the state may be partial, so it is replaced
+                System.out.println("Failed to apply the log of the primary, resynchronizing: " + e);
+                resynchronize = true;
+            } finally {
+                setConnected(false);
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies the frames sent by the primary until the connection fails.
+     * @throws IOException if the connection fails, or the primary skipped records: the replica would silently
+     * diverge, so it resynchronizes from a snapshot.
+     */
+    private void follow(DataInputStream in) throws IOException {
+        byte[] payload = new byte[256];
+        while (!isInterrupted()) {
+            byte kind = in.readByte();
+            if (kind == ReplicationSource.RECORD) {
+                long lsn = in.readLong();
+                byte type = in.readByte();
+                int length = in.readInt();
+                if (payload.length < length) payload = new byte[Math.max(length, payload.length * 2)];
+                in.readFully(payload, 0, length);
+                long expected = appliedLsn() + 1;
+                if (lsn != expected) {
+                    resynchronize = true;
+                    throw new IOException("The primary sent the record " + lsn + " instead of " + expected + ", resynchronizing");
+                }
+                server.applyReplicatedRecord(lsn, type, ByteBuffer.wrap(payload, 0, length).asReadOnlyBuffer());
+                synchronized (this) {
+                    appliedLsn = lsn;
+                    notifyAll();
+                }
+            } else if (kind == ReplicationSource.SNAPSHOT) {
+                long lsn = in.readLong();
+                long length = in.readLong();
+                SnapshotFile.Loaded snapshot = length == 0 ? null : SnapshotFile.receive(snapshotDir, lsn, in, length);
+                server.applyReplicatedSnapshot(snapshot);
+                resynchronize = false;
+                System.out.println("Loaded the snapshot of the primary at LSN " + lsn);
+                synchronized (this) {
+                    appliedLsn = lsn;
+                    notifyAll();
+                }
+            } else if (kind == ReplicationSource.HEARTBEAT) {
+                long durableLsn = in.readLong();
+                long time = in.readLong();
+                synchronized (this) {
+                    primaryLsn = durableLsn;
+                    if (appliedLsn >= durableLsn) upToDateAt = time;
+                }
+            } else {
+                throw new IOException("Unknown replication frame " + kind);
+            }
+        }
+    }
+
+    private synchronized void setConnected(boolean connected) {
+        this.connected = connected;
+    }
+
+    /**
+     * @return the LSN of the last record applied, the version of the data of the replica.
+     */
+    synchronized long appliedLsn() {
+        return appliedLsn;
+    }
+
+    /**
+     * Waits until the replica has applied the record with the given LSN.
+     * @param lsn the LSN, a version returned by the primary.
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return true if the record has been applied, false if the timeout expired first.
+     */
+    synchronized boolean awaitApplied(long lsn, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (appliedLsn < lsn && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return appliedLsn >= lsn;
+    }
+
+    /**
+     * @return the LSN of the last durable record of the primary, as of its last heartbeat.
+     */
+    synchronized long primaryLsn() {
+        return Math.max(primaryLsn, appliedLsn);
+    }
+
+    /**
+     * @return the time in milliseconds since the replica was last known to have applied all the durable records of
+     * the primary, -1 if it never was. The clocks of the primary and of the replica are assumed in sync, as they are
+     * on the same host.
+     */
+    synchronized long lagMillis() {
+        return upToDateAt < 0 ? -1 : Math.max(0, System.currentTimeMillis() - upToDateAt);
+    }
+
+    synchronized boolean isConnected() {
+        return connected;
+    }
+}
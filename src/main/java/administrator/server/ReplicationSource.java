@@ -0,0 +1,215 @@
+package administrator.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Ships the write-ahead log of a primary to its read replicas over plain sockets. A replica connects and sends the
+ * LSN of the first record it needs, then receives every durable record from there on, first the ones already in
+ * the segment files and then the new ones as soon as they are durable. Each replica is served by its own thread,
+ * which reads the segment files through a cursor, so a slow replica never delays the writers nor the other
+ * replicas.
+ * The stream is made of frames: a record frame (RECORD, lsn, type, payload length, payload) for every record, and
+ * a heartbeat frame (HEARTBEAT, durable lsn, time of the primary) after every batch of records or after
+ * HEARTBEAT_INTERVAL without records, from which the replica computes its lag.
+ * A replica that needs records the log no longer has, because a snapshot truncated it, or that asks for LSN 0
+ * because it lost track of the primary, first receives a snapshot frame (SNAPSHOT, lsn, file length, file) with the
+ * latest snapshot, which replaces its whole state, and then the records after it. When no snapshot exists the log
+ * was never truncated, and the frame has an empty file and LSN 0: the replica starts over from the first record.
+ */
+class ReplicationSource extends Thread {
+    static final byte RECORD = 1;
+    static final byte HEARTBEAT = 2;
+    static final byte SNAPSHOT = 3;
+    static final long HEARTBEAT_INTERVAL = 500;
+
+    private final WriteAheadLog wal;
+    private final Path snapshotDir;
+    private final ServerSocket serverSocket;
+    // guarded by this
+    private final Set<Socket> replicas = new HashSet<>();
+
+    /**
+     * Binds the replication port. The replicas are accepted once the thread is started.
+     * @param wal the write-ahead log of the primary.
+     * @param snapshotDir the directory of the snapshots of the primary.
+     * @param host the host name on which to listen.
+     * @param port the port on which to listen.
+     */
+    ReplicationSource(WriteAheadLog wal, Path snapshotDir, String host, int port) throws IOException {
+        super("replication-source");
+        setDaemon(true);
+        this.wal = wal;
+        this.snapshotDir = snapshotDir;
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(host, port));
+    }
+
+    @Override
+    public void run() {
+        System.out.println("Replication started on: " + serverSocket.getLocalSocketAddress());
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (this) {
+                replicas.add(socket);
+            }
+            Thread sender = new Thread(() -> ship(socket), "replication-" + socket.getRemoteSocketAddress());
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+
+    /**
+     * @return the number of replicas connected.
+     */
+    synchronized int replicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * Stops accepting replicas and disconnects the connected ones.
+     */
+    void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        synchronized (this) {
+            for (Socket socket : replicas) {
+                closeQuietly(socket);
+            }
+            replicas.clear();
+        }
+    }
+
+    /**
+     * Streams the log to a replica, until it disconnects or the source is closed.
+     */
+    private void ship(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            long fromLsn = new DataInputStream(new BufferedInputStream(socket.getInputStream())).readLong();
+            System.out.println("Replica " + socket.getRemoteSocketAddress() + " follows from LSN " + fromLsn);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            // copies the payloads out of the mapped segments in chunks
+            WritableByteChannel payloads = Channels.newChannel(out);
+            // the cursor is opened before the log is checked, so that it is not truncated past it meanwhile
+            WriteAheadLog.Cursor cursor = wal.cursor(fromLsn);
+            try {
+                if (fromLsn <= 0 || fromLsn < wal.firstLsn() || fromLsn > wal.lastLsn() + 1) {
+                    cursor.close();
+                    cursor = null;
+                    cursor = sendSnapshot(out, payloads);
+                    System.out.println("Replica " + socket.getRemoteSocketAddress() + " needs records no longer in the log, sent a snapshot");
+                }
+                while (!socket.isClosed()) {
+                    cursor.read((lsn, type, payload) -> writeRecord(out, payloads, lsn, type, payload), HEARTBEAT_INTERVAL);
+                    out.writeByte(HEARTBEAT);
+                    out.writeLong(wal.durableLsn());
+                    out.writeLong(System.currentTimeMillis());
+                    out.flush();
+                }
+            } finally {
+                if (cursor != null) cursor.close();
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                System.out.println("Replica " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                replicas.remove(socket);
+            }
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Sends the latest snapshot, and opens a cursor on the records after it.
+     * @return the cursor, to be closed after use.
+     * @throws IOException if the records after the latest snapshot are not in the log, or the snapshot cannot be
+     * sent.
+     */
+    private WriteAheadLog.Cursor sendSnapshot(DataOutputStream out, WritableByteChannel payloads) throws IOException {
+        while (true) {
+            Path snapshot = SnapshotFile.latest(snapshotDir);
+            long lsn = snapshot == null ? 0 : SnapshotFile.lsnOf(snapshot);
+            WriteAheadLog.Cursor cursor = wal.cursor(lsn + 1);
+            boolean sent = false;
+            try {
+                if (lsn + 1 < wal.firstLsn()) {
+                    // normally a newer snapshot has truncated the log meanwhile
+                    Path newer = SnapshotFile.latest(snapshotDir);
+                    if (newer == null || newer.equals(snapshot)) {
+                        throw new IOException("The records after the latest snapshot are no longer in the write-ahead log");
+                    }
+                    continue;
+                }
+                if (snapshot == null) {
+                    out.writeByte(SNAPSHOT);
+                    out.writeLong(0);
+                    out.writeLong(0);
+                } else {
+                    // an open file can still be read after a newer snapshot deletes it
+                    try (FileChannel file = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                        long size = file.size();
+                        out.writeByte(SNAPSHOT);
+                        out.writeLong(lsn);
+                        out.writeLong(size);
+                        for (long position = 0; position < size; ) {
+                            position += file.transferTo(position, size - position, payloads);
+                        }
+                    } catch (NoSuchFileException e) {
+                        // deleted by a newer snapshot before it was opened
+                        continue;
+                    }
+                }
+                out.flush();
+                sent = true;
+                return cursor;
+            } finally {
+                if (!sent) cursor.close();
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, WritableByteChannel payloads, long lsn, byte type,
+                                    ByteBuffer payload) throws IOException {
+        out.writeByte(RECORD);
+        out.writeLong(lsn);
+        out.writeByte(type);
+        out.writeInt(payload.remaining());
+        while (payload.hasRemaining()) {
+            payloads.write(payload);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
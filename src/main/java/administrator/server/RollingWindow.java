@@ -0,0 +1,77 @@
+package administrator.server;
+
+/**
+ * The heart rate values of the last period of time, with their count and sum maintained incrementally as values
+ * enter and leave the window, so that the rolling average is available in constant time. The window ends at the
+ * most recent timestamp added. Values are kept in a circular buffer that grows as needed.
+ * This class is not thread safe.
+ */
+class RollingWindow {
+    private final long length;
+    private long[] timestamps = new long[16];
+    private double[] values = new double[16];
+    private int head = 0;
+    private int size = 0;
+    private double sum = 0;
+    private long latest = Long.MIN_VALUE;
+
+    /**
+     * @param length the length of the window in milliseconds.
+     */
+    RollingWindow(long length) {
+        this.length = length;
+    }
+
+    /**
+     * Adds a value and evicts the values that have left the window. A value older than the window is ignored.
+     * @param timestamp the timestamp of the value.
+     * @param value the value.
+     */
+    void add(long timestamp, double value) {
+        if (timestamp > latest) latest = timestamp;
+        if (timestamp <= latest - length) return;
+        if (size == timestamps.length) grow();
+        int tail = (head + size) % timestamps.length;
+        timestamps[tail] = timestamp;
+        values[tail] = value;
+        size++;
+        sum += value;
+        while (size > 0 && timestamps[head] <= latest - length) {
+            sum -= values[head];
+            head = (head + 1) % timestamps.length;
+            size--;
+        }
+        // the incremental sum is exact again once the window is empty
+        if (size == 0) sum = 0;
+    }
+
+    private void grow() {
+        long[] newTimestamps = new long[timestamps.length * 2];
+        double[] newValues = new double[values.length * 2];
+        for (int i = 0; i < size; i++) {
+            newTimestamps[i] = timestamps[(head + i) % timestamps.length];
+            newValues[i] = values[(head + i) % values.length];
+        }
+        timestamps = newTimestamps;
+        values = newValues;
+        head = 0;
+    }
+
+    int getCount() {
+        return size;
+    }
+
+    /**
+     * @return the average of the values in the window, NaN if it is empty.
+     */
+    double getAverage() {
+        return sum / size;
+    }
+
+    /**
+     * @return the most recent timestamp added.
+     */
+    long getLatest() {
+        return latest;
+    }
+}
@@ -0,0 +1,467 @@
+package administrator.server;
+
+import beans.HeartRateMeasurements;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Pre-aggregated heart rate values at multiple time resolutions, by default 10 seconds, 1 minute and 1 hour. Each
+ * tier maps the start timestamp of a bucket to the summary of the values whose timestamp falls in the bucket, and all
+ * the tiers are updated as values are added. The summary is a mergeable bucket: an Aggregate for the count, sum,
+ * minimum and maximum, or a QuantileSketch for the percentiles.
+ * A time range is answered by covering it with the coarsest buckets that fit entirely inside it, falling back to
+ * finer tiers towards its edges, and to the raw values only for the parts shorter than the finest bucket, so a
+ * query reads a few hundred buckets at most regardless of the length of the range.
+ * Old buckets can be evicted tier by tier: where a finer tier (or the raw values) has been evicted, the edges of a
+ * range are answered with the buckets of the coarser tier that start inside them, so old history stays available
+ * at a lower resolution.
+ * The buckets can be split among stripes, each with its own lock, so that the batches of different players are
+ * added in parallel: a batch goes to the stripe of its player, and a query merges the buckets of every stripe. The
+ * rollup of a single player has one stripe, the rollups of all the players have one per processor.
+ * This class is thread safe: the retention is guarded by the lock of the rollup, the buckets by the lock of their
+ * stripe, which is always taken after the lock of the rollup.
+ * @param <B> the type of the buckets.
+ */
+class Rollup<B extends Rollup.Bucket<B>> {
+    static final long[] RESOLUTIONS = {10_000L, 60_000L, 3_600_000L};
+    // estimated heap footprint of a bucket besides its content: its tree map entry and the boxed key
+    private static final int ENTRY_BYTES = 64;
+    // buckets are only used inside these bounds, so that computing bucket boundaries can never overflow
+    private static final long LOWEST_BUCKETED = -(1L << 62);
+    private static final long HIGHEST_BUCKETED = 1L << 62;
+
+    /**
+     * A mergeable summary of the values of a bucket, which is also used to collect the result of a query.
+     * @param <B> the type of the bucket itself.
+     */
+    interface Bucket<B> {
+        /**
+         * Adds a single value.
+         */
+        void add(double value);
+
+        /**
+         * Adds all the values summarized by another bucket.
+         */
+        void merge(B other);
+
+        /**
+         * @return the estimated number of bytes of heap used by the bucket.
+         */
+        long estimatedBytes();
+    }
+
+    /**
+     * Writes the buckets of a tier to a snapshot, and reads them back, in columns: each field of all the buckets
+     * together.
+     * @param <B> the type of the buckets.
+     */
+    interface Codec<B> {
+        /**
+         * Writes the buckets.
+         */
+        void write(List<B> buckets, DataOutput out) throws IOException;
+
+        /**
+         * Reads the given number of buckets written by write, leaving the buffer after them.
+         */
+        List<B> read(ByteBuffer in, int size);
+    }
+
+    /**
+     * The source of the raw values, used for the edges of a range that are not covered by a whole bucket.
+     * @param <B> the type of the accumulator.
+     */
+    interface RawSource<B> {
+        /**
+         * Adds the values whose timestamp is between t1 and t2 (inclusive) to the accumulator.
+         */
+        void accumulateRaw(long t1, long t2, B acc);
+
+        /**
+         * @return the timestamp from which the raw values are complete, older ones may have been evicted.
+         */
+        long rawRetainedFrom();
+    }
+
+    private final long[] resolutions;
+    private final Stripe<B>[] stripes;
+    // receives the time waited to lock a stripe when a batch is added, null if it is not measured
+    private final LongConsumer lockWait;
+    // the start of the oldest bucket of each tier that has not been evicted, guarded by this
+    private final long[] retainedFrom;
+
+    /**
+     * The buckets of a part of the batches. Guarded by its own lock.
+     */
+    private static final class Stripe<B extends Bucket<B>> {
+        private final long[] resolutions;
+        private final Supplier<B> newBucket;
+        private final TreeMap<Long, B>[] tiers;
+        // the most recently updated bucket of each tier, values normally arrive in order and land in it
+        private final long[] lastBucketStart;
+        private final Object[] lastBucket;
+        private long estimatedBytes = 0;
+
+        @SuppressWarnings("unchecked")
+        private Stripe(long[] resolutions, Supplier<B> newBucket) {
+            this.resolutions = resolutions;
+            this.newBucket = newBucket;
+            tiers = new TreeMap[resolutions.length];
+            lastBucketStart = new long[resolutions.length];
+            lastBucket = new Object[resolutions.length];
+            for (int i = 0; i < resolutions.length; i++) {
+                tiers[i] = new TreeMap<>();
+            }
+        }
+
+        /**
+         * Adds a value to the bucket that contains its timestamp, in every tier.
+         */
+        @SuppressWarnings("unchecked")
+        private void add(long timestamp, double value) {
+            if (timestamp < LOWEST_BUCKETED || timestamp >= HIGHEST_BUCKETED) return;
+            for (int i = 0; i < resolutions.length; i++) {
+                long start = Math.floorDiv(timestamp, resolutions[i]) * resolutions[i];
+                B bucket = (B) lastBucket[i];
+                if (bucket == null || lastBucketStart[i] != start) {
+                    bucket = bucketAt(i, start);
+                    lastBucket[i] = bucket;
+                    lastBucketStart[i] = start;
+                }
+                long bytes = bucket.estimatedBytes();
+                bucket.add(value);
+                estimatedBytes += bucket.estimatedBytes() - bytes;
+            }
+        }
+
+        /**
+         * @return the bucket of the tier with the given start, created if it does not exist.
+         */
+        private B bucketAt(int tier, long start) {
+            B bucket = tiers[tier].get(start);
+            if (bucket == null) {
+                bucket = newBucket.get();
+                tiers[tier].put(start, bucket);
+                estimatedBytes += ENTRY_BYTES + bucket.estimatedBytes();
+            }
+            return bucket;
+        }
+
+        private void evictBefore(int tier, long start) {
+            for (B bucket : tiers[tier].headMap(start, false).values()) {
+                estimatedBytes -= ENTRY_BYTES + bucket.estimatedBytes();
+            }
+            tiers[tier].headMap(start, false).clear();
+            lastBucket[tier] = null;
+        }
+    }
+
+    /**
+     * Constructs a rollup with the default resolutions and a single stripe.
+     * @param newBucket the constructor of an empty bucket.
+     */
+    Rollup(Supplier<B> newBucket) {
+        this(RESOLUTIONS, newBucket);
+    }
+
+    /**
+     * Constructs a rollup with a single stripe.
+     * @param resolutions the resolutions of the tiers in milliseconds, from the finest, each a multiple of the
+     *                    previous one.
+     * @param newBucket the constructor of an empty bucket.
+     */
+    Rollup(long[] resolutions, Supplier<B> newBucket) {
+        this(resolutions, newBucket, 1, null);
+    }
+
+    /**
+     * @param resolutions the resolutions of the tiers in milliseconds, from the finest, each a multiple of the
+     *                    previous one.
+     * @param newBucket the constructor of an empty bucket.
+     * @param stripes the number of stripes.
+     * @param lockWait receives the nanoseconds waited to lock a stripe when a batch is added, or null.
+     */
+    @SuppressWarnings("unchecked")
+    Rollup(long[] resolutions, Supplier<B> newBucket, int stripes, LongConsumer lockWait) {
+        this.resolutions = resolutions.clone();
+        this.lockWait = lockWait;
+        retainedFrom = new long[resolutions.length];
+        Arrays.fill(retainedFrom, Long.MIN_VALUE);
+        this.stripes = new Stripe[Math.max(1, stripes)];
+        for (int i = 0; i < this.stripes.length; i++) {
+            this.stripes[i] = new Stripe<>(this.resolutions, newBucket);
+        }
+    }
+
+    /**
+     * Adds the values of a batch of measurements to the stripe of its player, taking its lock once.
+     * @param measurements the batch.
+     */
+    void add(HeartRateMeasurements measurements) {
+        Stripe<B> stripe = stripes[Math.floorMod(measurements.getId(), stripes.length)];
+        List<Double> values = measurements.getAverageHRList();
+        long start = System.nanoTime();
+        synchronized (stripe) {
+            if (lockWait != null) lockWait.accept(System.nanoTime() - start);
+            for (int i = 0; i < values.size(); i++) {
+                stripe.add(measurements.getTimestamp(i), values.get(i));
+            }
+        }
+    }
+
+    /**
+     * Adds a value to the bucket that contains its timestamp, in every tier. Values with absurd timestamps, outside
+     * of the bucketed bounds, are left to the raw source.
+     * @param timestamp the timestamp of the value.
+     * @param value the value.
+     */
+    void add(long timestamp, double value) {
+        synchronized (stripes[0]) {
+            stripes[0].add(timestamp, value);
+        }
+    }
+
+    /**
+     * Adds the values whose timestamp is between t1 and t2 (inclusive) to the accumulator, reading whole buckets
+     * wherever possible and the raw source only for the edges of the range.
+     * The raw source is called without holding any lock of this rollup.
+     * @param t1 the start timestamp.
+     * @param t2 the end timestamp.
+     * @param raw the source of the raw values.
+     * @param acc the accumulator.
+     */
+    void accumulate(long t1, long t2, RawSource<B> raw, B acc) {
+        if (t1 > t2) return;
+        if (t1 < LOWEST_BUCKETED) {
+            raw.accumulateRaw(t1, Math.min(t2, LOWEST_BUCKETED - 1), acc);
+            t1 = LOWEST_BUCKETED;
+        }
+        if (t2 >= HIGHEST_BUCKETED) {
+            raw.accumulateRaw(Math.max(t1, HIGHEST_BUCKETED), t2, acc);
+            t2 = HIGHEST_BUCKETED - 1;
+        }
+        // the decomposition works on the half-open range [t1, t2 + 1)
+        accumulate(t1, t2 + 1, resolutions.length - 1, raw, acc);
+    }
+
+    private void accumulate(long from, long to, int tier, RawSource<B> raw, B acc) {
+        if (from >= to) return;
+        if (tier < 0) {
+            raw.accumulateRaw(from, to - 1, acc);
+            return;
+        }
+        long resolution = resolutions[tier];
+        long firstBucket = ceilToBucket(from, resolution);
+        long endBucket = Math.floorDiv(to, resolution) * resolution;
+        if (firstBucket >= endBucket) {
+            accumulateFiner(from, to, tier, raw, acc);
+            return;
+        }
+        accumulateFiner(from, firstBucket, tier, raw, acc);
+        accumulateBuckets(tier, firstBucket, endBucket, acc);
+        accumulateFiner(endBucket, to, tier, raw, acc);
+    }
+
+    /**
+     * Accumulates a part of the range shorter than a bucket of the given tier. It is read from the finer tier, or
+     * from the raw values below the finest tier, unless they have been evicted: in that case it is approximated
+     * with the bucket of this tier that starts inside it, if any.
+     */
+    private void accumulateFiner(long from, long to, int tier, RawSource<B> raw, B acc) {
+        if (from >= to) return;
+        long finerRetainedFrom = tier == 0 ? raw.rawRetainedFrom() : retainedFrom(tier - 1);
+        if (from >= finerRetainedFrom) {
+            accumulate(from, to, tier - 1, raw, acc);
+        } else {
+            accumulateBuckets(tier, from, to, acc);
+        }
+    }
+
+    /**
+     * Evicts the buckets of a tier that end before the cutoff, in every stripe.
+     * @param tier the index of the tier in the resolutions of this rollup.
+     * @param cutoff the timestamp before which buckets are evicted.
+     */
+    synchronized void evictBefore(int tier, long cutoff) {
+        cutoff = Math.max(LOWEST_BUCKETED, Math.min(cutoff, HIGHEST_BUCKETED));
+        long start = Math.floorDiv(cutoff, resolutions[tier]) * resolutions[tier];
+        if (start <= retainedFrom[tier]) return;
+        retainedFrom[tier] = start;
+        for (Stripe<B> stripe : stripes) {
+            synchronized (stripe) {
+                stripe.evictBefore(tier, start);
+            }
+        }
+    }
+
+    /**
+     * Evicts the buckets of the tier with the given resolution that end before the cutoff, if this rollup has such
+     * a tier.
+     * @param resolution the resolution of the tier in milliseconds.
+     * @param cutoff the timestamp before which buckets are evicted.
+     */
+    void evictResolutionBefore(long resolution, long cutoff) {
+        for (int tier = 0; tier < resolutions.length; tier++) {
+            if (resolutions[tier] == resolution) evictBefore(tier, cutoff);
+        }
+    }
+
+    /**
+     * Writes all the tiers to a snapshot: for each tier the start of its oldest retained bucket, the number of
+     * buckets, their starts, and the buckets in the columns of the codec. Only the rollups of a single stripe, the
+     * ones of the players, are written: the others are rebuilt from them.
+     * @param out the output.
+     * @param codec the codec of the buckets.
+     */
+    synchronized void writeTo(DataOutput out, Codec<B> codec) throws IOException {
+        Stripe<B> stripe = onlyStripe();
+        synchronized (stripe) {
+            for (int i = 0; i < resolutions.length; i++) {
+                out.writeLong(retainedFrom[i]);
+                out.writeInt(stripe.tiers[i].size());
+                for (long start : stripe.tiers[i].keySet()) out.writeLong(start);
+                codec.write(new ArrayList<>(stripe.tiers[i].values()), out);
+            }
+        }
+    }
+
+    /**
+     * Reads the tiers written by writeTo into this rollup, which must be empty, have a single stripe and the same
+     * resolutions.
+     * @param in the buffer, positioned at the tiers, and positioned after them on return.
+     * @param codec the codec of the buckets.
+     */
+    synchronized void readFrom(ByteBuffer in, Codec<B> codec) {
+        Stripe<B> stripe = onlyStripe();
+        synchronized (stripe) {
+            for (int i = 0; i < resolutions.length; i++) {
+                retainedFrom[i] = in.getLong();
+                long[] starts = new long[in.getInt()];
+                for (int j = 0; j < starts.length; j++) starts[j] = in.getLong();
+                List<B> buckets = codec.read(in, starts.length);
+                for (int j = 0; j < starts.length; j++) {
+                    stripe.tiers[i].put(starts[j], buckets.get(j));
+                    stripe.estimatedBytes += ENTRY_BYTES + buckets.get(j).estimatedBytes();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds all the buckets of another rollup with the same resolutions and a single stripe, as if its values had
+     * been added to this one. The tiers of this rollup are retained from the newest retention of the two.
+     * @param other the other rollup.
+     */
+    synchronized void merge(Rollup<B> other) {
+        synchronized (other) {
+            Stripe<B> from = other.onlyStripe();
+            // the buckets are merged into a single stripe: it is only done while no batch is being added
+            Stripe<B> to = stripes[0];
+            synchronized (from) {
+                synchronized (to) {
+                    for (int i = 0; i < resolutions.length; i++) {
+                        for (Map.Entry<Long, B> entry : from.tiers[i].entrySet()) {
+                            B bucket = to.bucketAt(i, entry.getKey());
+                            long bytes = bucket.estimatedBytes();
+                            bucket.merge(entry.getValue());
+                            to.estimatedBytes += bucket.estimatedBytes() - bytes;
+                        }
+                        to.lastBucket[i] = null;
+                    }
+                }
+            }
+            for (int i = 0; i < resolutions.length; i++) {
+                retainedFrom[i] = Math.max(retainedFrom[i], other.retainedFrom[i]);
+            }
+        }
+    }
+
+    /**
+     * Removes all the buckets, and the retention of every tier.
+     */
+    synchronized void clear() {
+        Arrays.fill(retainedFrom, Long.MIN_VALUE);
+        for (Stripe<B> stripe : stripes) {
+            synchronized (stripe) {
+                for (int i = 0; i < resolutions.length; i++) {
+                    stripe.tiers[i].clear();
+                    stripe.lastBucket[i] = null;
+                }
+                stripe.estimatedBytes = 0;
+            }
+        }
+    }
+
+    /**
+     * @return the start of the oldest bucket of the tier that has not been evicted.
+     */
+    synchronized long retainedFrom(int tier) {
+        return retainedFrom[tier];
+    }
+
+    /**
+     * @return true if no tier has a bucket, in any stripe.
+     */
+    boolean isEmpty() {
+        for (Stripe<B> stripe : stripes) {
+            synchronized (stripe) {
+                for (TreeMap<Long, B> tier : stripe.tiers) {
+                    if (!tier.isEmpty()) return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the estimated number of bytes of heap used by the buckets.
+     */
+    long estimatedBytes() {
+        long bytes = 0;
+        for (Stripe<B> stripe : stripes) {
+            synchronized (stripe) {
+                bytes += stripe.estimatedBytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the start of the first bucket that starts at or after the timestamp.
+     */
+    private static long ceilToBucket(long timestamp, long resolution) {
+        long start = Math.floorDiv(timestamp, resolution) * resolution;
+        return start == timestamp ? start : start + resolution;
+    }
+
+    /**
+     * Adds the buckets of a tier whose start is in [from, to) to the accumulator, from every stripe.
+     */
+    private void accumulateBuckets(int tier, long from, long to, B acc) {
+        for (Stripe<B> stripe : stripes) {
+            synchronized (stripe) {
+                for (B bucket : stripe.tiers[tier].subMap(from, true, to, false).values()) {
+                    acc.merge(bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if this rollup has more than one stripe.
+     */
+    private Stripe<B> onlyStripe() {
+        if (stripes.length != 1) throw new IllegalStateException("The rollup has " + stripes.length + " stripes");
+        return stripes[0];
+    }
+}
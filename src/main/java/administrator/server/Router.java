@@ -0,0 +1,320 @@
+package administrator.server;
+
+import beans.AddPlayerResponse;
+import beans.HeartRateAggregate;
+import beans.Player;
+import beans.PlayerHeartRateAggregate;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.api.container.ContainerFactory;
+import com.sun.jersey.api.core.DefaultResourceConfig;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import measurements.HeartRateUploadOuterClass.HeartRateUpload;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A singleton class that represents the router of a sharded deployment, where several administration servers, the
+ * shards, each store the players whose id hashes to its range (see ShardMap). The router exposes the same rest api
+ * as a single server: the requests about a player are forwarded unchanged to the shard that owns it, and the range
+ * averages over all the players are computed by merging the partial sums and counts of every shard.
+ * The router also keeps the list of all the players, which it rebuilds from the shards when it starts, so that a
+ * new player receives the other players of every shard. The rebuilt list starts a new epoch of the versions of the
+ * players, so that the clients of a previous router fetch them all again. Registrations are serialized by the
+ * router, since they are rare, so that two players registering together on different shards always see each other.
+ */
+class Router {
+    private final ShardMap shards;
+    private final PlayerRegistry players = new PlayerRegistry();
+    private final Client client = Client.create();
+    // sends the partial queries to the shards in parallel
+    private final ExecutorService scatterExecutor = Executors.newCachedThreadPool();
+    private HttpServer httpServer;
+    private ExecutorService httpExecutor;
+
+    /**
+     * Holds the singleton instance, created on the first call to getInstance.
+     */
+    private static class InstanceHolder {
+        private static final Router INSTANCE = new Router(ServerConfig.fromSystemProperties());
+    }
+
+    /**
+     * Constructs a router for the shards of the configuration, loading the players from them and starting the
+     * jersey rest server.
+     * @param config the configuration, with the addresses of the shards.
+     */
+    private Router(ServerConfig config) {
+        shards = new ShardMap(config.getShards());
+        loadPlayers();
+        startRest(config);
+    }
+
+    /**
+     * Gets the singleton instance of this class.
+     * @return The Router instance.
+     */
+    public static Router getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * Stops the router.
+     */
+    public void shutdown() {
+        httpServer.stop(0);
+        httpExecutor.shutdownNow();
+        scatterExecutor.shutdownNow();
+        client.destroy();
+    }
+
+    /**
+     * Fetches the players already registered to every shard.
+     * @throws IllegalStateException if a shard is not available, the router would not know all the players.
+     */
+    private void loadPlayers() {
+        for (int shard = 0; shard < shards.size(); shard++) {
+            ClientResponse clientResponse;
+            try {
+                clientResponse = client.resource(shards.address(shard) + "/players/get-all")
+                        .accept("application/json").get(ClientResponse.class);
+            } catch (ClientHandlerException e) {
+                throw new IllegalStateException("Shard " + shards.address(shard) + " not available", e);
+            }
+            if (clientResponse.getStatus() != 200) {
+                throw new IllegalStateException("Shard " + shards.address(shard) + " answered " + clientResponse.getStatus());
+            }
+            List<Player> shardPlayers = new Gson().fromJson(clientResponse.getEntity(String.class),
+                    new TypeToken<List<Player>>() {}.getType());
+            for (Player player : shardPlayers) {
+                players.add(player);
+            }
+        }
+        System.out.println("Loaded " + players.snapshot().size() + " players from " + shards.size() + " shards");
+    }
+
+    private void startRest(ServerConfig config) {
+        String host = config.getHost();
+        int port = config.getPort();
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(host, port), config.getHttpBacklog());
+            httpServer.createContext("/", ContainerFactory.createContainer(HttpHandler.class,
+                    new DefaultResourceConfig(RouterService.class)));
+            httpExecutor = HttpWorkers.create("router-worker", config.getHttpWorkers(), config.getHttpQueueCapacity());
+            httpServer.setExecutor(httpExecutor);
+            httpServer.start();
+            System.out.println("Router started on: http://" + host + ":" + port + " for " + shards.size() + " shards");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the current snapshot of the players of all the shards.
+     */
+    PlayerRegistry.Snapshot getPlayersSnapshot() {
+        return players.snapshot();
+    }
+
+    /**
+     * Registers a player on the shard that owns it. The coordinates are chosen by the shard, the other players are
+     * the ones of all the shards.
+     * @param player the player to be added.
+     * @return the response of the shard if the registration failed, otherwise the coordinates and the other players.
+     */
+    Response addPlayer(Player player) {
+        PlayerRegistry.Snapshot others;
+        synchronized (players) {
+            if (players.contains(player.getId())) {
+                return Response.status(Status.CONFLICT).entity("Id is already used by another player").build();
+            }
+            int shard = shards.shardOf(player.getId());
+            ClientResponse clientResponse;
+            try {
+                clientResponse = client.resource(shards.address(shard) + "/players/add").type("application/json")
+                        .accept("application/json").post(ClientResponse.class, new Gson().toJson(player));
+            } catch (ClientHandlerException e) {
+                return shardNotAvailable(shard);
+            }
+            if (clientResponse.getStatus() != 200) return relay(clientResponse);
+            AddPlayerResponse shardResponse = clientResponse.getEntity(AddPlayerResponse.class);
+            player.setX(shardResponse.getX());
+            player.setY(shardResponse.getY());
+            others = players.snapshot();
+            players.add(player);
+        }
+        return Response.ok(new AddPlayerResponse(player.getX(), player.getY(), others.all())).build();
+    }
+
+    /**
+     * Forwards a batch of heart rate measurements, in any of the formats accepted by the servers, to the shard that
+     * owns its player.
+     * @param body the body of the request, forwarded as it is.
+     * @param contentType the content type of the body.
+     */
+    Response addHRMeasurements(byte[] body, String contentType) {
+        int playerId;
+        try {
+            playerId = playerIdOf(body, contentType);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Status.BAD_REQUEST).entity(e.getMessage()).build();
+        }
+        int shard = shards.shardOf(playerId);
+        try {
+            return relay(client.resource(shards.address(shard) + "/players/heart-rate").type(contentType)
+                    .post(ClientResponse.class, body));
+        } catch (ClientHandlerException e) {
+            return shardNotAvailable(shard);
+        }
+    }
+
+    /**
+     * Forwards the query of the average of the last n measurements of a player to the shard that owns it.
+     */
+    Response getAverageLastNHR(int n, int playerId, String accept) {
+        int shard = shards.shardOf(playerId);
+        try {
+            return relay(client.resource(shards.address(shard) + "/players/heart-rate/average/last-n")
+                    .queryParam("n", String.valueOf(n)).queryParam("player", String.valueOf(playerId))
+                    .accept(accept == null ? "application/json" : accept).get(ClientResponse.class));
+        } catch (ClientHandlerException e) {
+            return shardNotAvailable(shard);
+        }
+    }
+
+    /**
+     * Computes the average of the measurements of all the players between t1 and t2, asking every shard in
+     * parallel for the count and the sum of its measurements and merging them.
+     * @return the average, or null if there are no measurements in the range.
+     * @throws IllegalStateException if a shard did not answer, the average would be wrong.
+     */
+    Double getAverageRangeHR(long t1, long t2) {
+        long count = 0;
+        double sum = 0;
+        for (ClientResponse partial : scatter("/players/heart-rate/partial/between-time", t1, t2)) {
+            HeartRateAggregate aggregate = partial.getEntity(HeartRateAggregate.class);
+            count += aggregate.getCount();
+            sum += aggregate.getSum();
+        }
+        return count == 0 ? null : sum / count;
+    }
+
+    /**
+     * Computes the aggregates of the measurements of each player between t1 and t2, asking every shard in parallel
+     * for the ones of its players. The players of different shards are disjoint, so the results are just merged.
+     * @return the aggregates of the players with measurements in the range, ordered by player id.
+     * @throws IllegalStateException if a shard did not answer, some players would be missing.
+     */
+    List<PlayerHeartRateAggregate> getRangeAggregatesByPlayer(long t1, long t2) {
+        List<PlayerHeartRateAggregate> aggregates = new ArrayList<>();
+        for (ClientResponse partial : scatter("/players/heart-rate/average/by-player", t1, t2)) {
+            aggregates.addAll(new Gson().fromJson(partial.getEntity(String.class),
+                    new TypeToken<List<PlayerHeartRateAggregate>>() {}.getType()));
+        }
+        aggregates.sort(Comparator.comparingInt(PlayerHeartRateAggregate::getPlayerId));
+        return aggregates;
+    }
+
+    /**
+     * Sends a query over the range between t1 and t2 to every shard in parallel.
+     * @param path the path of the query.
+     * @return the json responses of the shards, in the order of the shards.
+     * @throws IllegalStateException if a shard did not answer, the result would be wrong.
+     */
+    private List<ClientResponse> scatter(String path, long t1, long t2) {
+        List<Future<ClientResponse>> partials = new ArrayList<>(shards.size());
+        for (int shard = 0; shard < shards.size(); shard++) {
+            String address = shards.address(shard);
+            partials.add(scatterExecutor.submit(() -> {
+                ClientResponse clientResponse = client.resource(address + path)
+                        .queryParam("t1", String.valueOf(t1)).queryParam("t2", String.valueOf(t2))
+                        .accept("application/json").get(ClientResponse.class);
+                if (clientResponse.getStatus() != 200) {
+                    clientResponse.close();
+                    throw new IllegalStateException("Shard " + address + " answered " + clientResponse.getStatus());
+                }
+                return clientResponse;
+            }));
+        }
+        List<ClientResponse> responses = new ArrayList<>(partials.size());
+        for (int shard = 0; shard < partials.size(); shard++) {
+            try {
+                responses.add(partials.get(shard).get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Shard " + shards.address(shard) + " not available: " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for shard " + shards.address(shard));
+            }
+        }
+        return responses;
+    }
+
+    /**
+     * Reads the id of the player of a batch of heart rate measurements, or of a player, without decoding the rest.
+     * @throws IllegalArgumentException if the body is malformed or has no id.
+     */
+    private static int playerIdOf(byte[] body, String contentType) {
+        try {
+            MediaType type = MediaType.valueOf(contentType);
+            if (type.isCompatible(MediaType.valueOf(ProtobufMeasurementsReader.MEDIA_TYPE))) {
+                return HeartRateUpload.parseFrom(body).getId();
+            }
+            if (type.getSubtype().endsWith("xml")) {
+                Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                        .parse(new ByteArrayInputStream(body)).getDocumentElement();
+                for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    if ("id".equals(child.getNodeName())) return Integer.parseInt(child.getTextContent().trim());
+                }
+            } else {
+                JsonElement id = new JsonParser().parse(new String(body, StandardCharsets.UTF_8)).getAsJsonObject().get("id");
+                if (id != null) return id.getAsInt();
+            }
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Malformed body: " + e.getMessage());
+        }
+        throw new IllegalArgumentException("The id of the player is missing");
+    }
+
+    /**
+     * Turns the response of a shard into the response of the router, with the same status and body, and the
+     * Retry-After hint of a saturated shard.
+     */
+    private static Response relay(ClientResponse clientResponse) {
+        Response.ResponseBuilder response = Response.status(clientResponse.getStatus());
+        String retryAfter = clientResponse.getHeaders().getFirst("Retry-After");
+        if (retryAfter != null) response.header("Retry-After", retryAfter);
+        if (clientResponse.hasEntity()) {
+            response.entity(clientResponse.getEntity(byte[].class)).type(clientResponse.getType());
+        } else {
+            clientResponse.close();
+        }
+        return response.build();
+    }
+
+    private Response shardNotAvailable(int shard) {
+        return Response.status(Status.SERVICE_UNAVAILABLE).entity("Shard " + shards.address(shard) + " not available").build();
+    }
+}
@@ -0,0 +1,138 @@
+package administrator.server;
+
+import beans.Player;
+
+import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+/**
+ * RouterService class provides the RESTful endpoints of the router of a sharded deployment, with the same paths and
+ * responses as the ones of ServerService.
+ */
+@Path("players")
+public class RouterService {
+
+    /**
+     * Adds a new player to the shard that owns it.
+     *
+     * @param player the player to add
+     * @return A Response indicating the outcome of the add operation. The HTTP status code is 200 if the id
+     * of the player is unique, 409 conflict if it is not, and 503 SERVICE UNAVAILABLE if the shard is not available
+     */
+    @Path("add")
+    @POST
+    @Consumes({"application/json", "application/xml"})
+    @Produces({"application/json", "application/xml"})
+    public Response addPlayer(Player player) {
+        return Router.getInstance().addPlayer(player);
+    }
+
+    /**
+     * Retrieves the players of all the shards, see ServerService.getPlayers.
+     */
+    @Path("get-all")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getPlayers(@QueryParam("offset") @DefaultValue("0") int offset, @QueryParam("limit") Integer limit,
+                               @Context Request request) {
+        return ServerService.playersPage(Router.getInstance().getPlayersSnapshot(), offset, limit, request);
+    }
+
+    /**
+     * Retrieves the number of players of all the shards, see ServerService.countPlayers.
+     */
+    @Path("count")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response countPlayers(@Context Request request) {
+        return ServerService.playersCount(Router.getInstance().getPlayersSnapshot(), request);
+    }
+
+    /**
+     * Retrieves the players of all the shards registered since a version, see ServerService.getPlayerChanges.
+     */
+    @Path("changes")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getPlayerChanges(@QueryParam("since") @DefaultValue("0") long since,
+                                     @QueryParam("epoch") Long epoch, @Context Request request) {
+        return ServerService.playerChanges(Router.getInstance().getPlayersSnapshot(), since, epoch, request);
+    }
+
+    /**
+     * Forwards heart rate measurements to the shard that owns their player, see ServerService.addHRMeasurements.
+     *
+     * @param body the measurements, forwarded as they are
+     * @param contentType the content type of the measurements
+     * @return The Response of the shard, 400 BAD REQUEST if the id of the player cannot be read, or 503 SERVICE
+     * UNAVAILABLE if the shard is not available
+     */
+    @Path("heart-rate")
+    @POST
+    @Consumes({"application/json", "application/xml", ProtobufMeasurementsReader.MEDIA_TYPE})
+    public Response addHRMeasurements(byte[] body, @HeaderParam("Content-Type") String contentType) {
+        return Router.getInstance().addHRMeasurements(body, contentType);
+    }
+
+    /**
+     * Forwards the query of the average of the last N heart rate measurements of a player to the shard that owns
+     * it, see ServerService.getAverageLastNHR.
+     */
+    @Path("heart-rate/average/last-n")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getAverageLastNHR(@QueryParam("n") int n, @QueryParam("player") int playerId,
+                                      @HeaderParam("Accept") String accept) {
+        if (n<= 0) return Response.status(Response.Status.BAD_REQUEST).entity("'n' param must be > 0, instead got:"+ n).build();
+        return Router.getInstance().getAverageLastNHR(n, playerId, accept);
+    }
+
+    /**
+     * Retrieves the aggregates of the heart rate measurements of every player of all the shards between two
+     * specified times, see ServerService.getHRByPlayerBetweenTime.
+     *
+     * @return The Response with the aggregates, ordered by player id, or 503 SERVICE UNAVAILABLE if a shard is not
+     * available
+     */
+    @Path("heart-rate/average/by-player")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getHRByPlayerBetweenTime(@QueryParam("t1") long t1, @QueryParam("t2") long t2) {
+        try {
+            return Response.ok(Router.getInstance().getRangeAggregatesByPlayer(Math.min(t1, t2), Math.max(t1, t2))).build();
+        } catch (IllegalStateException e) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).entity(e.getMessage()).build();
+        }
+    }
+
+    /**
+     * Retrieves the average heart rate measurements of all the shards between two specified times.
+     *
+     * @param t1 the start time in milliseconds
+     * @param t2 the end time in milliseconds
+     * @return A Response containing the average heart rate measurements between the specified times. The HTTP status
+     * code is 200 if the request is successful, 404 NOT FOUND if there are no measurements between the specified
+     * time stamps, and 503 SERVICE UNAVAILABLE if a shard is not available
+     */
+    @Path("heart-rate/average/between-time")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getAverageHRBetweenTime(@QueryParam("t1") long t1, @QueryParam("t2") long t2) {
+        long from = Math.min(t1, t2);
+        long to = Math.max(t1, t2);
+        Double average;
+        try {
+            average = Router.getInstance().getAverageRangeHR(from, to);
+        } catch (IllegalStateException e) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).entity(e.getMessage()).build();
+        }
+        if (average != null){
+            return Response.ok(average).build();
+        }else{
+            return Response.status(Status.NOT_FOUND).entity("No heart rate measurements found between " + from + " and " + to).build();
+        }
+    }
+}
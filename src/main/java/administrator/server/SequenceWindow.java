@@ -0,0 +1,58 @@
+package administrator.server;
+
+/**
+ * Detects the duplicate batches of a player from their sequence numbers, in constant time and space: the highest
+ * sequence number seen, and a bitmap of which of the WINDOW numbers below it have been seen too. A batch that
+ * arrives out of order within the window is accepted once, while one older than the window is taken as a
+ * duplicate, since a sender retries a batch long before it sends WINDOW more.
+ * This class is not thread safe, it is guarded by the lock of the measurements of its player.
+ */
+class SequenceWindow {
+    static final int WINDOW = 64;
+
+    private long highest;
+    // bit i is set if the sequence number highest - i has been seen
+    private long seen;
+
+    /**
+     * Marks a sequence number as seen.
+     * @param sequence the sequence number of a batch, greater than 0.
+     * @return true if it had not been seen yet, false if the batch is a duplicate.
+     */
+    boolean accept(long sequence) {
+        if (sequence > highest) {
+            long shift = sequence - highest;
+            seen = shift >= WINDOW ? 1 : (seen << shift) | 1;
+            highest = sequence;
+            return true;
+        }
+        long offset = highest - sequence;
+        if (offset >= WINDOW || (seen & (1L << offset)) != 0) return false;
+        seen |= 1L << offset;
+        return true;
+    }
+
+    /**
+     * @return the highest sequence number seen, 0 if none.
+     */
+    long getHighest() {
+        return highest;
+    }
+
+    /**
+     * @return the bitmap of the sequence numbers seen below the highest, bit i for highest - i.
+     */
+    long getSeen() {
+        return seen;
+    }
+
+    /**
+     * Restores the state saved in a snapshot.
+     * @param highest the highest sequence number seen.
+     * @param seen the bitmap of the sequence numbers seen below it.
+     */
+    void restore(long highest, long seen) {
+        this.highest = highest;
+        this.seen = seen;
+    }
+}
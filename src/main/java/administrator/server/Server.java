@@ -1,72 +1,362 @@
 package administrator.server;
 
 import beans.AddPlayerResponse;
+import beans.HeartRateAggregate;
 import beans.HeartRateMeasurements;
+import beans.HeartRatePercentiles;
+import beans.HeartRateSeriesPoint;
+import beans.IngestResult;
 import beans.Player;
+import beans.PlayerHeartRateAggregate;
+import beans.PlayerStorageStats;
+import beans.QueryCacheStats;
+import beans.ReplicationStatus;
+import beans.StorageStats;
 
-import com.sun.jersey.api.container.httpserver.HttpServerFactory;
+import com.sun.jersey.api.container.ContainerFactory;
+import com.sun.jersey.api.core.DefaultResourceConfig;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.OptionalDouble;
 import java.util.Random;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
 
 
 /**
  * A singleton class that represents the administration server, with its data structures and functionalities.
  */
 class Server {
-    private final String HOST = "localhost";
-    private final int PORT = 1337;
-    private final Map<Integer,Player> players;
-    private final Map<Integer, List<HeartRateMeasurements>> measurementsMap;
+    private final String host;
+    private final int port;
+    private final PlayerRegistry players;
+    // copy-on-write: readers use the current map without locking, new players are added to a copy under lock
+    private volatile Map<Integer, PlayerMeasurements> measurementsMap;
+    private final Object measurementsMapLock = new Object();
+    // the values of all the players, pre-aggregated by time, striped by player
+    private final Rollup<Aggregate> globalRollup;
+    // the quantile sketches of the values of all the players, by minute and hour, striped by player
+    private final Rollup<QuantileSketch> globalSketches;
+    // the raw values of all the players are complete from this timestamp, set by the compactor
+    private volatile long rawRetainedFrom = Long.MIN_VALUE;
+    private final Rollup.RawSource<Aggregate> globalRawSource = new Rollup.RawSource<Aggregate>() {
+        @Override
+        public void accumulateRaw(long t1, long t2, Aggregate acc) {
+            parallelAggregation.accumulate(playersArray(), Aggregate::new,
+                    (playerMeasurements, partial) -> playerMeasurements.accumulateRange(t1, t2, partial), acc);
+        }
+
+        @Override
+        public long rawRetainedFrom() {
+            return rawRetainedFrom;
+        }
+    };
+    private final Rollup.RawSource<QuantileSketch> globalSketchRawSource = new Rollup.RawSource<QuantileSketch>() {
+        @Override
+        public void accumulateRaw(long t1, long t2, QuantileSketch acc) {
+            parallelAggregation.accumulate(playersArray(), QuantileSketch::new,
+                    (playerMeasurements, partial) -> playerMeasurements.sketchRange(t1, t2, partial), acc);
+        }
+
+        @Override
+        public long rawRetainedFrom() {
+            return rawRetainedFrom;
+        }
+    };
+    // aggregates the raw values of the players in parallel for the large queries
+    private final ParallelAggregation parallelAggregation;
+    private final Compactor compactor;
+    // null on a read replica, which applies the records of the log of its primary instead
+    private final WriteAheadLog wal;
+    // saves the state periodically and truncates the log, null on a read replica or if disabled
+    private final Snapshotter snapshotter;
+    // ships the log to the read replicas, null if there are none
+    private final ReplicationSource replicationSource;
+    // follows the log of the primary, null if this server is the primary
+    private final ReplicaFollower follower;
+    private final long replicaMaxWait;
+    private final LiveAggregates liveAggregates;
+    private final IngestAdmission ingestAdmission;
+    private final QueryCache queryCache;
+    private final Metrics metrics = new Metrics();
     private HttpServer httpServer;
-    private static Server instance;
+    private ExecutorService httpExecutor;
+
+    /**
+     * Holds the singleton instance. The class is initialized, and the server created, on the first call to
+     * getInstance, and the JVM guarantees that this happens exactly once, so no further synchronization is needed.
+     */
+    private static class InstanceHolder {
+        private static final Server INSTANCE = new Server();
+    }
 
     /**
      * Constructs a server, initializing the datastructures to hold the players and the heart rate measurements,
-     * starting also the jersey rest server.
+     * recovering them from the write-ahead log, and starting also the jersey rest server. A read replica instead
+     * receives them from its primary, and rejects the writes.
      */
     private Server() {
-        players = new HashMap<>();
-        measurementsMap = new HashMap<>();
-        startRest();
+        this(ServerConfig.fromSystemProperties(), true);
+    }
+
+    /**
+     * Constructs a server that is not the singleton instance, used to exercise the data structures directly, as
+     * the benchmarks do.
+     * @param config the configuration of the server.
+     * @param rest whether the jersey rest server is started.
+     */
+    Server(ServerConfig config, boolean rest) {
+        host = config.getHost();
+        port = config.getPort();
+        players = new PlayerRegistry();
+        measurementsMap = Collections.emptyMap();
+        int stripes = Runtime.getRuntime().availableProcessors();
+        globalRollup = new Rollup<>(Rollup.RESOLUTIONS, Aggregate::new, stripes, metrics::recordGlobalLockWait);
+        globalSketches = new Rollup<>(QuantileSketch.RESOLUTIONS, QuantileSketch::new, stripes, null);
+        parallelAggregation = new ParallelAggregation(config.getQueryParallelism(), config.getQueryParallelThreshold());
+        liveAggregates = new LiveAggregates(config.getLiveWindow(), config.getLiveBufferedEvents(),
+                config.getLiveMaxStreams());
+        queryCache = new QueryCache(config.getCacheMaxEntries());
+        ingestAdmission = new IngestAdmission(config.getIngestMaxInFlight(), config.getIngestPlayerRate(),
+                config.getIngestPlayerBurst(), config.getIngestGlobalRate(), config.getIngestGlobalBurst());
+        replicaMaxWait = config.getReplicaMaxWait();
+        if (config.getReplicaOf() == null) {
+            wal = new WriteAheadLog(config.getDataDir().resolve("wal"), config.getWalSegmentSize());
+            Path snapshotDir = config.getDataDir().resolve("snapshots");
+            long snapshotLsn = recover(snapshotDir);
+            snapshotter = config.getSnapshotInterval() > 0
+                    ? new Snapshotter(this, wal, snapshotDir, config.getSnapshotInterval(), snapshotLsn) : null;
+            follower = null;
+            try {
+                replicationSource = config.getReplicationPort() > 0
+                        ? new ReplicationSource(wal, snapshotDir, host, config.getReplicationPort()) : null;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        } else {
+            wal = null;
+            snapshotter = null;
+            replicationSource = null;
+            follower = new ReplicaFollower(this, config.getReplicaOf(), config.getDataDir().resolve("replica-" + port));
+        }
+        compactor = new Compactor(this, config);
+        compactor.start();
+        if (snapshotter != null) snapshotter.start();
+        if (replicationSource != null) replicationSource.start();
+        if (follower != null) follower.start();
+        if (rest) startRest(config);
     }
 
     /**
      * Gets the singleton instance of this class.
      * @return The Server instance.
      */
-    public synchronized static Server getInstance() {
-        if (instance == null) {
-            instance = new Server();
-        }
-        return instance;
+    public static Server getInstance() {
+        return InstanceHolder.INSTANCE;
     }
 
     /**
      * Stops the server.
      */
     public void shutdown() {
-        httpServer.stop(0);
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpExecutor.shutdownNow();
+        }
+        compactor.interrupt();
+        if (snapshotter != null) snapshotter.interrupt();
+        parallelAggregation.shutdown();
+        // the replicas are disconnected first, so that their senders do not outlive the log
+        if (replicationSource != null) replicationSource.close();
+        if (follower != null) follower.interrupt();
+        if (wal != null) wal.close();
+    }
+
+    /**
+     * Rebuilds the players and the heart rate measurements from the latest snapshot, if any, and the write-ahead
+     * log after it. The snapshot is mapped and its compressed chunks are read only when first queried, so the time
+     * of a restart depends on the number of players and on the length of the tail of the log, not on the history.
+     * @param snapshotDir the directory of the snapshots.
+     * @return the LSN of the snapshot, 0 if there is none.
+     */
+    private long recover(Path snapshotDir) {
+        try {
+            long start = System.currentTimeMillis();
+            SnapshotFile.Loaded snapshot = SnapshotFile.loadLatest(snapshotDir);
+            if (snapshot != null) {
+                restore(snapshot);
+                System.out.println("Loaded the snapshot at LSN " + snapshot.getLsn() + " with " + snapshot.getPlayers().size()
+                        + " players in " + (System.currentTimeMillis() - start) + " ms");
+            }
+            long replayed = wal.open(this::applyLogRecord);
+            System.out.println("Recovered " + replayed + " records from the write-ahead log in "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return snapshot == null ? 0 : snapshot.getLsn();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
+
     /**
-     * Adds a player to the players data structure, if it has a unique id.
+     * Replaces the state of a read replica with a snapshot shipped by its primary, because the primary no longer
+     * has the records the replica needs, or the replica found a gap in them. The records after the snapshot follow.
+     * @param snapshot the snapshot, or null to start over from the first record of the log.
+     */
+    void applyReplicatedSnapshot(SnapshotFile.Loaded snapshot) {
+        restore(snapshot);
+    }
+
+    /**
+     * Installs the players and the measurements of a snapshot, replacing the current ones, and rebuilds the global
+     * rollups from the rollups of the players, which hold the same values and are evicted by the compactor with the
+     * same retention. On a replica the queries running meanwhile may see a partial state, as they do while it
+     * catches up with its primary.
+     * @param snapshot the snapshot, or null for an empty state.
+     */
+    private void restore(SnapshotFile.Loaded snapshot) {
+        players.reset(snapshot == null ? Collections.emptyList() : snapshot.getPlayers());
+        synchronized (measurementsMapLock) {
+            measurementsMap = snapshot == null ? Collections.emptyMap()
+                    : Collections.unmodifiableMap(new HashMap<>(snapshot.getMeasurements()));
+        }
+        globalRollup.clear();
+        globalSketches.clear();
+        long retainedFrom = Long.MIN_VALUE;
+        for (PlayerMeasurements playerMeasurements : measurementsMap.values()) {
+            playerMeasurements.mergeRollupsInto(globalRollup, globalSketches);
+            retainedFrom = Math.max(retainedFrom, playerMeasurements.rawRetainedFrom());
+        }
+        rawRetainedFrom = retainedFrom;
+        queryCache.invalidateEvicted(true, Long.MAX_VALUE);
+    }
+
+    /**
+     * Applies a record of the write-ahead log to the server data structures.
+     * @param lsn the log sequence number of the record.
+     * @param type the type of the record.
+     * @param payload the payload of the record.
+     */
+    private void applyLogRecord(long lsn, byte type, ByteBuffer payload) {
+        applyLogRecord(lsn, type, payload, false);
+    }
+
+    /**
+     * Applies a record of the write-ahead log of the primary to a read replica, which also invalidates the cached
+     * queries and updates the live stream, as the original write did on the primary.
+     * @param lsn the log sequence number of the record.
+     * @param type the type of the record.
+     * @param payload the payload of the record.
+     */
+    void applyReplicatedRecord(long lsn, byte type, ByteBuffer payload) {
+        applyLogRecord(lsn, type, payload, true);
+    }
+
+    private void applyLogRecord(long lsn, byte type, ByteBuffer payload, boolean replicated) {
+        switch (type) {
+            case LogRecords.PLAYER:
+                Player player = LogRecords.decodePlayer(payload);
+                // the players taken in a snapshot are replayed again if the log was not truncated after it
+                if (!players.contains(player.getId())) players.add(player);
+                break;
+            case LogRecords.HEART_RATE:
+            case LogRecords.HEART_RATE_SAMPLES:
+            case LogRecords.HEART_RATE_SEQUENCED:
+            case LogRecords.HEART_RATE_SAMPLES_SEQUENCED:
+                HeartRateMeasurements measure = LogRecords.decodeMeasurements(type, payload);
+                if (!getOrCreatePlayerMeasurements(measure.getId()).applyLogged(lsn, measure)) break;
+                addToGlobalRollups(measure);
+                if (replicated) {
+                    queryCache.invalidate(measure);
+                    liveAggregates.publish(measure);
+                    metrics.recordIngest(measure.getAverageHRList().size());
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unknown write-ahead log record type " + type + " at lsn " + lsn);
+        }
+    }
+
+    /**
+     * @return true if this server is a read replica, which rejects the writes.
+     */
+    public boolean isReplica() {
+        return follower != null;
+    }
+
+    /**
+     * Gets the version of the data of the server, the LSN of the last durable record on a primary, the LSN of the
+     * last applied record on a replica. After a write, the version of the primary includes it.
+     * @return the version.
+     */
+    public long getVersion() {
+        return follower != null ? follower.appliedLsn() : wal.durableLsn();
+    }
+
+    /**
+     * Waits until the data of the server includes the given version. The primary always does, since a version is
+     * returned only once its records are applied.
+     * @param version the version, as returned by the primary after a write.
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return true if the server has reached the version, false if the timeout expired first.
+     */
+    public boolean awaitVersion(long version, long timeout) {
+        if (follower == null) return true;
+        try {
+            return follower.awaitApplied(version, timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return the replication state of the server, with the lag of a replica behind its primary.
+     */
+    public ReplicationStatus getReplicationStatus() {
+        if (follower == null) {
+            long version = wal.durableLsn();
+            return new ReplicationStatus("primary", version, version, 0, 0, true,
+                    replicationSource == null ? 0 : replicationSource.replicaCount());
+        }
+        long version = follower.appliedLsn();
+        long primaryVersion = follower.primaryLsn();
+        return new ReplicationStatus("replica", version, primaryVersion, primaryVersion - version,
+                follower.lagMillis(), follower.isConnected(), 0);
+    }
+
+    /**
+     * @throws IllegalStateException if this server is a read replica.
+     */
+    private void checkWritable() {
+        if (follower != null) throw new IllegalStateException("This server is a read-only replica, send the writes to the primary");
+    }
+    /**
+     * Adds a player to the players data structure, if it has a unique id. Returns once the player is durable.
      * @param player the player to be added.
      * @return The generated coordinates for the player and the list of the other already connected players,
      * or null if the id is not unique.
+     * @throws IllegalStateException if this server is a read replica.
      */
     public AddPlayerResponse addPlayer(Player player) {
+        checkWritable();
+        PlayerRegistry.Snapshot others;
+        long lsn;
         synchronized (players) {
-            if (players.containsKey(player.getId())) {
+            if (players.contains(player.getId())) {
                 return null;
             }
 
@@ -82,132 +372,558 @@ class Server {
                 }
             }
 
-            AddPlayerResponse response = new AddPlayerResponse(x, y, new ArrayList<>(players.values()));
+            others = players.snapshot();
             player.setX(x); player.setY(y);
-            players.put(player.getId(),player);
-            return response;
-            }
+            lsn = wal.append(LogRecords.PLAYER, LogRecords.encodePlayer(player));
+            players.add(player);
         }
+        // the other players are copied from the snapshot taken before the registration, outside the lock
+        AddPlayerResponse response = new AddPlayerResponse(player.getX(), player.getY(), others.all());
+        wal.awaitDurable(lsn);
+        return response;
+    }
 
     /**
      * Gets the list of players.
      * @return The list of players.
      */
     public List<Player> getPlayers() {
+        return players.snapshot().all();
+    }
+
+    /**
+     * Reads the LSN of the last record appended to the write-ahead log together with the players, under the lock of
+     * the registrations, which log and register a player atomically: every player whose record is up to the LSN is
+     * included, as a snapshot that truncates the log up to it requires.
+     * @return the LSN and the players.
+     */
+    LoggedPlayers getLoggedPlayers() {
+        long lsn;
+        PlayerRegistry.Snapshot registered;
         synchronized (players) {
-            return new ArrayList<>(players.values());
+            lsn = wal.lastLsn();
+            registered = players.snapshot();
+        }
+        return new LoggedPlayers(lsn, registered.all());
+    }
+
+    /**
+     * The players registered up to an LSN of the write-ahead log.
+     */
+    static final class LoggedPlayers {
+        private final long lsn;
+        private final List<Player> players;
+
+        private LoggedPlayers(long lsn, List<Player> players) {
+            this.lsn = lsn;
+            this.players = players;
+        }
+
+        long getLsn() {
+            return lsn;
         }
+
+        List<Player> getPlayers() {
+            return players;
+        }
+    }
+
+    /**
+     * Gets the current snapshot of the players, which is immutable and can be read without locking.
+     * @return The snapshot, with its version.
+     */
+    public PlayerRegistry.Snapshot getPlayersSnapshot() {
+        return players.snapshot();
+    }
+
+    /**
+     * Admits an upload of heart rate measurements, unless the server is saturated: too many uploads are being
+     * ingested, or the player or all the players together are over their rate (see IngestAdmission). An admitted
+     * upload must be released with releaseIngest once it has been ingested.
+     * @param playerId the player of the upload, or null for an upload of many players, as relayed by a gateway.
+     * @param batches the number of batches of the upload.
+     * @return 0 if the upload is admitted, otherwise the time in milliseconds after which it may be retried.
+     */
+    public long admitIngest(Integer playerId, int batches) {
+        long retryAfter = ingestAdmission.tryAdmit(playerId, batches);
+        if (retryAfter > 0) metrics.recordThrottled();
+        return retryAfter;
     }
 
     /**
-     * Adds an HeartRateMeasurements object to the server data structure.
+     * Releases an upload admitted by admitIngest.
+     */
+    public void releaseIngest() {
+        ingestAdmission.release();
+    }
+
+    /**
+     * Adds an HeartRateMeasurements object to the server data structure. Only the measurements of the same player
+     * are locked, so measurements of different players are added in parallel. Returns once the measurements are
+     * durable: the write-ahead log syncs the records of concurrent calls together. The batch also updates the
+     * rolling averages pushed to the subscribers of the live stream.
+     * A batch with the sequence number of a batch already stored is a retry, and is dropped: it returns once the
+     * original is durable, so the sender can safely discard it.
      * @param measure The measurement to be added.
+     * @return true if the batch has been stored, false if it was a duplicate.
+     * @throws IllegalStateException if this server is a read replica.
+     * @throws IllegalArgumentException if the batch is too large for a record of the write-ahead log.
      */
-    public void addHRMeasurements(HeartRateMeasurements measure){
-        synchronized (measurementsMap){
-            List<HeartRateMeasurements> measurementsList = measurementsMap.get(measure.getId());
-            if (measurementsList == null) {
-                measurementsMap.put(measure.getId(), new ArrayList<>(Collections.singletonList(measure)));
-            } else {
-                measurementsList.add(measure);
+    public boolean addHRMeasurements(HeartRateMeasurements measure){
+        checkWritable();
+        if (measure.getAverageHRList().isEmpty()) return true;
+        if (!fitsInLog(measure)) {
+            throw new IllegalArgumentException("The batch of " + measure.getAverageHRList().size() + " heart rate values is too large, split it in smaller ones");
+        }
+        long lsn = logAndStore(measure.getId(), Collections.singletonList(measure))[0];
+        if (lsn < 0) {
+            metrics.recordDuplicate();
+            wal.awaitDurable(wal.lastLsn());
+            return false;
+        }
+        queryCache.invalidate(measure);
+        liveAggregates.publish(measure);
+        metrics.recordIngest(measure.getAverageHRList().size());
+        wal.awaitDurable(lsn);
+        return true;
+    }
+
+    /**
+     * @return true if the batch fits in a record of the write-ahead log, which is checked before its sequence number
+     * is accepted, so that a rejected batch can be split and sent again.
+     */
+    private boolean fitsInLog(HeartRateMeasurements measure) {
+        return LogRecords.measurementsSize(measure) <= wal.maxPayloadSize();
+    }
+
+    /**
+     * Logs and stores batches of measurements of the same player. Under the lock of the measurements of the player,
+     * taken once, the sequence number of each batch is checked, the batch appended to the write-ahead log and added
+     * to the measurements: of two copies of a batch sent concurrently exactly one is logged, and a snapshot, which
+     * copies the measurements under the same lock, includes every record of the player up to the last it has seen.
+     * The batches are then added to the global rollups. The time waited for the lock is recorded in the metrics.
+     * @param playerId the player ID.
+     * @param batches the batches, which are not empty.
+     * @return the LSN of the record of each batch, in the same order, -1 for the duplicates.
+     */
+    private long[] logAndStore(int playerId, List<HeartRateMeasurements> batches) {
+        byte[][] records = new byte[batches.size()][];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = LogRecords.encodeMeasurements(batches.get(i));
+        }
+        long[] lsns = new long[batches.size()];
+        PlayerMeasurements playerMeasurements = getOrCreatePlayerMeasurements(playerId);
+        long start = System.nanoTime();
+        synchronized (playerMeasurements) {
+            metrics.recordPlayerLockWait(System.nanoTime() - start);
+            for (int i = 0; i < lsns.length; i++) {
+                HeartRateMeasurements measure = batches.get(i);
+                if (!playerMeasurements.acceptSequence(measure.getSequence())) {
+                    lsns[i] = -1;
+                    continue;
+                }
+                lsns[i] = wal.append(LogRecords.measurementsType(measure), records[i]);
+                playerMeasurements.addLogged(lsns[i], measure);
+            }
+        }
+        for (int i = 0; i < lsns.length; i++) {
+            if (lsns[i] >= 0) addToGlobalRollups(batches.get(i));
+        }
+        return lsns;
+    }
+
+    /**
+     * Adds the batches of measurements of many players, as relayed by a gateway. The valid batches are grouped by
+     * player, so that the measurements of each player are locked once to log and store all its batches. Returns
+     * once all the accepted batches are durable, with a single wait. Duplicate batches, already stored, are dropped.
+     * @param batches the batches to be added.
+     * @return the outcome of each batch, in the same order: 200 if it has been stored, or had been already, 400 if
+     * it is malformed, 413 if it is too large for a record of the write-ahead log.
+     * @throws IllegalStateException if this server is a read replica.
+     */
+    public List<IngestResult> addHRMeasurements(List<HeartRateMeasurements> batches) {
+        checkWritable();
+        IngestResult[] results = new IngestResult[batches.size()];
+        // the indexes of the valid batches of each player
+        Map<Integer, List<Integer>> byPlayer = new LinkedHashMap<>();
+        for (int i = 0; i < batches.size(); i++) {
+            HeartRateMeasurements measure = batches.get(i);
+            if (measure == null || measure.getAverageHRList() == null) {
+                results[i] = new IngestResult(i, measure == null ? -1 : measure.getId(), 400, "missing heart rate values");
+                continue;
+            }
+            if (!measure.hasConsistentTimestamps()) {
+                results[i] = new IngestResult(i, measure.getId(), 400, "the timestamps and the heart rate values differ in number");
+                continue;
+            }
+            if (measure.getAverageHRList().isEmpty()) {
+                results[i] = new IngestResult(i, measure.getId(), 200, null);
+                continue;
+            }
+            if (!fitsInLog(measure)) {
+                results[i] = new IngestResult(i, measure.getId(), 413, "too many heart rate values, split the batch in smaller ones");
+                continue;
             }
+            byPlayer.computeIfAbsent(measure.getId(), id -> new ArrayList<>()).add(i);
         }
+        long lsn = -1;
+        for (Map.Entry<Integer, List<Integer>> entry : byPlayer.entrySet()) {
+            List<HeartRateMeasurements> playerBatches = new ArrayList<>(entry.getValue().size());
+            for (int index : entry.getValue()) {
+                playerBatches.add(batches.get(index));
+            }
+            long[] lsns = logAndStore(entry.getKey(), playerBatches);
+            for (int j = 0; j < lsns.length; j++) {
+                int index = entry.getValue().get(j);
+                HeartRateMeasurements measure = playerBatches.get(j);
+                if (lsns[j] < 0) {
+                    results[index] = new IngestResult(index, measure.getId(), 200, "duplicate, already stored");
+                    metrics.recordDuplicate();
+                    // the original has been appended, but may not be durable yet
+                    lsn = Math.max(lsn, wal.lastLsn());
+                    continue;
+                }
+                results[index] = new IngestResult(index, measure.getId(), 200, null);
+                lsn = Math.max(lsn, lsns[j]);
+                queryCache.invalidate(measure);
+                liveAggregates.publish(measure);
+                metrics.recordIngest(measure.getAverageHRList().size());
+            }
+        }
+        if (lsn >= 0) wal.awaitDurable(lsn);
+        return new ArrayList<>(Arrays.asList(results));
+    }
+
+    /**
+     * Adds a batch of measurements, already added to the measurements of its player, to the global rollups. Only the
+     * stripe of the player is locked, and the time waited for it is recorded in the metrics.
+     * @param measure the batch.
+     */
+    private void addToGlobalRollups(HeartRateMeasurements measure) {
+        globalRollup.add(measure);
+        globalSketches.add(measure);
     }
 
     /**
-     * Starts the rest server.
+     * @return the measurements of all the players, as an array that can be split for the parallel aggregation.
      */
-    private void startRest() {
+    private PlayerMeasurements[] playersArray() {
+        return measurementsMap.values().toArray(new PlayerMeasurements[0]);
+    }
+
+    /**
+     * Gets the measurements of a player, creating them if this is the first batch of the player.
+     * @param playerId The player ID
+     * @return the measurements of the player.
+     */
+    private PlayerMeasurements getOrCreatePlayerMeasurements(int playerId) {
+        PlayerMeasurements playerMeasurements = measurementsMap.get(playerId);
+        if (playerMeasurements != null) return playerMeasurements;
+        synchronized (measurementsMapLock) {
+            playerMeasurements = measurementsMap.get(playerId);
+            if (playerMeasurements == null) {
+                Map<Integer, PlayerMeasurements> copy = new HashMap<>(measurementsMap);
+                playerMeasurements = new PlayerMeasurements();
+                copy.put(playerId, playerMeasurements);
+                measurementsMap = Collections.unmodifiableMap(copy);
+            }
+            return playerMeasurements;
+        }
+    }
+
+    /**
+     * Starts the rest server, with a bounded pool of workers (see HttpWorkers).
+     * @param config the configuration of the pool.
+     */
+    private void startRest(ServerConfig config) {
         try {
-            httpServer = HttpServerFactory.create("http://" + HOST + ":" + PORT + "/");
+            httpServer = HttpServer.create(new InetSocketAddress(host, port), config.getHttpBacklog());
+            // the resources are listed, so that a router on the same classpath does not serve them too
+            HttpHandler handler = ContainerFactory.createContainer(HttpHandler.class,
+                    new DefaultResourceConfig(ServerService.class, MetricsService.class, ProtobufMeasurementsReader.class));
+            HttpContext context = httpServer.createContext("/", handler);
+            context.getFilters().add(new MetricsFilter(metrics));
+            context.getFilters().add(new ConsistencyFilter(this, replicaMaxWait));
+            // without an executor every request runs on the dispatcher thread, and a live stream would block all
+            // the others; the live streams get workers of their own, so they never starve the other requests
+            httpExecutor = HttpWorkers.create("http-worker", config.getHttpWorkers() + config.getLiveMaxStreams(),
+                    config.getHttpQueueCapacity());
+            httpServer.setExecutor(httpExecutor);
             httpServer.start();
-            System.out.println("Rest server started on: http://" + HOST + ":" + PORT);
+            System.out.println((isReplica() ? "Read replica" : "Rest server") + " started on: http://" + host + ":" + port);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     /**
-     * Checks if there is at least a heart rate measurement for a specific player.
+     * Checks if there is at least a heart rate measurement for a specific player, raw or kept by its rollup after
+     * the raw values have been evicted.
      * @param id The player ID
      * @return True if there is at least one heart rate measurement for the specified player, false otherwise.
      */
     public boolean existsPlayerHRMeasurements(int id){
-        synchronized (measurementsMap) {
-            return measurementsMap.containsKey(id) && !measurementsMap.get(id).isEmpty();
-        }
+        PlayerMeasurements playerMeasurements = measurementsMap.get(id);
+        return playerMeasurements != null && playerMeasurements.hasHistory();
     }
 
     /**
-     * Computes the number of
-     * @param playerId
-     * @return
+     * Computes the number of heart rate values stored for a specific player.
+     * @param playerId The player ID
+     * @return the number of heart rate values, 0 if the player does not have measurements.
      */
     public int measurementsCount(int playerId) {
-        synchronized (measurementsMap) {
-        return measurementsMap.get(playerId).stream().map(a -> a.getAverageHRList().size()).reduce((a, b) -> a+b).get();
-        }
+        PlayerMeasurements playerMeasurements = measurementsMap.get(playerId);
+        return playerMeasurements == null ? 0 : playerMeasurements.valuesCount();
     }
 
     /**
-     * Checks if there is any heart rate measurement in the server data structure.
+     * Checks if there is any heart rate measurement in the server data structure, raw or kept by the rollups after
+     * the raw values have been evicted.
      * @return true if there is any measurement, false otherwise.
      */
     public boolean anyMeasurement(){
-        synchronized (measurementsMap) {
-            return !measurementsMap.values().isEmpty();
+        // the store of a player is created before its first values are added, so it may still be empty
+        for (PlayerMeasurements playerMeasurements : measurementsMap.values()) {
+            if (playerMeasurements.hasHistory()) return true;
         }
+        return false;
     }
 
     /**
-     * Computes the average of the last n heart rate measurements.
-     * @throws IllegalArgumentException if n > # measurements || n < 0
+     * Computes the average of the last n heart rate measurements from the cumulative sums kept for each player,
+     * decoding at most one compressed chunk. The result is cached until the player sends new measurements.
+     * @throws IllegalArgumentException if n > # measurements || n <= 0
      * @throws NoSuchElementException if the player does not have measurements
      */
-    public Double getAverageLastNHR(int n, int playerId) {
-        synchronized (measurementsMap) {
-            List<HeartRateMeasurements> playerMeasurementsList = measurementsMap.get(playerId);
-            if ( playerMeasurementsList == null || playerMeasurementsList.isEmpty()) throw new NoSuchElementException("Player "+playerId+" does not have measurements");
-            List<Double> allValues = playerMeasurementsList.stream()
-                .flatMap(m -> m.getAverageHRList().stream())
-                .collect(Collectors.toList());
-
-            if (n > allValues.size() || n < 0) {
-                throw new IllegalArgumentException("Invalid last n parameter, negative or too big, n:" + n +" player measurements:"+ allValues.size());
-            }
-
-            return allValues.stream()
-                .skip(allValues.size() - n)
-                .mapToDouble(Double::doubleValue)
-                .average()
-                .getAsDouble();
+    public double getAverageLastNHR(int n, int playerId) {
+        PlayerMeasurements playerMeasurements = measurementsMap.get(playerId);
+        if (playerMeasurements == null || playerMeasurements.isEmpty()) {
+            throw new NoSuchElementException("there are no measurements for player "+ playerId);
         }
-
-         
+        return queryCache.get(QueryCache.Key.lastN(playerId, n), () -> playerMeasurements.averageLastN(n));
     }
 
     /**
-     * Computes the average of all heart rate measurements between timestamp t1 and t2.
+     * Computes the average of all heart rate measurements between timestamp t1 and t2, from their aggregate.
      * @throws IllegalArgumentException if t1 > t2.
      * @throws IllegalStateException if there are no measurements.
      * @return the average or null if there are no measurements between timestamp t1 and t2.
      */
     public Double getAverageRangeHR(long t1, long t2) {
         if (t1 > t2) throw new IllegalArgumentException("Invalid timestamps. The start timestamp must be less than or equal to the end timestamp.");
-        synchronized (measurementsMap) {
-            if (!anyMeasurement()) {
-                throw new IllegalStateException("The list of heart rate measurements is empty.");
+        if (!anyMeasurement()) {
+            throw new IllegalStateException("The list of heart rate measurements is empty.");
+        }
+        return getRangeAggregate(t1, t2).getAverage();
+    }
+
+    /**
+     * Computes the count, sum, minimum and maximum of all heart rate measurements between timestamp t1 and t2. The
+     * range is covered with the coarsest buckets of the global rollup that fit inside it, and the raw values of the
+     * players are read only at its edges, for the parts shorter than 10 seconds, split among the threads of the
+     * parallel aggregation when there are many players. The raw values are read from the version that each player
+     * last published, without taking its lock, so the query neither waits for the ingestion nor stops it. The result
+     * is cached until new measurements fall inside the range.
+     * @throws IllegalArgumentException if t1 > t2.
+     * @return the aggregate, with a count of 0 if there are no measurements between timestamp t1 and t2.
+     */
+    public HeartRateAggregate getRangeAggregate(long t1, long t2) {
+        if (t1 > t2) throw new IllegalArgumentException("Invalid timestamps. The start timestamp must be less than or equal to the end timestamp.");
+        return queryCache.get(QueryCache.Key.range(t1, t2), () -> {
+            Aggregate acc = new Aggregate();
+            globalRollup.accumulate(t1, t2, globalRawSource, acc);
+            if (acc.isEmpty()) return new HeartRateAggregate(0, 0, null, null);
+            return new HeartRateAggregate(acc.getCount(), acc.getSum(), acc.getMin(), acc.getMax());
+        });
+    }
+
+    /**
+     * Computes the count, average, minimum and maximum of the heart rate measurements of every player between
+     * timestamp t1 and t2, in a single pass over the players, split among the threads of the parallel aggregation
+     * when there are many. Each player is aggregated from its own rollup, reading its raw values only at the edges
+     * of the range, into an accumulator of primitives, from the version it last published and without taking its
+     * lock. The result is cached until new measurements fall inside the range.
+     * @throws IllegalArgumentException if t1 > t2.
+     * @return the aggregates of the players with measurements between t1 and t2, ordered by player id.
+     */
+    public List<PlayerHeartRateAggregate> getRangeAggregatesByPlayer(long t1, long t2) {
+        if (t1 > t2) throw new IllegalArgumentException("Invalid timestamps. The start timestamp must be less than or equal to the end timestamp.");
+        return queryCache.get(QueryCache.Key.rangeByPlayer(t1, t2), () -> {
+            Map<Integer, PlayerMeasurements> players = measurementsMap;
+            int[] ids = new int[players.size()];
+            int i = 0;
+            for (int id : players.keySet()) {
+                ids[i++] = id;
+            }
+            Arrays.sort(ids);
+            PlayerHeartRateAggregate[] results = new PlayerHeartRateAggregate[ids.length];
+            parallelAggregation.forEach(ids.length, index -> {
+                Aggregate acc = new Aggregate();
+                players.get(ids[index]).accumulate(t1, t2, acc);
+                if (acc.isEmpty()) return;
+                results[index] = new PlayerHeartRateAggregate(ids[index], acc.getCount(), acc.getAverage(), acc.getMin(), acc.getMax());
+            });
+            List<PlayerHeartRateAggregate> aggregates = new ArrayList<>();
+            for (PlayerHeartRateAggregate result : results) {
+                if (result != null) aggregates.add(result);
             }
+            return Collections.unmodifiableList(aggregates);
+        });
+    }
 
-            OptionalDouble optionalAverage = measurementsMap.values().stream()
-                .flatMap(List::stream) // Flatten the collection of lists into a stream of HeartRateMeasurements
-                .filter(m -> m.getTimestamp() >= t1 && m.getTimestamp() <= t2) // Filter by timestamp
-                .flatMap(m -> m.getAverageHRList().stream()) // Flatten the averageHRList into a stream of Double
-                .mapToDouble(Double::doubleValue)
-                .average();
-            if (optionalAverage.isPresent()) {
-                return optionalAverage.getAsDouble();
-            }else return null;
+    /**
+     * Computes a downsampled series of the heart rate measurements between timestamp t1 and t2, for charts. The
+     * range is split in the given number of intervals of equal length, and each non-empty interval is summarized by
+     * a point with the count, average, minimum and maximum of its values.
+     * @param t1 the start timestamp.
+     * @param t2 the end timestamp.
+     * @param points the number of intervals.
+     * @param playerId the player whose measurements are summarized, or null for the measurements of all the players.
+     * @throws IllegalArgumentException if t1 > t2 or points <= 0.
+     * @return the points of the non-empty intervals, ordered by time.
+     */
+    public List<HeartRateSeriesPoint> getHRSeries(long t1, long t2, int points, Integer playerId) {
+        if (t1 > t2) throw new IllegalArgumentException("Invalid timestamps. The start timestamp must be less than or equal to the end timestamp.");
+        if (points <= 0) throw new IllegalArgumentException("The number of points must be > 0, instead got:" + points);
+        PlayerMeasurements playerMeasurements = playerId == null ? null : measurementsMap.get(playerId);
+        List<HeartRateSeriesPoint> series = new ArrayList<>();
+        if (playerId != null && playerMeasurements == null) return series;
+
+        // ceiling of the range length divided by the number of points, computed so that it cannot overflow
+        long length = t2 - t1;
+        long step = length / points + 1;
+        for (long start = t1; start <= t2; start += step) {
+            long end = t2 - start < step ? t2 : start + step - 1;
+            Aggregate acc = new Aggregate();
+            if (playerMeasurements != null) {
+                playerMeasurements.accumulate(start, end, acc);
+            } else {
+                globalRollup.accumulate(start, end, globalRawSource, acc);
+            }
+            if (!acc.isEmpty()) {
+                series.add(new HeartRateSeriesPoint(start, acc.getCount(), acc.getAverage(), acc.getMin(), acc.getMax()));
+            }
+            if (end == t2) break;
+        }
+        return series;
+    }
+
+    /**
+     * Computes percentiles of the heart rate measurements between timestamp t1 and t2, of a player or of all the
+     * players. The sketches of the minutes and hours inside the range are merged, and the raw values are read only
+     * at its edges, so the memory used is bounded by the size of a sketch regardless of the length of the range.
+     * Each percentile is within QuantileSketch.RELATIVE_ACCURACY of the exact one.
+     * @param t1 the start timestamp.
+     * @param t2 the end timestamp.
+     * @param playerId the player whose measurements are considered, or null for the measurements of all the players.
+     * @param quantiles the quantiles to compute, between 0 and 1.
+     * @throws IllegalArgumentException if t1 > t2 or a quantile is not between 0 and 1.
+     * @return the percentiles, or null if there are no measurements between timestamp t1 and t2.
+     */
+    public HeartRatePercentiles getHRPercentiles(long t1, long t2, Integer playerId, List<Double> quantiles) {
+        if (t1 > t2) throw new IllegalArgumentException("Invalid timestamps. The start timestamp must be less than or equal to the end timestamp.");
+        for (Double q : quantiles) {
+            if (q == null || !(q >= 0 && q <= 1)) throw new IllegalArgumentException("The quantiles must be between 0 and 1, instead got:" + q);
         }
+        QuantileSketch sketch = new QuantileSketch();
+        if (playerId != null) {
+            PlayerMeasurements playerMeasurements = measurementsMap.get(playerId);
+            if (playerMeasurements == null) return null;
+            playerMeasurements.sketch(t1, t2, sketch);
+        } else {
+            globalSketches.accumulate(t1, t2, globalSketchRawSource, sketch);
+        }
+        if (sketch.isEmpty()) return null;
+        List<Double> values = new ArrayList<>(quantiles.size());
+        for (Double q : quantiles) {
+            values.add(sketch.quantile(q));
+        }
+        return new HeartRatePercentiles(sketch.getCount(), sketch.getMin(), sketch.getMax(), quantiles, values);
+    }
+
+    /**
+     * Computes the estimated heap used by the heart rate measurements, in total and for each player, together with
+     * the heap usage of the JVM, so that the heap of the server can be sized.
+     * @return the storage statistics.
+     */
+    public StorageStats getStorageStats() {
+        List<PlayerStorageStats> playerStats = new ArrayList<>();
+        long values = 0;
+        long estimatedBytes = globalRollup.estimatedBytes() + globalSketches.estimatedBytes();
+        for (Map.Entry<Integer, PlayerMeasurements> entry : measurementsMap.entrySet()) {
+            int playerValues = entry.getValue().valuesCount();
+            long playerBytes = entry.getValue().estimatedBytes();
+            playerStats.add(new PlayerStorageStats(entry.getKey(), playerValues, playerBytes));
+            values += playerValues;
+            estimatedBytes += playerBytes;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return new StorageStats(values, estimatedBytes, runtime.totalMemory() - runtime.freeMemory(),
+                runtime.maxMemory(), playerStats);
+    }
+
+    /**
+     * @return the rolling averages pushed to the subscribers of the live stream.
+     */
+    LiveAggregates getLiveAggregates() {
+        return liveAggregates;
+    }
+
+    /**
+     * @return the statistics of the cache of the aggregation queries.
+     */
+    public QueryCacheStats getQueryCacheStats() {
+        return queryCache.getStats();
+    }
+
+    /**
+     * @return the performance metrics of the server, in the Prometheus text format.
+     */
+    public String renderMetrics() {
+        return metrics.render(getStorageStats(), getQueryCacheStats());
+    }
+
+    /**
+     * @return the cache of the aggregation queries.
+     */
+    QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * @return the measurements of all the players.
+     */
+    Collection<PlayerMeasurements> getAllPlayerMeasurements() {
+        return measurementsMap.values();
+    }
+
+    /**
+     * @return the measurements of all the players, by player id.
+     */
+    Map<Integer, PlayerMeasurements> getMeasurementsMap() {
+        return measurementsMap;
+    }
+
+    /**
+     * @return the rollup of the values of all the players.
+     */
+    Rollup<Aggregate> getGlobalRollup() {
+        return globalRollup;
+    }
+
+    /**
+     * @return the rollup of the quantile sketches of the values of all the players.
+     */
+    Rollup<QuantileSketch> getGlobalSketches() {
+        return globalSketches;
+    }
+
+    /**
+     * Sets the timestamp from which the raw values of all the players are complete.
+     * @param rawRetainedFrom the timestamp.
+     */
+    void setRawRetainedFrom(long rawRetainedFrom) {
+        this.rawRetainedFrom = rawRetainedFrom;
     }
 }
@@ -0,0 +1,328 @@
+package administrator.server;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * The configuration of the administration server. Every setting is read from a property with the "watchout."
+ * prefix, so that it can be set on the command line (e.g. -Dwatchout.dataDir=/var/watchout), and falls back to a
+ * default value when the property is missing.
+ */
+class ServerConfig {
+    private final String host;
+    private final int port;
+    private final int httpWorkers;
+    private final int httpQueueCapacity;
+    private final int httpBacklog;
+    private final int ingestMaxInFlight;
+    private final double ingestPlayerRate;
+    private final double ingestPlayerBurst;
+    private final double ingestGlobalRate;
+    private final double ingestGlobalBurst;
+    private final List<String> shards;
+    private final int replicationPort;
+    private final String replicaOf;
+    private final long replicaMaxWait;
+    private final Path dataDir;
+    private final int walSegmentSize;
+    private final long snapshotInterval;
+    private final long retentionMaxAge;
+    private final long retentionMaxBytesPerPlayer;
+    private final long retentionMaxBytes;
+    private final long[] rollupMaxAges;
+    private final long compactionInterval;
+    private final long liveWindow;
+    private final int liveBufferedEvents;
+    private final int liveMaxStreams;
+    private final int cacheMaxEntries;
+    private final int queryParallelism;
+    private final int queryParallelThreshold;
+
+    /**
+     * Constructs a configuration from the given properties.
+     * @param properties the properties, missing ones take the default value.
+     */
+    ServerConfig(Properties properties) {
+        host = properties.getProperty("watchout.host", "localhost");
+        port = intProperty(properties, "watchout.port", 1337);
+        // the requests mostly wait for the write-ahead log sync, so there are more workers than cores
+        httpWorkers = intProperty(properties, "watchout.http.workers", 4 * Runtime.getRuntime().availableProcessors());
+        httpQueueCapacity = intProperty(properties, "watchout.http.queueCapacity", 4096);
+        httpBacklog = intProperty(properties, "watchout.http.backlog", 0);
+        if (httpWorkers <= 0 || httpQueueCapacity <= 0) {
+            throw new IllegalArgumentException("watchout.http.workers and watchout.http.queueCapacity must be positive");
+        }
+        // half of the workers, so that the uploads waiting for the write-ahead log never take all of them from the
+        // queries
+        ingestMaxInFlight = intProperty(properties, "watchout.ingest.maxInFlight", Math.max(1, httpWorkers / 2));
+        // a player uploads every 10 seconds, and retries after a second
+        ingestPlayerRate = doubleProperty(properties, "watchout.ingest.playerRate", 1);
+        ingestPlayerBurst = doubleProperty(properties, "watchout.ingest.playerBurst", 5);
+        ingestGlobalRate = doubleProperty(properties, "watchout.ingest.globalRate", 0);
+        ingestGlobalBurst = doubleProperty(properties, "watchout.ingest.globalBurst", ingestGlobalRate);
+        if (ingestMaxInFlight <= 0) throw new IllegalArgumentException("watchout.ingest.maxInFlight must be positive");
+        List<String> shardAddresses = new ArrayList<>();
+        for (String address : properties.getProperty("watchout.shards", "").split(",")) {
+            if (!address.trim().isEmpty()) shardAddresses.add(address.trim());
+        }
+        shards = Collections.unmodifiableList(shardAddresses);
+        replicationPort = intProperty(properties, "watchout.replication.port", 0);
+        String primary = properties.getProperty("watchout.replicaOf", "").trim();
+        replicaOf = primary.isEmpty() ? null : primary;
+        replicaMaxWait = longProperty(properties, "watchout.replica.maxWait", 1000);
+        dataDir = Paths.get(properties.getProperty("watchout.dataDir", "watchout-data"));
+        walSegmentSize = intProperty(properties, "watchout.wal.segmentSize", 16 * 1024 * 1024);
+        snapshotInterval = longProperty(properties, "watchout.snapshot.interval", 300_000);
+        retentionMaxAge = longProperty(properties, "watchout.retention.maxAge", 0);
+        retentionMaxBytesPerPlayer = longProperty(properties, "watchout.retention.maxBytesPerPlayer", 0);
+        retentionMaxBytes = longProperty(properties, "watchout.retention.maxBytes", Runtime.getRuntime().maxMemory() / 4);
+        String[] maxAges = properties.getProperty("watchout.retention.rollupMaxAges", "86400000,604800000,0").split(",");
+        if (maxAges.length != Rollup.RESOLUTIONS.length) {
+            throw new IllegalArgumentException("watchout.retention.rollupMaxAges needs one value per rollup tier");
+        }
+        rollupMaxAges = new long[maxAges.length];
+        for (int i = 0; i < maxAges.length; i++) {
+            rollupMaxAges[i] = Long.parseLong(maxAges[i].trim());
+        }
+        compactionInterval = longProperty(properties, "watchout.compaction.interval", 60_000);
+        liveWindow = longProperty(properties, "watchout.live.window", 60_000);
+        liveBufferedEvents = intProperty(properties, "watchout.live.bufferedEvents", 4096);
+        liveMaxStreams = intProperty(properties, "watchout.live.maxStreams", 64);
+        cacheMaxEntries = intProperty(properties, "watchout.cache.maxEntries", 1024);
+        // half of the cores, the other half is left to the ingestion
+        queryParallelism = intProperty(properties, "watchout.query.parallelism",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        queryParallelThreshold = intProperty(properties, "watchout.query.parallelThreshold", 256);
+    }
+
+    /**
+     * @return the configuration read from the system properties.
+     */
+    static ServerConfig fromSystemProperties() {
+        return new ServerConfig(System.getProperties());
+    }
+
+    /**
+     * @return the host name on which the rest server listens.
+     */
+    String getHost() {
+        return host;
+    }
+
+    /**
+     * @return the port on which the rest server listens.
+     */
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the number of worker threads that serve the rest requests, besides the ones of the live streams.
+     */
+    int getHttpWorkers() {
+        return httpWorkers;
+    }
+
+    /**
+     * @return the maximum number of rest requests waiting for a worker, beyond which the server stops reading new
+     * requests until one is free.
+     */
+    int getHttpQueueCapacity() {
+        return httpQueueCapacity;
+    }
+
+    /**
+     * @return the maximum number of connections waiting to be accepted, 0 for the default of the system.
+     */
+    int getHttpBacklog() {
+        return httpBacklog;
+    }
+
+    /**
+     * @return the maximum number of uploads of heart rate measurements ingested at the same time, beyond which
+     * they are rejected with 429.
+     */
+    int getIngestMaxInFlight() {
+        return ingestMaxInFlight;
+    }
+
+    /**
+     * @return the uploads per second allowed to a single player, 0 for no limit.
+     */
+    double getIngestPlayerRate() {
+        return ingestPlayerRate;
+    }
+
+    /**
+     * @return the uploads that a player can send at once after being idle.
+     */
+    double getIngestPlayerBurst() {
+        return ingestPlayerBurst;
+    }
+
+    /**
+     * @return the batches per second allowed to all the players together, 0 for no limit.
+     */
+    double getIngestGlobalRate() {
+        return ingestGlobalRate;
+    }
+
+    /**
+     * @return the batches that can arrive at once after an idle period, from all the players together.
+     */
+    double getIngestGlobalBurst() {
+        return ingestGlobalBurst;
+    }
+
+    /**
+     * @return the base addresses of the shards among which a router partitions the players (e.g.
+     * http://localhost:1338), empty if the deployment is not sharded.
+     */
+    List<String> getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the port on which a primary ships its write-ahead log to the replicas, 0 if it has none.
+     */
+    int getReplicationPort() {
+        return replicationPort;
+    }
+
+    /**
+     * @return the address of the replication port of the primary (e.g. localhost:1437) if this server is a read
+     * replica, null if it is a primary.
+     */
+    String getReplicaOf() {
+        return replicaOf;
+    }
+
+    /**
+     * @return the maximum time in milliseconds that a replica waits to reach the version required by a read.
+     */
+    long getReplicaMaxWait() {
+        return replicaMaxWait;
+    }
+
+    /**
+     * @return the directory where the server stores its durable state.
+     */
+    Path getDataDir() {
+        return dataDir;
+    }
+
+    /**
+     * @return the size in bytes of each write-ahead log segment file.
+     */
+    int getWalSegmentSize() {
+        return walSegmentSize;
+    }
+
+    /**
+     * @return the time in milliseconds between two snapshots of the state, after which the write-ahead log is
+     * truncated, 0 to never take snapshots and keep the whole log.
+     */
+    long getSnapshotInterval() {
+        return snapshotInterval;
+    }
+
+    /**
+     * @return the age in milliseconds after which raw heart rate values are evicted, 0 if they never expire.
+     */
+    long getRetentionMaxAge() {
+        return retentionMaxAge;
+    }
+
+    /**
+     * @return the estimated heap in bytes that the raw values of a single player may use, 0 for no limit. The
+     * rollups are not counted, they are bounded by their maximum ages.
+     */
+    long getRetentionMaxBytesPerPlayer() {
+        return retentionMaxBytesPerPlayer;
+    }
+
+    /**
+     * @return the estimated heap in bytes that the raw values of all the players may use, 0 for no limit. The
+     * rollups are not counted, they are bounded by their maximum ages.
+     */
+    long getRetentionMaxBytes() {
+        return retentionMaxBytes;
+    }
+
+    /**
+     * @return for each rollup tier, the age in milliseconds after which its buckets are evicted, 0 if they never
+     * expire.
+     */
+    long[] getRollupMaxAges() {
+        return rollupMaxAges.clone();
+    }
+
+    /**
+     * @return the time in milliseconds between two runs of the compactor.
+     */
+    long getCompactionInterval() {
+        return compactionInterval;
+    }
+
+    /**
+     * @return the length in milliseconds of the rolling windows of the live stream.
+     */
+    long getLiveWindow() {
+        return liveWindow;
+    }
+
+    /**
+     * @return the number of recent events of the live stream kept for subscribers that fall behind.
+     */
+    int getLiveBufferedEvents() {
+        return liveBufferedEvents;
+    }
+
+    /**
+     * @return the maximum number of live streams open at the same time, each of which holds its own worker thread.
+     */
+    int getLiveMaxStreams() {
+        return liveMaxStreams;
+    }
+
+    /**
+     * @return the maximum number of cached query results, 0 if the cache is disabled.
+     */
+    int getCacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+
+    /**
+     * @return the number of threads that aggregate the players in parallel for a query, 1 to aggregate them always
+     * on the thread of the request.
+     */
+    int getQueryParallelism() {
+        return queryParallelism;
+    }
+
+    /**
+     * @return the number of players from which a query aggregates them in parallel.
+     */
+    int getQueryParallelThreshold() {
+        return queryParallelThreshold;
+    }
+
+    private static long longProperty(Properties properties, String name, long defaultValue) {
+        String value = properties.getProperty(name);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    private static double doubleProperty(Properties properties, String name, double defaultValue) {
+        String value = properties.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value.trim());
+    }
+
+    private static int intProperty(Properties properties, String name, int defaultValue) {
+        String value = properties.getProperty(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+}
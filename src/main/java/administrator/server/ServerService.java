@@ -2,61 +2,208 @@ package administrator.server;
 
 import beans.AddPlayerResponse;
 import beans.HeartRateMeasurements;
+import beans.HeartRatePercentiles;
+import beans.IngestResult;
 import beans.Player;
+import beans.PlayerChanges;
 
 import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
 /**
  * ServerService class provides RESTful endpoints for managing players and heart rate measurements.
  */
 @Path("players")
 public class ServerService {
+    private static final List<Double> DEFAULT_QUANTILES = Arrays.asList(0.5, 0.95, 0.99);
+    private static final long LIVE_KEEPALIVE_INTERVAL = 15_000;
+    private static final byte[] LIVE_KEEPALIVE = ": keepalive\n\n".getBytes(StandardCharsets.UTF_8);
 
     /**
      * Adds a new player to the server.
      *
      * @param player the player to add
      * @return A Response indicating the outcome of the add operation. The HTTP status code is 200 if the id
-     * of the player is unique, 409 conflict otherwise.
+     * of the player is unique, 409 conflict otherwise, and 403 FORBIDDEN on a read replica. The version that
+     * includes the player is in the X-WatchOut-Version header.
      */
     @Path("add")
     @POST
     @Consumes({"application/json", "application/xml"})
     @Produces({"application/json", "application/xml"})
     public Response addPlayer(Player player) {
+        if (Server.getInstance().isReplica()) return readOnly();
         AddPlayerResponse addPlayerResponse = Server.getInstance().addPlayer(player);
         if (addPlayerResponse != null) {
-            return Response.ok(addPlayerResponse).build();
+            return Response.ok(addPlayerResponse).header(ConsistencyFilter.VERSION_HEADER, Server.getInstance().getVersion()).build();
         } else {
             return Response.status(Response.Status.CONFLICT).entity("Id is already used by another player").build();
         }
     }
 
     /**
-     * Retrieves all players from the server.
+     * Retrieves the players from the server, in order of registration, optionally a page of them. The response
+     * carries the version of the players as its ETag, and a request whose If-None-Match matches it gets no body.
      *
-     * @return A Response containing a list of all players
+     * @param offset the index of the first player of the page, 0 if missing
+     * @param limit the maximum number of players of the page, all of them if missing
+     * @return A Response containing a list of players. The HTTP status code is 200 if the request is successful,
+     * 304 NOT MODIFIED if the players did not change, and 400 BAD REQUEST if offset or limit are negative
      */
     @Path("get-all")
     @GET
     @Produces({"application/json", "application/xml"})
-    public Response getPlayers() {
-        return Response.ok(Server.getInstance().getPlayers()).build();
+    public Response getPlayers(@QueryParam("offset") @DefaultValue("0") int offset, @QueryParam("limit") Integer limit,
+                               @Context Request request) {
+        return playersPage(Server.getInstance().getPlayersSnapshot(), offset, limit, request);
+    }
+
+    /**
+     * Retrieves the number of players registered to the server, without their data.
+     *
+     * @return A Response containing the number of players, with their version as ETag. The HTTP status code is 200,
+     * or 304 NOT MODIFIED if the players did not change
+     */
+    @Path("count")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response countPlayers(@Context Request request) {
+        return playersCount(Server.getInstance().getPlayersSnapshot(), request);
+    }
+
+    /**
+     * Retrieves the players registered since a version of the players, so that a client that already knows the
+     * players up to that version fetches only the new ones.
+     *
+     * @param since the version known to the client, 0 to get all the players
+     * @param epoch the epoch of the version known to the client, as returned with it
+     * @return A Response containing the new players and the current epoch and version, which are also the ETag. The
+     * HTTP status code is 200 if the request is successful, 304 NOT MODIFIED if the players did not change, and 400
+     * BAD REQUEST if the version is negative, newer than the current one or of another epoch, e.g. because the
+     * server lost its data or restarted: the client must start over from version 0
+     */
+    @Path("changes")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getPlayerChanges(@QueryParam("since") @DefaultValue("0") long since,
+                                     @QueryParam("epoch") Long epoch, @Context Request request) {
+        return playerChanges(Server.getInstance().getPlayersSnapshot(), since, epoch, request);
+    }
+
+    /**
+     * Builds the response of get-all from a snapshot of the players, also used by the router.
+     */
+    static Response playersPage(PlayerRegistry.Snapshot snapshot, int offset, Integer limit, Request request) {
+        if (offset < 0 || (limit != null && limit < 0)) {
+            return Response.status(Status.BAD_REQUEST).entity("'offset' and 'limit' params must be >= 0").build();
+        }
+        EntityTag tag = versionTag(snapshot);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) return notModified.tag(tag).build();
+        return Response.ok(snapshot.page(offset, limit == null ? Integer.MAX_VALUE : limit)).tag(tag).build();
+    }
+
+    /**
+     * Builds the response of count from a snapshot of the players, also used by the router.
+     */
+    static Response playersCount(PlayerRegistry.Snapshot snapshot, Request request) {
+        EntityTag tag = versionTag(snapshot);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) return notModified.tag(tag).build();
+        return Response.ok(snapshot.size()).tag(tag).build();
+    }
+
+    /**
+     * Builds the response of changes from a snapshot of the players, also used by the router.
+     */
+    static Response playerChanges(PlayerRegistry.Snapshot snapshot, long since, Long epoch, Request request) {
+        if (since < 0 || since > snapshot.getVersion()) {
+            return Response.status(Status.BAD_REQUEST).entity("'since' param must be between 0 and the current version "
+                    + snapshot.getVersion() + ", instead got:" + since).build();
+        }
+        if (since > 0 && epoch != null && epoch != snapshot.getEpoch()) {
+            return Response.status(Status.BAD_REQUEST).entity("The players of epoch " + epoch
+                    + " are no longer known, start over from version 0").build();
+        }
+        EntityTag tag = versionTag(snapshot);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) return notModified.tag(tag).build();
+        return Response.ok(new PlayerChanges(snapshot.getEpoch(), snapshot.getVersion(), snapshot.since(since)))
+                .tag(tag).build();
+    }
+
+    /**
+     * @return the ETag of the responses computed from a snapshot of the players: its epoch and version, so that a
+     * tag of a registry that has been rebuilt never matches.
+     */
+    private static EntityTag versionTag(PlayerRegistry.Snapshot snapshot) {
+        return new EntityTag(snapshot.getEpoch() + "-" + snapshot.getVersion());
     }
 
     /**
-     * Adds heart rate measurements to the server.
+     * Adds heart rate measurements to the server. Besides JSON and XML, the measurements can be uploaded in the
+     * compact protobuf format of HeartRateUpload, where every value has its own timestamp.
      *
      * @param hr the heart rate measurements to add
-     * @return A Response indicating the outcome of the add operation
+     * @return A Response indicating the outcome of the add operation. The HTTP status code is 200 if the
+     * measurements have been stored, 400 BAD REQUEST if the timestamps and the values differ in number, 403
+     * FORBIDDEN on a read replica, 413 REQUEST ENTITY TOO LARGE if the batch does not fit in a record of the
+     * write-ahead log, and 429 TOO MANY REQUESTS if the server is saturated, with the seconds after which
+     * to retry in the Retry-After header. The version that includes the measurements is in the X-WatchOut-Version
+     * header.
      */
     @Path("heart-rate")
     @POST
-    @Consumes({"application/json", "application/xml"})
+    @Consumes({"application/json", "application/xml", ProtobufMeasurementsReader.MEDIA_TYPE})
     public Response addHRMeasurements(HeartRateMeasurements hr){
-        Server.getInstance().addHRMeasurements(hr);
-        return Response.ok().build();
+        if (Server.getInstance().isReplica()) return readOnly();
+        if (!hr.hasConsistentTimestamps()) return Response.status(Response.Status.BAD_REQUEST).entity("The timestamps and the HR values differ in number").build();
+        long retryAfter = Server.getInstance().admitIngest(hr.getId(), 1);
+        if (retryAfter > 0) return tooManyRequests(retryAfter);
+        try {
+            Server.getInstance().addHRMeasurements(hr);
+        } catch (IllegalArgumentException e) {
+            return Response.status(413).entity(e.getMessage()).build();
+        } finally {
+            Server.getInstance().releaseIngest();
+        }
+        return Response.ok().header(ConsistencyFilter.VERSION_HEADER, Server.getInstance().getVersion()).build();
+    }
+
+    /**
+     * Adds the heart rate measurements of many players with a single request, as relayed by a gateway.
+     *
+     * @param batches the heart rate measurements to add, any number of batches for any number of players
+     * @return A Response containing the outcome of each batch, in the same order. The HTTP status code is 200 if the
+     * upload has been processed, even if some of its batches have been rejected, 400 BAD REQUEST if the body is
+     * missing, 403 FORBIDDEN on a read replica, and 429 TOO MANY REQUESTS if the server is saturated, with the
+     * seconds after which to retry in the Retry-After header
+     */
+    @Path("heart-rate/bulk")
+    @POST
+    @Consumes({"application/json", "application/xml"})
+    @Produces({"application/json", "application/xml"})
+    public Response addHRMeasurementsBulk(List<HeartRateMeasurements> batches){
+        if (Server.getInstance().isReplica()) return readOnly();
+        if (batches == null) return Response.status(Response.Status.BAD_REQUEST).entity("The list of heart rate measurements is missing").build();
+        long retryAfter = Server.getInstance().admitIngest(null, batches.size());
+        if (retryAfter > 0) return tooManyRequests(retryAfter);
+        List<IngestResult> results;
+        try {
+            results = Server.getInstance().addHRMeasurements(batches);
+        } finally {
+            Server.getInstance().releaseIngest();
+        }
+        return Response.ok(results).header(ConsistencyFilter.VERSION_HEADER, Server.getInstance().getVersion()).build();
     }
 
     /**
@@ -71,14 +218,14 @@ public class ServerService {
     @GET
     @Produces({"application/json", "application/xml"})
     public Response getAverageLastNHR(@QueryParam("n") int n, @QueryParam("player") int playerId) {
-        Server s = Server.getInstance();
         if (n<= 0) return Response.status(Response.Status.BAD_REQUEST).entity("'n' param must be > 0, instead got:"+ n).build();
-        if (! s.existsPlayerHRMeasurements(playerId)) 
-            return Response.status(Response.Status.NOT_FOUND).entity("there are no measurements for player "+ playerId).build();
-        int measurementsCount = s.measurementsCount(playerId);
-        if (n > measurementsCount) 
-            return Response.status(Response.Status.BAD_REQUEST).entity("'n' too big, got:"+ n + " but there are "+ measurementsCount +" HR values").build();
-        return Response.ok(s.getAverageLastNHR(n, playerId)).build();
+        try {
+            return Response.ok(Server.getInstance().getAverageLastNHR(n, playerId)).build();
+        } catch (NoSuchElementException e) {
+            return Response.status(Response.Status.NOT_FOUND).entity(e.getMessage()).build();
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        }
     }
 
     /**
@@ -108,4 +255,197 @@ public class ServerService {
             return Response.status(Status.NOT_FOUND).entity("No heart rate measurements found between " + t1 + " and " + t2).build();
         }
     }
+
+    /**
+     * Retrieves the count, average, minimum and maximum of the heart rate measurements of every player between two
+     * specified times, with a single request.
+     *
+     * @param t1 the start time in milliseconds
+     * @param t2 the end time in milliseconds
+     * @return A Response containing the aggregates of the players with measurements between the specified times,
+     * ordered by player id. The HTTP status code is 200
+     */
+    @Path("heart-rate/average/by-player")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getHRByPlayerBetweenTime(@QueryParam("t1") long t1, @QueryParam("t2") long t2) {
+        return Response.ok(Server.getInstance().getRangeAggregatesByPlayer(Math.min(t1, t2), Math.max(t1, t2))).build();
+    }
+
+    /**
+     * Retrieves the count, sum, minimum and maximum of the heart rate measurements between two specified times, the
+     * partial result that a router merges across the shards of a sharded deployment.
+     *
+     * @param t1 the start time in milliseconds
+     * @param t2 the end time in milliseconds
+     * @return A Response containing the aggregate, whose count is 0 if there are no measurements between the
+     * specified times. The HTTP status code is 200
+     */
+    @Path("heart-rate/partial/between-time")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getPartialHRBetweenTime(@QueryParam("t1") long t1, @QueryParam("t2") long t2) {
+        return Response.ok(Server.getInstance().getRangeAggregate(Math.min(t1, t2), Math.max(t1, t2))).build();
+    }
+
+    /**
+     * Retrieves a downsampled series of the heart rate measurements between two specified times, for charts.
+     *
+     * @param t1 the start time in milliseconds
+     * @param t2 the end time in milliseconds
+     * @param points the number of intervals in which the time range is split
+     * @param playerId the ID of the player, if missing the measurements of all the players are summarized
+     * @return A Response containing, for every interval with measurements, its start and the count, average,
+     * minimum and maximum of its heart rate values. The HTTP status code is 200 if the request is successful, 400
+     * BAD REQUEST if points is not between 1 and 10000
+     */
+    @Path("heart-rate/series")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getHRSeries(@QueryParam("t1") long t1, @QueryParam("t2") long t2, @QueryParam("points") int points,
+                                @QueryParam("player") Integer playerId) {
+        if (points <= 0 || points > 10000)
+            return Response.status(Response.Status.BAD_REQUEST).entity("'points' param must be between 1 and 10000, instead got:"+ points).build();
+        if (t1 > t2){
+            long temp = t1;
+            t1 = t2;
+            t2 = temp;
+        }
+        return Response.ok(Server.getInstance().getHRSeries(t1, t2, points, playerId)).build();
+    }
+
+    /**
+     * Retrieves percentiles of the heart rate measurements between two specified times, of a player or of all the
+     * players. Each percentile is within 1% of the exact one.
+     *
+     * @param t1 the start time in milliseconds
+     * @param t2 the end time in milliseconds
+     * @param playerId the ID of the player, if missing the measurements of all the players are considered
+     * @param quantiles the quantiles to compute, between 0 and 1, repeated for more than one (e.g. q=0.5&q=0.99);
+     *                  if missing the 50th, 95th and 99th percentiles are computed
+     * @return A Response containing the count, minimum, maximum and percentiles of the heart rate measurements
+     * between the specified times. The HTTP status code is 200 if the request is successful, 400 BAD REQUEST if a
+     * quantile is not between 0 and 1, and 404 NOT FOUND if there are no measurements between the specified time
+     * stamps
+     */
+    @Path("heart-rate/percentiles")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getHRPercentiles(@QueryParam("t1") long t1, @QueryParam("t2") long t2,
+                                     @QueryParam("player") Integer playerId, @QueryParam("q") List<Double> quantiles) {
+        if (t1 > t2){
+            long temp = t1;
+            t1 = t2;
+            t2 = temp;
+        }
+        if (quantiles == null || quantiles.isEmpty()) quantiles = DEFAULT_QUANTILES;
+        try {
+            HeartRatePercentiles percentiles = Server.getInstance().getHRPercentiles(t1, t2, playerId, quantiles);
+            if (percentiles != null) {
+                return Response.ok(percentiles).build();
+            } else {
+                return Response.status(Status.NOT_FOUND).entity("No heart rate measurements found between " + t1 + " and " + t2).build();
+            }
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        }
+    }
+
+    /**
+     * Streams the rolling averages of heart rate as server-sent events. An event is pushed every time the server
+     * receives a batch of measurements, with the rolling averages of the player that sent it and of all the players.
+     * A comment is sent when there are no events for a while, so that closed connections are detected.
+     *
+     * @param playerId the ID of the player whose events are streamed, if missing the events of all the players are
+     * streamed
+     * @param lastEventId the id of the last event received before a reconnection, the stream resumes after it if
+     * the event is recent enough
+     * @return A Response with the never-ending stream of events, or 503 SERVICE UNAVAILABLE if the maximum number of
+     * streams are already open
+     */
+    @Path("heart-rate/live")
+    @GET
+    @Produces("text/event-stream")
+    public Response getLiveHR(@QueryParam("player") Integer playerId, @HeaderParam("Last-Event-ID") Long lastEventId) {
+        LiveAggregates liveAggregates = Server.getInstance().getLiveAggregates();
+        if (!liveAggregates.openStream()) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", LIVE_KEEPALIVE_INTERVAL / 1000)
+                    .entity("Too many live streams are open").build();
+        }
+        long lastSeq = liveAggregates.lastSeq();
+        long start = lastEventId == null || lastEventId > lastSeq ? lastSeq : lastEventId;
+        StreamingOutput stream = output -> {
+            long after = start;
+            try {
+                while (true) {
+                    List<LiveAggregates.Event> events = liveAggregates.awaitAfter(after, LIVE_KEEPALIVE_INTERVAL);
+                    if (events.isEmpty()) {
+                        output.write(LIVE_KEEPALIVE);
+                    }
+                    for (LiveAggregates.Event event : events) {
+                        if (playerId == null || event.playerId == playerId) output.write(event.frame());
+                        after = event.seq;
+                    }
+                    output.flush();
+                }
+            } catch (InterruptedException e) {
+                // the server is shutting down
+            } finally {
+                liveAggregates.closeStream();
+            }
+        };
+        return Response.ok(stream).header("Cache-Control", "no-cache").build();
+    }
+
+    /**
+     * Retrieves the estimated memory used by the heart rate measurements, in total and for each player, together
+     * with the heap usage of the server.
+     *
+     * @return A Response containing the storage statistics
+     */
+    @Path("heart-rate/storage")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getStorageStats() {
+        return Response.ok(Server.getInstance().getStorageStats()).build();
+    }
+
+    /**
+     * Retrieves the usage of the cache of the aggregation queries: its size and its hit, miss, coalesced and
+     * invalidation counters.
+     *
+     * @return A Response containing the cache statistics
+     */
+    @Path("heart-rate/cache")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getQueryCacheStats() {
+        return Response.ok(Server.getInstance().getQueryCacheStats()).build();
+    }
+
+    /**
+     * Retrieves the replication state of the server: its role, its version, and on a read replica the lag behind
+     * the primary, in records and in milliseconds.
+     *
+     * @return A Response containing the replication status
+     */
+    @Path("replication")
+    @GET
+    @Produces({"application/json", "application/xml"})
+    public Response getReplicationStatus() {
+        return Response.ok(Server.getInstance().getReplicationStatus()).build();
+    }
+
+    /**
+     * @param retryAfter the time in milliseconds after which the upload may be admitted.
+     */
+    private static Response tooManyRequests(long retryAfter) {
+        // Retry-After is in whole seconds, rounded up so that the retry is not rejected again
+        return Response.status(429).header("Retry-After", (retryAfter + 999) / 1000)
+                .entity("The server is saturated, retry after " + retryAfter + " ms").build();
+    }
+
+    private static Response readOnly() {
+        return Response.status(Status.FORBIDDEN).entity("This server is a read-only replica, send the writes to the primary").build();
+    }
 }
@@ -0,0 +1,45 @@
+package administrator.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The partitioning of the players among the shards of a sharded deployment. The id of a player is hashed to 32 bits,
+ * and each of the n shards owns an equal range of the hashes, so consecutive ids spread over all the shards.
+ * This class is immutable.
+ */
+class ShardMap {
+    private final List<String> addresses;
+
+    /**
+     * @param addresses the base addresses of the shards, in order: every router of the deployment must list them
+     *                  in the same order, or the same player would be owned by different shards.
+     */
+    ShardMap(List<String> addresses) {
+        if (addresses.isEmpty()) throw new IllegalArgumentException("A sharded deployment needs at least one shard");
+        this.addresses = new ArrayList<>(addresses);
+    }
+
+    /**
+     * @return the index of the shard that owns the player.
+     */
+    int shardOf(int playerId) {
+        // a multiplicative hash, whose high bits depend on all the bits of the id
+        long hash = (playerId * 0x9E3779B9L) & 0xFFFFFFFFL;
+        return (int) ((hash * addresses.size()) >>> 32);
+    }
+
+    /**
+     * @return the base address of the shard.
+     */
+    String address(int shard) {
+        return addresses.get(shard);
+    }
+
+    /**
+     * @return the number of shards.
+     */
+    int size() {
+        return addresses.size();
+    }
+}
@@ -0,0 +1,351 @@
+package administrator.server;
+
+import beans.Player;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The binary format of the snapshots of the server state, which make the restart independent of the length of the
+ * history: the server loads the latest snapshot and replays only the records of the write-ahead log after it.
+ * <p>
+ * Layout: a header ({@code long MAGIC | int FORMAT_VERSION | int playerCount | int storeCount | int reserved |
+ * long lsn | long directoryOffset}), the players in columns (ids, listen ports, x, y, then the addresses as
+ * {@code short length | UTF-8 bytes}), a block for the measurements of each player (see PlayerMeasurements.writeTo)
+ * and a directory with the player id, offset and length of every block, in columns.
+ * The snapshot includes every record of the log up to its LSN, and possibly some later ones: the players record the
+ * LSN of the last one they include, so that the replay skips them.
+ * <p>
+ * The file is written to a temporary file, forced to disk and renamed, so a snapshot is either complete or absent.
+ * It is loaded by mapping it: the columns of the players, of the rollups and of the chunk summaries are read
+ * eagerly, while the bits of the compressed chunks, the bulk of the file, stay in the mapped file until a query
+ * decodes them. The file is mapped in windows of WINDOW_SIZE bytes, and a block never crosses the boundary of a
+ * window unless it is larger than a window, in which case it is mapped on its own.
+ * <p>
+ * The same file is shipped as is to a read replica that needs records the log no longer has (see
+ * ReplicationSource), and loaded by the replica like a local one.
+ */
+final class SnapshotFile {
+    private static final long MAGIC = 0x574F534E41505348L;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 40;
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * A snapshot loaded from its file.
+     */
+    static final class Loaded {
+        private final long lsn;
+        private final List<Player> players;
+        private final Map<Integer, PlayerMeasurements> measurements;
+
+        private Loaded(long lsn, List<Player> players, Map<Integer, PlayerMeasurements> measurements) {
+            this.lsn = lsn;
+            this.players = players;
+            this.measurements = measurements;
+        }
+
+        /**
+         * @return the LSN up to which the snapshot includes every record of the write-ahead log.
+         */
+        long getLsn() {
+            return lsn;
+        }
+
+        /**
+         * @return the players, in order of registration.
+         */
+        List<Player> getPlayers() {
+            return players;
+        }
+
+        /**
+         * @return the measurements of the players, by player id.
+         */
+        Map<Integer, PlayerMeasurements> getMeasurements() {
+            return measurements;
+        }
+    }
+
+    /**
+     * Writes a snapshot to a temporary file in the given directory, which becomes the latest snapshot once it is
+     * published. Each player is locked only while its measurements are copied to the block written for it.
+     * @param dir the directory of the snapshots, created if it does not exist.
+     * @param lsn the LSN up to which the state includes every record of the write-ahead log.
+     * @param players the players, in order of registration.
+     * @param measurements the measurements of the players, by player id.
+     * @return the temporary file, forced to disk.
+     * @throws IOException if the file cannot be written.
+     */
+    static Path write(Path dir, long lsn, List<Player> players, Map<Integer, PlayerMeasurements> measurements) throws IOException {
+        Files.createDirectories(dir);
+        Path temporary = dir.resolve(name(lsn) + TEMPORARY_SUFFIX);
+        int storeCount = measurements.size();
+        int[] ids = new int[storeCount];
+        long[] offsets = new long[storeCount];
+        int[] lengths = new int[storeCount];
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(HEADER_SIZE);
+            writeFully(channel, encodePlayers(players));
+            int i = 0;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (Map.Entry<Integer, PlayerMeasurements> entry : measurements.entrySet()) {
+                bytes.reset();
+                entry.getValue().writeTo(new DataOutputStream(bytes));
+                // each block starts on an 8-byte boundary; the words of its chunks follow columns of ints, so they
+                // may not be aligned, and are copied to the heap the first time they are decoded
+                long position = (channel.position() + 7) & ~7L;
+                long end = position + bytes.size();
+                if (bytes.size() <= WINDOW_SIZE && position / WINDOW_SIZE != (end - 1) / WINDOW_SIZE) {
+                    position = end / WINDOW_SIZE * WINDOW_SIZE;
+                }
+                channel.position(position);
+                writeFully(channel, ByteBuffer.wrap(bytes.toByteArray()));
+                ids[i] = entry.getKey();
+                offsets[i] = position;
+                lengths[i] = bytes.size();
+                i++;
+            }
+            long directoryOffset = channel.position();
+            ByteBuffer directory = ByteBuffer.allocate(16 * storeCount);
+            for (int id : ids) directory.putInt(id);
+            for (long offset : offsets) directory.putLong(offset);
+            for (int length : lengths) directory.putInt(length);
+            directory.flip();
+            writeFully(channel, directory);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(MAGIC).putInt(FORMAT_VERSION).putInt(players.size()).putInt(storeCount).putInt(0);
+            header.putLong(lsn).putLong(directoryOffset);
+            header.flip();
+            channel.position(0);
+            writeFully(channel, header);
+            channel.force(true);
+        }
+        return temporary;
+    }
+
+    /**
+     * Makes a temporary file written by write the latest snapshot, by renaming it atomically, and deletes the older
+     * snapshots. A snapshot may still be mapped after it is deleted, the space is freed when it is unmapped.
+     * @param temporary the temporary file.
+     * @return the snapshot file.
+     * @throws IOException if the file cannot be renamed.
+     */
+    static Path publish(Path temporary) throws IOException {
+        String name = temporary.getFileName().toString();
+        Path dir = temporary.getParent();
+        Path snapshot = dir.resolve(name.substring(0, name.length() - TEMPORARY_SUFFIX.length()));
+        Files.move(temporary, snapshot, StandardCopyOption.ATOMIC_MOVE);
+        // the rename must be durable before the log is truncated
+        try (FileChannel directory = FileChannel.open(dir, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException ignored) {
+            // not every platform can open a directory, there the rename is durable with the file
+        }
+        // the older snapshots, and the temporary files left by a crash
+        for (Path old : list(dir, "")) {
+            if (!old.equals(snapshot)) Files.deleteIfExists(old);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Receives a snapshot shipped by the primary, writing it to a temporary file that is then published and
+     * loaded.
+     * @param dir the directory of the snapshots of the replica, created if it does not exist.
+     * @param lsn the LSN of the snapshot.
+     * @param in the stream, positioned at the content of the file.
+     * @param length the length of the file.
+     * @return the snapshot.
+     * @throws IOException if the file cannot be received or written.
+     * @throws IllegalStateException if the file is not a snapshot of this format.
+     */
+    static Loaded receive(Path dir, long lsn, DataInputStream in, long length) throws IOException {
+        Files.createDirectories(dir);
+        Path temporary = dir.resolve(name(lsn) + TEMPORARY_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] buffer = new byte[64 * 1024];
+            for (long remaining = length; remaining > 0; ) {
+                int read = (int) Math.min(buffer.length, remaining);
+                in.readFully(buffer, 0, read);
+                writeFully(channel, ByteBuffer.wrap(buffer, 0, read));
+                remaining -= read;
+            }
+            channel.force(true);
+        }
+        return load(publish(temporary));
+    }
+
+    /**
+     * @param dir the directory of the snapshots.
+     * @return the latest snapshot of the directory, or null if there is none.
+     */
+    static Path latest(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) return null;
+        List<Path> snapshots = list(dir, SUFFIX);
+        return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+    }
+
+    /**
+     * @param snapshot a snapshot file.
+     * @return the LSN of the snapshot, from the name of its file.
+     */
+    static long lsnOf(Path snapshot) {
+        String name = snapshot.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Loads the latest snapshot of the given directory, mapping its file.
+     * @param dir the directory of the snapshots.
+     * @return the snapshot, or null if there is none.
+     * @throws IOException if the file cannot be read.
+     * @throws IllegalStateException if the file is not a snapshot of this format.
+     */
+    static Loaded loadLatest(Path dir) throws IOException {
+        Path path = latest(dir);
+        return path == null ? null : load(path);
+    }
+
+    /**
+     * Loads a snapshot, mapping its file.
+     */
+    private static Loaded load(Path path) throws IOException {
+        // the mappings stay valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getLong() != MAGIC || header.getInt() != FORMAT_VERSION) {
+                throw new IllegalStateException(path + " is not a snapshot of format " + FORMAT_VERSION);
+            }
+            int playerCount = header.getInt();
+            int storeCount = header.getInt();
+            header.getInt();
+            long lsn = header.getLong();
+            long directoryOffset = header.getLong();
+
+            List<Player> players = decodePlayers(channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                    Math.min(directoryOffset - HEADER_SIZE, Integer.MAX_VALUE)), playerCount);
+            ByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY, directoryOffset, 16L * storeCount);
+            int[] ids = new int[storeCount];
+            long[] offsets = new long[storeCount];
+            int[] lengths = new int[storeCount];
+            for (int i = 0; i < storeCount; i++) ids[i] = directory.getInt();
+            for (int i = 0; i < storeCount; i++) offsets[i] = directory.getLong();
+            for (int i = 0; i < storeCount; i++) lengths[i] = directory.getInt();
+
+            Map<Integer, PlayerMeasurements> measurements = new HashMap<>();
+            for (int i = 0; i < storeCount; i++) {
+                ByteBuffer block;
+                int window = (int) (offsets[i] / WINDOW_SIZE);
+                if (window == (offsets[i] + lengths[i] - 1) / WINDOW_SIZE) {
+                    if (windows[window] == null) {
+                        long start = window * WINDOW_SIZE;
+                        windows[window] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+                    }
+                    block = windows[window].duplicate();
+                    block.position((int) (offsets[i] - window * WINDOW_SIZE));
+                    block = block.slice();
+                    block.limit(lengths[i]);
+                } else {
+                    block = channel.map(FileChannel.MapMode.READ_ONLY, offsets[i], lengths[i]);
+                }
+                measurements.put(ids[i], PlayerMeasurements.readFrom(block));
+            }
+            return new Loaded(lsn, players, measurements);
+        }
+    }
+
+    /**
+     * Encodes the players in columns.
+     */
+    private static ByteBuffer encodePlayers(List<Player> players) {
+        byte[][] addresses = new byte[players.size()][];
+        int size = 0;
+        for (int i = 0; i < players.size(); i++) {
+            String address = players.get(i).getPlayerAddress() == null ? "" : players.get(i).getPlayerAddress();
+            addresses[i] = address.getBytes(StandardCharsets.UTF_8);
+            size += 18 + addresses[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Player player : players) buffer.putInt(player.getId());
+        for (Player player : players) buffer.putInt(player.getListenPort());
+        for (Player player : players) buffer.putInt(player.getX());
+        for (Player player : players) buffer.putInt(player.getY());
+        for (byte[] address : addresses) buffer.putShort((short) address.length).put(address);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decodes the players encoded by encodePlayers.
+     */
+    private static List<Player> decodePlayers(ByteBuffer in, int count) {
+        int[] ids = new int[count];
+        int[] listenPorts = new int[count];
+        int[] xs = new int[count];
+        int[] ys = new int[count];
+        for (int i = 0; i < count; i++) ids[i] = in.getInt();
+        for (int i = 0; i < count; i++) listenPorts[i] = in.getInt();
+        for (int i = 0; i < count; i++) xs[i] = in.getInt();
+        for (int i = 0; i < count; i++) ys[i] = in.getInt();
+        List<Player> players = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] address = new byte[in.getShort()];
+            in.get(address);
+            players.add(new Player(ids[i], listenPorts[i], new String(address, StandardCharsets.UTF_8), xs[i], ys[i]));
+        }
+        return Collections.unmodifiableList(players);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String name(long lsn) {
+        return String.format("%s%020d%s", PREFIX, lsn, SUFFIX);
+    }
+
+    /**
+     * @return the files of the directory whose name starts with PREFIX and ends with the suffix, ordered by their
+     * LSN.
+     */
+    private static List<Path> list(Path dir, String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> {
+                        String name = p.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(suffix);
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package administrator.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A background thread that periodically takes a snapshot of the players and of their measurements (see
+ * SnapshotFile), and then truncates the write-ahead log up to it, so that a restart loads the snapshot and replays
+ * only the tail of the log.
+ * The snapshot is taken without stopping the ingestion: the LSN of the last record appended is read first, together
+ * with the players registered up to it, then every player is locked only while its measurements are copied. Since a batch is appended and added under the lock
+ * of its player, each player is copied with all its records up to that LSN, and maybe some later ones, which the
+ * replay skips. The snapshot is published only once every record it includes is durable, so that the LSNs it
+ * refers to are never reassigned by a restart.
+ */
+class Snapshotter extends Thread {
+    private final Server server;
+    private final WriteAheadLog wal;
+    private final Path dir;
+    private final long interval;
+    // guarded by this
+    private long lastLsn;
+
+    /**
+     * @param server the server whose state is saved.
+     * @param wal the write-ahead log of the server, truncated after every snapshot.
+     * @param dir the directory of the snapshots.
+     * @param interval the time in milliseconds between two snapshots.
+     * @param lastLsn the LSN of the latest snapshot, 0 if there is none.
+     */
+    Snapshotter(Server server, WriteAheadLog wal, Path dir, long interval, long lastLsn) {
+        super("snapshotter");
+        setDaemon(true);
+        this.server = server;
+        this.wal = wal;
+        this.dir = dir;
+        this.interval = interval;
+        this.lastLsn = lastLsn;
+    }
+
+    @Override
+    public void run() {
+        while (!isInterrupted()) {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                snapshot();
+            } catch (IOException e) {
+                // the log is not truncated, so the next snapshot or the restart still find every record
+                System.out.println("[snapshot] Failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Takes a snapshot, unless no record has been appended since the last one, and truncates the log.
+     * @return true if a snapshot has been taken.
+     * @throws IOException if the snapshot cannot be written, in that case the log is left untouched.
+     */
+    synchronized boolean snapshot() throws IOException {
+        Server.LoggedPlayers logged = server.getLoggedPlayers();
+        long lsn = logged.getLsn();
+        if (lsn == lastLsn) return false;
+        long start = System.currentTimeMillis();
+        Path temporary = SnapshotFile.write(dir, lsn, logged.getPlayers(), server.getMeasurementsMap());
+        // the snapshot may include records appended after lsn, up to the last one appended by now
+        wal.awaitDurable(wal.lastLsn());
+        Path snapshot = SnapshotFile.publish(temporary);
+        lastLsn = lsn;
+        int deleted = wal.truncateBefore(lsn + 1);
+        System.out.println("[snapshot] Wrote " + snapshot.getFileName() + " in " + (System.currentTimeMillis() - start)
+                + " ms, deleted " + deleted + " write-ahead log segments");
+        return true;
+    }
+}
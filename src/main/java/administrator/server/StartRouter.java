@@ -0,0 +1,16 @@
+package administrator.server;
+
+import java.io.IOException;
+
+public class StartRouter {
+
+    public static void main(String[] args) throws IOException {
+        System.out.println("Router starting...");
+        Router router = Router.getInstance();
+        System.out.println("Hit return to stop...");
+        System.in.read();
+        System.out.println("Stopping router...");
+        router.shutdown();
+        System.out.println("Router stopped");
+    }
+}
@@ -0,0 +1,472 @@
+package administrator.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead log, stored as a sequence of fixed size, memory-mapped segment files. Every record
+ * has a log sequence number (LSN) and a CRC32 checksum, so that a record torn by a crash is detected and discarded
+ * at recovery.
+ * Writers only enqueue their records and then wait for them to become durable: a single flusher thread writes all
+ * the records enqueued so far to the mapped segment and forces them to disk with one sync (group commit), so the
+ * cost of a sync is shared by all the writers that arrived while the previous one was running.
+ * <p>
+ * Record layout: {@code int bodyLength | int crc32(body) | body}, where {@code body = long lsn | byte type | payload}.
+ * A zero body length marks the end of the records of a segment, since segment files are zero filled when created.
+ * Segment files are named after the LSN of their first record.
+ * The durable records can also be read while the log grows, through a Cursor, which is how they are shipped to
+ * the replicas. Once a snapshot of the server includes the records of the oldest segments, the log is truncated by
+ * deleting them.
+ */
+class WriteAheadLog {
+    private static final int HEADER_SIZE = 8;
+    private static final int BODY_PREFIX_SIZE = 9;
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Receives the records read from the log at recovery.
+     */
+    interface RecordHandler {
+        /**
+         * @param lsn the log sequence number of the record.
+         * @param type the type of the record.
+         * @param payload a read-only view of the payload inside the mapped segment, valid only during the call.
+         */
+        void handle(long lsn, byte type, ByteBuffer payload) throws IOException;
+    }
+
+    /**
+     * A record waiting to be written by the flusher.
+     */
+    private static class PendingRecord {
+        private final long lsn;
+        private final byte type;
+        private final byte[] payload;
+
+        private PendingRecord(long lsn, byte type, byte[] payload) {
+            this.lsn = lsn;
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentSize;
+    // guarded by this
+    private List<PendingRecord> pending = new ArrayList<>();
+    private long nextLsn = 1;
+    private long durableLsn = 0;
+    private boolean closed = false;
+    private IOException failure;
+    private final Set<Cursor> cursors = new HashSet<>();
+    // owned by the flusher thread after open
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private Path segmentPath;
+    private final CRC32 crc = new CRC32();
+    private Thread flusher;
+
+    /**
+     * Constructs a write-ahead log stored in the given directory. The log must be opened before appending.
+     * @param dir the directory of the segment files, created if it does not exist.
+     * @param segmentSize the size in bytes of each segment file.
+     */
+    WriteAheadLog(Path dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Replays every valid record of the log, in LSN order, then starts the flusher thread so that new records can
+     * be appended after the last valid one. A torn record at the end of the last segment is discarded.
+     * @param handler the handler of the replayed records.
+     * @return the number of replayed records.
+     * @throws IOException if the segment files cannot be read or created.
+     */
+    synchronized long open(RecordHandler handler) throws IOException {
+        Files.createDirectories(dir);
+        List<Path> segments = listSegments();
+        long replayed = 0;
+        long lastLsn = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            boolean last = i == segments.size() - 1;
+            FileChannel segmentChannel = FileChannel.open(segments.get(i), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = segmentChannel.map(FileChannel.MapMode.READ_WRITE, 0, segmentChannel.size());
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int start = buffer.position();
+                ByteBuffer body = readBody(buffer, start, crc);
+                if (body == null) break;
+                long lsn = body.getLong();
+                byte type = body.get();
+                handler.handle(lsn, type, body.slice().asReadOnlyBuffer());
+                lastLsn = lsn;
+                replayed++;
+                buffer.position(body.limit());
+            }
+            boolean torn = buffer.remaining() >= HEADER_SIZE && buffer.getInt(buffer.position()) != 0;
+            if (last) {
+                if (torn) {
+                    System.out.println("[WAL] Discarding torn record at the end of " + segments.get(i).getFileName());
+                    int end = buffer.position();
+                    while (buffer.hasRemaining()) buffer.put((byte) 0);
+                    buffer.position(end);
+                }
+                channel = segmentChannel;
+                segment = buffer;
+                segmentPath = segments.get(i);
+            } else {
+                if (torn) System.out.println("[WAL] Invalid record in " + segments.get(i).getFileName() + ", skipping the rest of the segment");
+                segmentChannel.close();
+            }
+        }
+        nextLsn = lastLsn + 1;
+        durableLsn = lastLsn;
+        flusher = new Thread(this::flushLoop, "wal-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        return replayed;
+    }
+
+    /**
+     * @return the size in bytes of the largest payload that fits in a segment.
+     */
+    int maxPayloadSize() {
+        return segmentSize - HEADER_SIZE - BODY_PREFIX_SIZE;
+    }
+
+    /**
+     * Enqueues a record to be written to the log. The record is not durable until awaitDurable returns for its LSN.
+     * @param type the type of the record.
+     * @param payload the payload of the record.
+     * @return the LSN assigned to the record.
+     * @throws IllegalArgumentException if the payload is larger than maxPayloadSize, in that case no LSN is assigned.
+     */
+    synchronized long append(byte type, byte[] payload) {
+        if (closed) throw new IllegalStateException("The write-ahead log is closed");
+        // checked here rather than by the flusher, whose failure would stop every later write
+        if (payload.length > maxPayloadSize()) {
+            throw new IllegalArgumentException("A record of " + payload.length + " bytes does not fit in a segment of " + segmentSize + " bytes");
+        }
+        long lsn = nextLsn++;
+        pending.add(new PendingRecord(lsn, type, payload));
+        notifyAll();
+        return lsn;
+    }
+
+    /**
+     * Waits until the record with the given LSN, and every record before it, is durable.
+     * @param lsn the LSN returned by append.
+     * @throws UncheckedIOException if the flusher failed to write the log.
+     */
+    synchronized void awaitDurable(long lsn) {
+        while (durableLsn < lsn && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        if (durableLsn < lsn) throw new UncheckedIOException(failure);
+    }
+
+    /**
+     * @return the LSN of the last record appended, durable or not, 0 if there is none.
+     */
+    synchronized long lastLsn() {
+        return nextLsn - 1;
+    }
+
+    /**
+     * @return the LSN of the last durable record, 0 if there is none.
+     */
+    synchronized long durableLsn() {
+        return durableLsn;
+    }
+
+    /**
+     * Waits until a record after the given LSN is durable, or the timeout expires, or the log is closed.
+     * @param lsn the LSN after which records are awaited.
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return the LSN of the last durable record.
+     */
+    synchronized long awaitDurableAfter(long lsn, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (durableLsn <= lsn && !closed && failure == null && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return durableLsn;
+    }
+
+    /**
+     * @return the LSN of the oldest record still in the log, after the truncations, or the LSN of the next record if
+     * there is none.
+     * @throws IOException if the segment files cannot be listed.
+     */
+    long firstLsn() throws IOException {
+        List<Path> segments = listSegments();
+        return segments.isEmpty() ? lastLsn() + 1 : firstLsnOf(segments.get(0));
+    }
+
+    /**
+     * Opens a cursor on the durable records of the log.
+     * @param fromLsn the LSN of the first record to read.
+     * @return the cursor, to be closed after use.
+     */
+    Cursor cursor(long fromLsn) {
+        return new Cursor(fromLsn);
+    }
+
+    /**
+     * Deletes the segment files whose records all precede the given LSN, which are no longer needed for recovery
+     * once a snapshot includes them. The current segment is always kept, so that the LSNs continue after the last
+     * record, and so are the segments that an open cursor has yet to read.
+     * @param lsn the LSN of the first record to keep.
+     * @return the number of segment files deleted.
+     * @throws IOException if a segment file cannot be deleted.
+     */
+    int truncateBefore(long lsn) throws IOException {
+        long keepFrom = lsn;
+        synchronized (this) {
+            for (Cursor cursor : cursors) {
+                keepFrom = Math.min(keepFrom, cursor.nextLsn);
+            }
+        }
+        List<Path> segments = listSegments();
+        int deleted = 0;
+        // a segment holds the records up to the first one of the next segment
+        for (int i = 0; i + 1 < segments.size() && firstLsnOf(segments.get(i + 1)) <= keepFrom; i++) {
+            Files.delete(segments.get(i));
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Writes the pending records, then stops the flusher thread.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+            if (channel != null) channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The body of the flusher thread: takes all the pending records at once, writes them and forces them to disk.
+     */
+    private void flushLoop() {
+        while (true) {
+            List<PendingRecord> batch;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) return;
+                batch = pending;
+                pending = new ArrayList<>();
+            }
+            try {
+                for (PendingRecord record : batch) {
+                    write(record);
+                }
+                segment.force();
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                durableLsn = batch.get(batch.size() - 1).lsn;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes a record to the current segment, rolling to a new segment if it does not fit. Every record fits in an
+     * empty segment, since append rejects the larger ones.
+     */
+    private void write(PendingRecord record) throws IOException {
+        int bodyLength = BODY_PREFIX_SIZE + record.payload.length;
+        if (segment == null || segment.remaining() < HEADER_SIZE + bodyLength) {
+            roll(record.lsn);
+        }
+        int start = segment.position();
+        segment.position(start + HEADER_SIZE);
+        segment.putLong(record.lsn).put(record.type).put(record.payload);
+        ByteBuffer body = segment.duplicate();
+        body.position(start + HEADER_SIZE).limit(segment.position());
+        crc.reset();
+        crc.update(body);
+        segment.putInt(start + 4, (int) crc.getValue());
+        segment.putInt(start, bodyLength);
+    }
+
+    /**
+     * Forces and closes the current segment, and creates a new one starting at the given LSN. A current segment
+     * without records, as a file left empty or shorter than a segment by a crash, is deleted instead: it is named
+     * after the same LSN as the new one.
+     */
+    private void roll(long firstLsn) throws IOException {
+        if (segment != null) {
+            boolean empty = segment.position() == 0;
+            segment.force();
+            channel.close();
+            if (empty) Files.delete(segmentPath);
+        }
+        segmentPath = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstLsn, SEGMENT_SUFFIX));
+        channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+
+    /**
+     * Reads and validates the body of the record starting at the given position.
+     * @param crc the checksum used for the validation, which belongs to the calling thread.
+     * @return a view of the body, positioned at its start, or null if there is no valid record at the position.
+     */
+    private static ByteBuffer readBody(ByteBuffer buffer, int start, CRC32 crc) {
+        int bodyLength = buffer.getInt(start);
+        if (bodyLength < BODY_PREFIX_SIZE || bodyLength > buffer.limit() - start - HEADER_SIZE) return null;
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + HEADER_SIZE).limit(start + HEADER_SIZE + bodyLength);
+        crc.reset();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(start + 4)) return null;
+        return body;
+    }
+
+    /**
+     * @return the segment files of the log, ordered by their first LSN.
+     */
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> {
+                        String name = p.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return the LSN of the first record of a segment file, from its name.
+     */
+    private static long firstLsnOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Reads the durable records of the log in LSN order, following the log as it grows. Only the records that are
+     * already durable are read, so they are never torn. The segment files are mapped read only, independently of
+     * the flusher. A cursor is used by a single thread, and while it is open the log is not truncated past it.
+     */
+    final class Cursor implements Closeable {
+        private final CRC32 crc = new CRC32();
+        // read by the truncation
+        private volatile long nextLsn;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+
+        private Cursor(long fromLsn) {
+            this.nextLsn = Math.max(1, fromLsn);
+            synchronized (WriteAheadLog.this) {
+                cursors.add(this);
+            }
+        }
+
+        /**
+         * Waits up to the timeout for durable records at or after the cursor, then passes all of them to the handler.
+         * @param handler the handler of the records, whose payload is valid only during the call.
+         * @param timeout the maximum time to wait in milliseconds.
+         * @return the number of records read, 0 if none became durable before the timeout.
+         * @throws IOException if the records are no longer in the log, or cannot be read.
+         */
+        int read(RecordHandler handler, long timeout) throws IOException, InterruptedException {
+            long durable = awaitDurableAfter(nextLsn - 1, timeout);
+            int read = 0;
+            while (nextLsn <= durable) {
+                if (buffer == null) openSegment(false);
+                ByteBuffer body = buffer.remaining() >= HEADER_SIZE ? readBody(buffer, buffer.position(), crc) : null;
+                if (body == null) {
+                    // the end of the records of the segment: the next one starts with the next record
+                    closeSegment();
+                    openSegment(true);
+                    continue;
+                }
+                buffer.position(body.limit());
+                long lsn = body.getLong();
+                byte type = body.get();
+                if (lsn < nextLsn) continue;
+                handler.handle(lsn, type, body.slice().asReadOnlyBuffer());
+                nextLsn = lsn + 1;
+                read++;
+            }
+            return read;
+        }
+
+        /**
+         * Opens the segment that contains the next record.
+         * @param first true if the next record must be the first of the segment.
+         */
+        private void openSegment(boolean first) throws IOException {
+            Path found = null;
+            for (Path segment : listSegments()) {
+                long firstLsn = firstLsnOf(segment);
+                if (firstLsn == nextLsn || (!first && firstLsn < nextLsn)) found = segment;
+            }
+            if (found == null) throw new IOException("The record " + nextLsn + " is no longer in the write-ahead log");
+            channel = FileChannel.open(found, StandardOpenOption.READ);
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        private void closeSegment() throws IOException {
+            if (channel != null) channel.close();
+            channel = null;
+            buffer = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (WriteAheadLog.this) {
+                cursors.remove(this);
+            }
+            closeSegment();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package beans;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The count, sum, minimum and maximum of the heart rate measurements of a time range, the partial result that the
+ * shards of a sharded deployment return for a range query, merged by the router.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class HeartRateAggregate {
+    private long count;
+    private double sum;
+    private Double min;
+    private Double max;
+
+    public HeartRateAggregate(){
+
+    }
+
+    /**
+     * @param count the number of measurements
+     * @param sum the sum of the measurements
+     * @param min the minimum of the measurements, null if there are none
+     * @param max the maximum of the measurements, null if there are none
+     */
+    public HeartRateAggregate(long count, double sum, Double min, Double max) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public Double getMin() {
+        return min;
+    }
+
+    public Double getMax() {
+        return max;
+    }
+
+    /**
+     * @return the average of the measurements, null if there are none.
+     */
+    public Double getAverage() {
+        return count == 0 ? null : sum / count;
+    }
+
+    @Override
+    public String toString() {
+        return "HeartRateAggregate{" +
+                "count=" + count +
+                ", sum=" + sum +
+                ", min=" + min +
+                ", max=" + max +
+                '}';
+    }
+}
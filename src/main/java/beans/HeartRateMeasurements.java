@@ -13,6 +13,11 @@ public class HeartRateMeasurements {
     private int id;
     private long timestamp;
     private List<Double> averageHRList;
+    // the timestamp of each value, null if all the values share the timestamp of the batch
+    private List<Long> timestamps;
+    // the number of the batch among the ones of its player, increasing, so that a retried batch is stored once;
+    // 0 if the sender does not number its batches
+    private long sequence;
 
     public HeartRateMeasurements(){
 
@@ -24,6 +29,21 @@ public class HeartRateMeasurements {
         this.averageHRList = Collections.unmodifiableList(averageHRList);
     }
 
+    /**
+     * Constructs a batch whose values have each their own timestamp. The timestamp of the batch is the one of the
+     * first value.
+     * @throws IllegalArgumentException if the number of timestamps and values differ
+     */
+    public HeartRateMeasurements(int id, List<Long> timestamps, List<Double> averageHRList) {
+        if (timestamps.size() != averageHRList.size()) {
+            throw new IllegalArgumentException("There are " + timestamps.size() + " timestamps for " + averageHRList.size() + " HR values");
+        }
+        this.id = id;
+        this.timestamp = timestamps.isEmpty() ? 0 : timestamps.get(0);
+        this.averageHRList = Collections.unmodifiableList(averageHRList);
+        this.timestamps = Collections.unmodifiableList(timestamps);
+    }
+
 
     public int getId() {
         return id;
@@ -37,12 +57,50 @@ public class HeartRateMeasurements {
         return averageHRList;
     }
 
+    /**
+     * @return the timestamp of each value, null if all the values share the timestamp of the batch
+     */
+    public List<Long> getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * @return the sequence number of the batch among the ones of its player, 0 if it has none
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @param sequence the sequence number of the batch among the ones of its player, greater than the one of the
+     * previous batch, 0 for none
+     */
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return the timestamp of the value at the given index
+     */
+    public long getTimestamp(int index) {
+        return timestamps == null ? timestamp : timestamps.get(index);
+    }
+
+    /**
+     * @return true if the timestamps of the values, when given, match the values in number
+     */
+    public boolean hasConsistentTimestamps() {
+        return timestamps == null || averageHRList == null || timestamps.size() == averageHRList.size();
+    }
+
     @Override
     public String toString() {
         return "HeartRateMeasurements{" +
                 "id=" + id +
                 ", timestamp=" + timestamp +
                 ", averageHRList=" + averageHRList +
+                (timestamps == null ? "" : ", timestamps=" + timestamps) +
+                (sequence == 0 ? "" : ", sequence=" + sequence) +
                 '}';
     }
 }
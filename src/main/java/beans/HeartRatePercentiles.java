@@ -0,0 +1,69 @@
+package beans;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
+
+/**
+ * Percentiles of the heart rate values in a range of time.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class HeartRatePercentiles {
+    private long count;
+    private double min;
+    private double max;
+    private List<Double> quantiles;
+    private List<Double> values;
+
+    public HeartRatePercentiles(){
+
+    }
+
+    /**
+     * @param count the number of values in the range
+     * @param min the minimum value
+     * @param max the maximum value
+     * @param quantiles the quantiles computed, between 0 and 1
+     * @param values the value of each quantile, in the same order
+     */
+    public HeartRatePercentiles(long count, double min, double max, List<Double> quantiles, List<Double> values) {
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.quantiles = quantiles;
+        this.values = values;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public List<Double> getQuantiles() {
+        return quantiles;
+    }
+
+    public List<Double> getValues() {
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return "HeartRatePercentiles{" +
+                "count=" + count +
+                ", min=" + min +
+                ", max=" + max +
+                ", quantiles=" + quantiles +
+                ", values=" + values +
+                '}';
+    }
+}
@@ -0,0 +1,68 @@
+package beans;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * A point of a downsampled heart rate series: the summary of the heart rate values in an interval of time.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class HeartRateSeriesPoint {
+    private long timestamp;
+    private long count;
+    private double average;
+    private double min;
+    private double max;
+
+    public HeartRateSeriesPoint(){
+
+    }
+
+    /**
+     * @param timestamp the start of the interval
+     * @param count the number of values in the interval
+     * @param average the average of the values
+     * @param min the minimum value
+     * @param max the maximum value
+     */
+    public HeartRateSeriesPoint(long timestamp, long count, double average, double min, double max) {
+        this.timestamp = timestamp;
+        this.count = count;
+        this.average = average;
+        this.min = min;
+        this.max = max;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getAverage() {
+        return average;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "HeartRateSeriesPoint{" +
+                "timestamp=" + timestamp +
+                ", count=" + count +
+                ", average=" + average +
+                ", min=" + min +
+                ", max=" + max +
+                '}';
+    }
+}
@@ -0,0 +1,60 @@
+package beans;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The outcome of a single batch of heart rate measurements of a bulk upload.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class IngestResult {
+    private int index;
+    private int id;
+    private int status;
+    private String message;
+
+    public IngestResult(){
+
+    }
+
+    /**
+     * @param index the position of the batch in the upload
+     * @param id the ID of the player of the batch, -1 if the batch is missing
+     * @param status the HTTP status code of the batch: 200 if it has been stored, 400 if it is malformed
+     * @param message the reason why the batch has been rejected, null if it has been stored
+     */
+    public IngestResult(int index, int id, int status, String message) {
+        this.index = index;
+        this.id = id;
+        this.status = status;
+        this.message = message;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return "IngestResult{" +
+                "index=" + index +
+                ", id=" + id +
+                ", status=" + status +
+                ", message='" + message + '\'' +
+                '}';
+    }
+}
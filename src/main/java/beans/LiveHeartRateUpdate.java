@@ -0,0 +1,77 @@
+package beans;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The rolling averages of heart rate right after the administration server has received a batch of measurements,
+ * pushed to the subscribers of the live stream.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class LiveHeartRateUpdate {
+    private int player;
+    private long timestamp;
+    private long playerCount;
+    private double playerAverage;
+    private long count;
+    private double average;
+
+    public LiveHeartRateUpdate(){
+
+    }
+
+    /**
+     * @param player the ID of the player that sent the batch
+     * @param timestamp the most recent timestamp of the batch
+     * @param playerCount the number of values of the player in the rolling window
+     * @param playerAverage the rolling average of the player
+     * @param count the number of values of all the players in the rolling window
+     * @param average the rolling average of all the players
+     */
+    public LiveHeartRateUpdate(int player, long timestamp, long playerCount, double playerAverage, long count, double average) {
+        this.player = player;
+        this.timestamp = timestamp;
+        this.playerCount = playerCount;
+        this.playerAverage = playerAverage;
+        this.count = count;
+        this.average = average;
+    }
+
+    public int getPlayer() {
+        return player;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getPlayerCount() {
+        return playerCount;
+    }
+
+    public double getPlayerAverage() {
+        return playerAverage;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getAverage() {
+        return average;
+    }
+
+    @Override
+    public String toString() {
+        return "LiveHeartRateUpdate{" +
+                "player=" + player +
+                ", timestamp=" + timestamp +
+                ", playerCount=" + playerCount +
+                ", playerAverage=" + playerAverage +
+                ", count=" + count +
+                ", average=" + average +
+                '}';
+    }
+}
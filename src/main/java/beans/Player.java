@@ -27,6 +27,22 @@ public class Player extends AbstractPlayer{
         this.playerAddress = player.getPlayerAddress();
     }
 
+    /**
+     * Constructs a player from its fields
+     * @param id The id of the player
+     * @param listenPort The port on which the player listens for gRPC communication
+     * @param playerAddress The address of the player
+     * @param x The x coordinate of the player
+     * @param y The y coordinate of the player
+     */
+    public Player(int id, int listenPort, String playerAddress, int x, int y) {
+        this.id = id;
+        this.listenPort = listenPort;
+        this.playerAddress = playerAddress;
+        this.x = x;
+        this.y = y;
+    }
+
     /**
      * Constructs a player from a GreetRequest
      * @param player the GreetRequest
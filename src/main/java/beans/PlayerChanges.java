@@ -0,0 +1,54 @@
+package beans;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
+
+/**
+ * The players registered since a version of the registry of the server, and the version they bring it to, within
+ * the epoch of the registry.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class PlayerChanges {
+    private long epoch;
+    private long version;
+    private List<Player> players;
+
+    public PlayerChanges(){
+
+    }
+
+    /**
+     * @param epoch the epoch of the registry, to be passed as "epoch" together with the version
+     * @param version the current version of the registry, to be passed as "since" to get the next changes
+     * @param players the players registered since the requested version, in order of registration
+     */
+    public PlayerChanges(long epoch, long version, List<Player> players) {
+        this.epoch = epoch;
+        this.version = version;
+        this.players = players;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Player> getPlayers() {
+        return players;
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerChanges{" +
+                "epoch=" + epoch +
+                ", version=" + version +
+                ", players=" + players +
+                '}';
+    }
+}
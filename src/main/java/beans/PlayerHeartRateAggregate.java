@@ -0,0 +1,69 @@
+package beans;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The number, average, minimum and maximum of the heart rate measurements of a player in a time range, an entry of
+ * the group by player query.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class PlayerHeartRateAggregate {
+    private int playerId;
+    private long count;
+    private double average;
+    private double min;
+    private double max;
+
+    public PlayerHeartRateAggregate(){
+
+    }
+
+    /**
+     * @param playerId the id of the player
+     * @param count the number of measurements, greater than 0
+     * @param average the average of the measurements
+     * @param min the minimum of the measurements
+     * @param max the maximum of the measurements
+     */
+    public PlayerHeartRateAggregate(int playerId, long count, double average, double min, double max) {
+        this.playerId = playerId;
+        this.count = count;
+        this.average = average;
+        this.min = min;
+        this.max = max;
+    }
+
+    public int getPlayerId() {
+        return playerId;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getAverage() {
+        return average;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerHeartRateAggregate{" +
+                "playerId=" + playerId +
+                ", count=" + count +
+                ", average=" + average +
+                ", min=" + min +
+                ", max=" + max +
+                '}';
+    }
+}
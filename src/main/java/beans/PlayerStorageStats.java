@@ -0,0 +1,47 @@
+package beans;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The memory used by the heart rate measurements of a player on the administration server.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class PlayerStorageStats {
+    private int id;
+    private long values;
+    private long estimatedBytes;
+
+    public PlayerStorageStats(){
+
+    }
+
+    public PlayerStorageStats(int id, long values, long estimatedBytes) {
+        this.id = id;
+        this.values = values;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public long getValues() {
+        return values;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "PlayerStorageStats{" +
+                "id=" + id +
+                ", values=" + values +
+                ", estimatedBytes=" + estimatedBytes +
+                '}';
+    }
+}
@@ -0,0 +1,76 @@
+package beans;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The usage of the cache of the aggregation queries of the administration server.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class QueryCacheStats {
+    private int entries;
+    private int maxEntries;
+    private long hits;
+    private long misses;
+    private long coalesced;
+    private long invalidations;
+
+    public QueryCacheStats(){
+
+    }
+
+    /**
+     * @param entries the number of cached results
+     * @param maxEntries the maximum number of cached results
+     * @param hits the number of queries answered with a cached result
+     * @param misses the number of queries computed
+     * @param coalesced the number of queries that waited for the same query being computed by another request
+     * @param invalidations the number of results invalidated by new or evicted measurements
+     */
+    public QueryCacheStats(int entries, int maxEntries, long hits, long misses, long coalesced, long invalidations) {
+        this.entries = entries;
+        this.maxEntries = maxEntries;
+        this.hits = hits;
+        this.misses = misses;
+        this.coalesced = coalesced;
+        this.invalidations = invalidations;
+    }
+
+    public int getEntries() {
+        return entries;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public String toString() {
+        return "QueryCacheStats{" +
+                "entries=" + entries +
+                ", maxEntries=" + maxEntries +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", coalesced=" + coalesced +
+                ", invalidations=" + invalidations +
+                '}';
+    }
+}
@@ -0,0 +1,86 @@
+package beans;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * The replication state of an administration server: a primary, which takes the writes and ships its
+ * write-ahead log, or a read replica, which applies it. Versions are log sequence numbers.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class ReplicationStatus {
+    private String role;
+    private long version;
+    private long primaryVersion;
+    private long lagRecords;
+    private long lagMillis;
+    private boolean connected;
+    private int replicas;
+
+    public ReplicationStatus(){
+
+    }
+
+    /**
+     * @param role "primary" or "replica"
+     * @param version the version of the data served by the server
+     * @param primaryVersion the last version of the primary known to the server
+     * @param lagRecords the number of records of the primary not yet applied
+     * @param lagMillis the time since the data served was last known to be up to date, -1 if never
+     * @param connected true if the server is connected to its primary, always true for a primary
+     * @param replicas the number of replicas connected to the server
+     */
+    public ReplicationStatus(String role, long version, long primaryVersion, long lagRecords, long lagMillis,
+                             boolean connected, int replicas) {
+        this.role = role;
+        this.version = version;
+        this.primaryVersion = primaryVersion;
+        this.lagRecords = lagRecords;
+        this.lagMillis = lagMillis;
+        this.connected = connected;
+        this.replicas = replicas;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getPrimaryVersion() {
+        return primaryVersion;
+    }
+
+    public long getLagRecords() {
+        return lagRecords;
+    }
+
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public int getReplicas() {
+        return replicas;
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicationStatus{" +
+                "role='" + role + '\'' +
+                ", version=" + version +
+                ", primaryVersion=" + primaryVersion +
+                ", lagRecords=" + lagRecords +
+                ", lagMillis=" + lagMillis +
+                ", connected=" + connected +
+                ", replicas=" + replicas +
+                '}';
+    }
+}
@@ -0,0 +1,63 @@
+package beans;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
+
+/**
+ * The memory used by the heart rate measurements stored on the administration server, together with the heap usage
+ * of its JVM.
+ */
+@XmlRootElement
+@XmlAccessorType(XmlAccessType.FIELD)
+public class StorageStats {
+    private long values;
+    private long estimatedBytes;
+    private long heapUsedBytes;
+    private long heapMaxBytes;
+    private List<PlayerStorageStats> players;
+
+    public StorageStats(){
+
+    }
+
+    public StorageStats(long values, long estimatedBytes, long heapUsedBytes, long heapMaxBytes, List<PlayerStorageStats> players) {
+        this.values = values;
+        this.estimatedBytes = estimatedBytes;
+        this.heapUsedBytes = heapUsedBytes;
+        this.heapMaxBytes = heapMaxBytes;
+        this.players = players;
+    }
+
+    public long getValues() {
+        return values;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public long getHeapUsedBytes() {
+        return heapUsedBytes;
+    }
+
+    public long getHeapMaxBytes() {
+        return heapMaxBytes;
+    }
+
+    public List<PlayerStorageStats> getPlayers() {
+        return players;
+    }
+
+    @Override
+    public String toString() {
+        return "StorageStats{" +
+                "values=" + values +
+                ", estimatedBytes=" + estimatedBytes +
+                ", heapUsedBytes=" + heapUsedBytes +
+                ", heapMaxBytes=" + heapMaxBytes +
+                ", players=" + players +
+                '}';
+    }
+}
@@ -0,0 +1,134 @@
+package loadgen;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the outcome and the latency of the requests of one kind. Latencies are counted in a log-linear histogram
+ * of microseconds: exact below 64, then 32 buckets for each power of two, so every percentile is reported with an
+ * error below 3% and recording never allocates nor locks.
+ * This class is thread safe.
+ */
+class LatencyRecorder {
+    private static final int LINEAR = 64;
+    private static final int SUB_BUCKETS = 32;
+    // enough powers of two to cover about 12 days in microseconds
+    private static final int POWERS = 34;
+
+    private final String name;
+    private final AtomicLongArray buckets = new AtomicLongArray(LINEAR + POWERS * SUB_BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder clientErrors = new LongAdder();
+    private final LongAdder serverErrors = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param name the name of the requests, used in the reports.
+     */
+    LatencyRecorder(String name) {
+        this.name = name;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Records a request that got a response.
+     * @param status the http status code of the response.
+     * @param nanos the latency in nanoseconds, from the time the request should have been sent.
+     */
+    void record(int status, long nanos) {
+        if (status < 400) successes.increment();
+        else if (status < 500) clientErrors.increment();
+        else serverErrors.increment();
+        recordLatency(nanos);
+    }
+
+    /**
+     * Records a request that got no response, because the server could not be reached.
+     * @param nanos the time in nanoseconds spent until the failure.
+     */
+    void recordFailure(long nanos) {
+        failures.increment();
+        recordLatency(nanos);
+    }
+
+    private void recordLatency(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.incrementAndGet(bucketOf(micros));
+        max.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * @return the total number of recorded requests.
+     */
+    long count() {
+        return successes.sum() + clientErrors.sum() + serverErrors.sum() + failures.sum();
+    }
+
+    /**
+     * @return the number of requests that did not succeed: 4xx, 5xx or no response.
+     */
+    long errors() {
+        return clientErrors.sum() + serverErrors.sum() + failures.sum();
+    }
+
+    long getClientErrors() {
+        return clientErrors.sum();
+    }
+
+    long getServerErrors() {
+        return serverErrors.sum();
+    }
+
+    long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the maximum latency in microseconds.
+     */
+    long maxMicros() {
+        return max.get();
+    }
+
+    /**
+     * @param q the quantile, between 0 and 1.
+     * @return the latency in microseconds below which the given fraction of the requests falls, as the upper bound
+     * of its bucket, 0 if nothing has been recorded.
+     */
+    long percentileMicros(double q) {
+        long[] counts = new long[buckets.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < LINEAR) return (int) micros;
+        // the shift keeps the 6 most significant bits, the top one always set
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - 5;
+        int index = LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((micros >>> shift) - SUB_BUCKETS);
+        return Math.min(index, LINEAR + POWERS * SUB_BUCKETS - 1);
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < LINEAR) return index;
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long top = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,306 @@
+package loadgen;
+
+import beans.HeartRateMeasurements;
+import beans.Player;
+import com.google.gson.Gson;
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientHandlerException;
+import com.sun.jersey.api.client.ClientResponse;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
+import measurements.HeartRateUploadOuterClass.HeartRateUpload;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulates many players against the rest api of the administration server. The players are registered first,
+ * then for the configured duration they upload their heart rate averages while an administrator queries the
+ * averages, each kind of request at its own rate.
+ * Requests are scheduled in open loop: each has an intended start time set by its rate, and its latency is measured
+ * from that time rather than from when a thread got to send it. When the server falls behind, the requests queue
+ * up and their waiting shows in the latency, instead of silently lowering the offered rate.
+ */
+class LoadGenerator {
+    // the interval in milliseconds between the averages of a simulated player
+    private static final long AVERAGE_INTERVAL = 2_000;
+    // the ranges of the between-time queries end now and go back up to this many milliseconds
+    private static final long MAX_QUERY_RANGE = 10 * 60_000;
+
+    private final LoadGeneratorConfig config;
+    private final Client client = Client.create();
+    private final Gson gson = new Gson();
+    private final LatencyRecorder add = new LatencyRecorder("add");
+    private final LatencyRecorder heartRate = new LatencyRecorder("heart-rate");
+    private final LatencyRecorder lastN = new LatencyRecorder("last-n");
+    private final LatencyRecorder betweenTime = new LatencyRecorder("between-time");
+    private final AtomicInteger nextUploader = new AtomicInteger();
+    // the number of averages sent by each simulated player, bounding the n of its last-n queries
+    private final AtomicInteger[] sent;
+
+    /**
+     * @param config the configuration of the load.
+     */
+    LoadGenerator(LoadGeneratorConfig config) {
+        this.config = config;
+        sent = new AtomicInteger[config.getPlayers()];
+        for (int i = 0; i < sent.length; i++) {
+            sent[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Registers the players, then runs the measured load and prints its report.
+     */
+    void run() throws InterruptedException {
+        System.out.println("Registering " + config.getPlayers() + " players on " + config.getServerAddress());
+        AtomicInteger nextPlayer = new AtomicInteger();
+        Pacer addPacer = new Pacer(config.getAddRate(), System.nanoTime());
+        runWorkers(() -> {
+            int player = nextPlayer.getAndIncrement();
+            if (player >= config.getPlayers()) return false;
+            long intended = addPacer.next();
+            sleepUntil(intended);
+            addPlayer(player, intended);
+            return true;
+        });
+        report("registration", new LatencyRecorder[]{add}, 0);
+
+        System.out.println("Sending " + config.getIngestRate() + " uploads/s of " + config.getBatchSize()
+                + " averages and " + config.getQueryRate() + " queries/s for " + config.getDuration() / 1000 + " s");
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(config.getDuration());
+        Pacer ingestPacer = new Pacer(config.getIngestRate(), start);
+        Pacer queryPacer = new Pacer(config.getQueryRate(), start);
+        Thread reporter = new Thread(() -> reportProgress(start));
+        reporter.setDaemon(true);
+        reporter.start();
+        boolean ingestEnabled = config.getIngestRate() > 0;
+        boolean queryEnabled = config.getQueryRate() > 0;
+        runWorkers(() -> {
+            if (!ingestEnabled && !queryEnabled) return false;
+            // the thread serves whichever kind of request is due first
+            boolean ingest = ingestEnabled && (!queryEnabled || ingestPacer.peek() - queryPacer.peek() <= 0);
+            long intended = ingest ? ingestPacer.next() : queryPacer.next();
+            if (intended - end >= 0) return false;
+            sleepUntil(intended);
+            if (ingest) uploadHeartRate(intended);
+            else query(intended);
+            return true;
+        });
+        reporter.interrupt();
+        report("run", new LatencyRecorder[]{heartRate, lastN, betweenTime}, System.nanoTime() - start);
+        client.destroy();
+    }
+
+    /**
+     * Runs the task on the configured number of threads, each repeating it until it returns false.
+     */
+    private void runWorkers(Task task) throws InterruptedException {
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < config.getThreads(); i++) {
+            Thread worker = new Thread(() -> {
+                while (task.runOnce()) ;
+            }, "loadgen-" + i);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private void addPlayer(int player, long intended) {
+        int id = config.getFirstPlayerId() + player;
+        Player bean = new Player(id, 50000 + player % 10000, "localhost", 0, 0);
+        try {
+            ClientResponse response = client.resource(config.getServerAddress() + "/players/add")
+                    .type("application/json").post(ClientResponse.class, gson.toJson(bean));
+            add.record(consume(response), System.nanoTime() - intended);
+        } catch (ClientHandlerException e) {
+            add.recordFailure(System.nanoTime() - intended);
+        }
+    }
+
+    /**
+     * Uploads a batch of averages for the next player in turn, timestamped as if they had been computed every 2
+     * seconds up to now.
+     */
+    private void uploadHeartRate(long intended) {
+        int player = Math.floorMod(nextUploader.getAndIncrement(), config.getPlayers());
+        int id = config.getFirstPlayerId() + player;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long last = System.currentTimeMillis();
+        long first = last - (config.getBatchSize() - 1) * AVERAGE_INTERVAL;
+        List<Long> timestamps = new ArrayList<>(config.getBatchSize());
+        List<Double> averages = new ArrayList<>(config.getBatchSize());
+        for (int i = 0; i < config.getBatchSize(); i++) {
+            timestamps.add(first + i * AVERAGE_INTERVAL);
+            averages.add(Math.round((60 + random.nextDouble() * 120) * 100) / 100.0);
+        }
+        try {
+            ClientResponse response;
+            if (config.isProtobuf()) {
+                response = client.resource(config.getServerAddress() + "/players/heart-rate")
+                        .type("application/x-protobuf").post(ClientResponse.class, toUpload(id, timestamps, averages).toByteArray());
+            } else {
+                response = client.resource(config.getServerAddress() + "/players/heart-rate")
+                        .type("application/json").post(ClientResponse.class, gson.toJson(new HeartRateMeasurements(id, timestamps, averages)));
+            }
+            int status = consume(response);
+            heartRate.record(status, System.nanoTime() - intended);
+            if (status < 300) sent[player].addAndGet(averages.size());
+        } catch (ClientHandlerException e) {
+            heartRate.recordFailure(System.nanoTime() - intended);
+        }
+    }
+
+    private static HeartRateUpload toUpload(int id, List<Long> timestamps, List<Double> averages) {
+        HeartRateUpload.Builder upload = HeartRateUpload.newBuilder()
+                .setId(id)
+                .setBaseTimestamp(timestamps.get(0));
+        long previous = timestamps.get(0);
+        for (int i = 0; i < timestamps.size(); i++) {
+            upload.addTimestampDeltas(timestamps.get(i) - previous);
+            upload.addAverages(averages.get(i));
+            previous = timestamps.get(i);
+        }
+        return upload.build();
+    }
+
+    /**
+     * Sends a query: half of them the average of the last n values of a random player that has sent some, the other
+     * half the average of all the players over a random range ending now.
+     */
+    private void query(long intended) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int player = random.nextInt(config.getPlayers());
+        int available = sent[player].get();
+        MultivaluedMapImpl queryParams = new MultivaluedMapImpl();
+        LatencyRecorder recorder;
+        String path;
+        if (random.nextBoolean() && available > 0) {
+            queryParams.add("n", String.valueOf(1 + random.nextInt(available)));
+            queryParams.add("player", String.valueOf(config.getFirstPlayerId() + player));
+            path = "/players/heart-rate/average/last-n";
+            recorder = lastN;
+        } else {
+            long t2 = System.currentTimeMillis();
+            queryParams.add("t1", String.valueOf(t2 - random.nextLong(MAX_QUERY_RANGE)));
+            queryParams.add("t2", String.valueOf(t2));
+            path = "/players/heart-rate/average/between-time";
+            recorder = betweenTime;
+        }
+        try {
+            ClientResponse response = client.resource(config.getServerAddress() + path).queryParams(queryParams)
+                    .get(ClientResponse.class);
+            recorder.record(consume(response), System.nanoTime() - intended);
+        } catch (ClientHandlerException e) {
+            recorder.recordFailure(System.nanoTime() - intended);
+        }
+    }
+
+    /**
+     * Prints the number of requests sent so far and the throughput since the previous report, until interrupted.
+     */
+    private void reportProgress(long start) {
+        long previousCount = 0;
+        long previousTime = start;
+        while (true) {
+            try {
+                Thread.sleep(config.getReportInterval());
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            long count = heartRate.count() + lastN.count() + betweenTime.count();
+            long errors = heartRate.errors() + lastN.errors() + betweenTime.errors();
+            System.out.printf("[%4d s] %d requests, %.1f requests/s, %d errors%n", TimeUnit.NANOSECONDS.toSeconds(now - start),
+                    count, (count - previousCount) * 1e9 / (now - previousTime), errors);
+            previousCount = count;
+            previousTime = now;
+        }
+    }
+
+    /**
+     * Prints, for each kind of request, the throughput, the errors and the latency percentiles in milliseconds.
+     * @param elapsed the duration of the phase in nanoseconds, 0 to omit the throughput.
+     */
+    private static void report(String phase, LatencyRecorder[] recorders, long elapsed) {
+        System.out.println("Results of the " + phase + ":");
+        System.out.printf("%-14s %9s %10s %7s %7s %7s %9s %9s %9s %9s %9s%n", "request", "count", "req/s",
+                "4xx", "5xx", "failed", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (LatencyRecorder recorder : recorders) {
+            System.out.printf("%-14s %9d %10s %7d %7d %7d %9.2f %9.2f %9.2f %9.2f %9.2f%n", recorder.getName(),
+                    recorder.count(), elapsed > 0 ? String.format("%.1f", recorder.count() * 1e9 / elapsed) : "-",
+                    recorder.getClientErrors(), recorder.getServerErrors(), recorder.getFailures(),
+                    recorder.percentileMicros(0.5) / 1000.0, recorder.percentileMicros(0.9) / 1000.0,
+                    recorder.percentileMicros(0.99) / 1000.0, recorder.percentileMicros(0.999) / 1000.0,
+                    recorder.maxMicros() / 1000.0);
+        }
+    }
+
+    /**
+     * Reads the body of a response to the end, so that its connection can be reused, and closes it.
+     * @return the http status code of the response.
+     */
+    private static int consume(ClientResponse response) {
+        if (response.hasEntity()) response.getEntity(String.class);
+        response.close();
+        return response.getStatus();
+    }
+
+    private static void sleepUntil(long nanoTime) {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    /**
+     * A unit of work repeated by the threads.
+     */
+    private interface Task {
+        /**
+         * @return false when there is no more work.
+         */
+        boolean runOnce();
+    }
+
+    /**
+     * Hands out the intended start times of the requests of one kind, evenly spaced at the given rate. Without a
+     * rate every request is due immediately.
+     * This class is thread safe.
+     */
+    private static final class Pacer {
+        private final long interval;
+        private final AtomicLong next;
+
+        /**
+         * @param rate the requests per second, 0 or less for no limit.
+         * @param start the intended start time of the first request, as given by System.nanoTime.
+         */
+        Pacer(double rate, long start) {
+            interval = rate > 0 ? (long) (1e9 / rate) : 0;
+            next = new AtomicLong(start);
+        }
+
+        /**
+         * @return the intended start time of the next request, without taking it.
+         */
+        long peek() {
+            return interval == 0 ? System.nanoTime() : next.get();
+        }
+
+        /**
+         * @return the intended start time of the next request, taking it.
+         */
+        long next() {
+            return interval == 0 ? System.nanoTime() : next.getAndAdd(interval);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package loadgen;
+
+import java.util.Properties;
+
+/**
+ * The configuration of the load generator. Every setting is read from a property with the "loadgen." prefix, so
+ * that it can be set on the command line (e.g. -Dloadgen.players=5000), and falls back to a default value when the
+ * property is missing. Rates are in requests per second over all the simulated players: a registration rate of 0
+ * registers them as fast as the threads allow, an upload or query rate of 0 sends no requests of that kind.
+ */
+class LoadGeneratorConfig {
+    private final String serverAddress;
+    private final int players;
+    private final int firstPlayerId;
+    private final double addRate;
+    private final double ingestRate;
+    private final int batchSize;
+    private final boolean protobuf;
+    private final double queryRate;
+    private final long duration;
+    private final int threads;
+    private final long reportInterval;
+
+    /**
+     * Constructs a configuration from the given properties.
+     * @param properties the properties, missing ones take the default value.
+     */
+    LoadGeneratorConfig(Properties properties) {
+        serverAddress = properties.getProperty("loadgen.server", "http://localhost:1337");
+        players = intProperty(properties, "loadgen.players", 1000);
+        firstPlayerId = intProperty(properties, "loadgen.firstPlayerId", 100_000);
+        addRate = doubleProperty(properties, "loadgen.addRate", 0);
+        // a real player sends its averages every 10 seconds
+        ingestRate = doubleProperty(properties, "loadgen.ingestRate", players / 10.0);
+        batchSize = intProperty(properties, "loadgen.batchSize", 5);
+        String format = properties.getProperty("loadgen.format", "protobuf");
+        if (!format.equals("protobuf") && !format.equals("json")) {
+            throw new IllegalArgumentException("loadgen.format must be protobuf or json");
+        }
+        protobuf = format.equals("protobuf");
+        queryRate = doubleProperty(properties, "loadgen.queryRate", 10);
+        duration = longProperty(properties, "loadgen.duration", 60_000);
+        threads = intProperty(properties, "loadgen.threads", 64);
+        reportInterval = longProperty(properties, "loadgen.reportInterval", 10_000);
+        if (players <= 0 || batchSize <= 0 || threads <= 0 || reportInterval <= 0) {
+            throw new IllegalArgumentException("loadgen.players, loadgen.batchSize, loadgen.threads and loadgen.reportInterval must be positive");
+        }
+    }
+
+    /**
+     * @return the configuration read from the system properties.
+     */
+    static LoadGeneratorConfig fromSystemProperties() {
+        return new LoadGeneratorConfig(System.getProperties());
+    }
+
+    /**
+     * @return the base address of the administration server.
+     */
+    String getServerAddress() {
+        return serverAddress;
+    }
+
+    /**
+     * @return the number of simulated players.
+     */
+    int getPlayers() {
+        return players;
+    }
+
+    /**
+     * @return the id of the first simulated player, the others follow it, so that they do not clash with real ones.
+     */
+    int getFirstPlayerId() {
+        return firstPlayerId;
+    }
+
+    /**
+     * @return the rate of the registrations of the players, before the measured run.
+     */
+    double getAddRate() {
+        return addRate;
+    }
+
+    /**
+     * @return the rate of the uploads of heart rate averages.
+     */
+    double getIngestRate() {
+        return ingestRate;
+    }
+
+    /**
+     * @return the number of averages of each upload.
+     */
+    int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return true if the uploads are encoded in protobuf, as the players do, false if in json.
+     */
+    boolean isProtobuf() {
+        return protobuf;
+    }
+
+    /**
+     * @return the rate of the queries, spread over the last-n and between-time averages.
+     */
+    double getQueryRate() {
+        return queryRate;
+    }
+
+    /**
+     * @return the duration in milliseconds of the measured run.
+     */
+    long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the number of threads sending the requests.
+     */
+    int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return the interval in milliseconds between the progress reports.
+     */
+    long getReportInterval() {
+        return reportInterval;
+    }
+
+    private static int intProperty(Properties properties, String name, int defaultValue) {
+        String value = properties.getProperty(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static long longProperty(Properties properties, String name, long defaultValue) {
+        String value = properties.getProperty(name);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    private static double doubleProperty(Properties properties, String name, double defaultValue) {
+        String value = properties.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value.trim());
+    }
+}
@@ -0,0 +1,17 @@
+package loadgen;
+
+/**
+ * Runs the load generator against a running administration server, configured with the "loadgen." system
+ * properties (see LoadGeneratorConfig), e.g. ./gradlew runLoadGenerator -Dloadgen.players=5000.
+ */
+public class StartLoadGenerator {
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGeneratorConfig config = LoadGeneratorConfig.fromSystemProperties();
+        // the jdk keeps only 5 idle connections per server by default, fewer than the threads that reuse them
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(config.getThreads()));
+        }
+        new LoadGenerator(config).run();
+    }
+}
@@ -3,21 +3,25 @@ package player;
 import java.util.ArrayList;
 import java.util.List;
 
-import beans.HeartRateMeasurements;
-import com.google.gson.Gson;
 import com.sun.jersey.api.client.Client;
 import com.sun.jersey.api.client.ClientHandlerException;
 import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.WebResource;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
+import measurements.HeartRateUploadOuterClass.HeartRateUpload;
+import player.simulator.Measurement;
 
 class MeasurementSender extends Thread {
+    // the most averages kept while the server is unreachable, the oldest ones are dropped beyond it
+    private static final int MAX_BUFFERED_AVERAGES = 3600;
+    private static final int TOO_MANY_REQUESTS = 429;
     private final int id;
     private final String adminAddress;
-    private final List<Double> averageHRList;
+    private final List<Measurement> averageHRList;
     Client client = Client.create();
+    // the uploads are numbered from the start time, so that a restarted player numbers them above the previous ones
+    private long sequence = System.currentTimeMillis();
 
-    public MeasurementSender(int id, String adminAddress, List<Double> averageHRList) {
+    public MeasurementSender(int id, String adminAddress, List<Measurement> averageHRList) {
         this.id = id;
         this.adminAddress = adminAddress;
         this.averageHRList = averageHRList;
@@ -25,36 +29,106 @@ class MeasurementSender extends Thread {
     }
 
 
-    public ClientResponse postRequest(String url, HeartRateMeasurements heartRateMeasurements){
+    public ClientResponse postRequest(String url, HeartRateUpload heartRateUpload){
         WebResource webResource = client.resource(url);
-        String input = new Gson().toJson(heartRateMeasurements);
         try {
-            return webResource.type("application/json").post(ClientResponse.class, input);
+            return webResource.type("application/x-protobuf").post(ClientResponse.class, heartRateUpload.toByteArray());
         } catch (ClientHandlerException e) {
             System.out.println("[HRMeasurementsSender] Server not available");
             return null;
         }
     }
 
+    /**
+     * Encodes the averages in the protobuf upload format, each with its own timestamp as the delta from the
+     * previous one.
+     * @param sequence the number of the upload, which a retry must repeat.
+     */
+    private HeartRateUpload toUpload(List<Measurement> averages, long sequence) {
+        HeartRateUpload.Builder upload = HeartRateUpload.newBuilder()
+                .setId(id)
+                .setSequence(sequence)
+                .setBaseTimestamp(averages.get(0).getTimestamp());
+        long previous = averages.get(0).getTimestamp();
+        for (Measurement average : averages) {
+            upload.addTimestampDeltas(average.getTimestamp() - previous);
+            upload.addAverages(average.getValue());
+            previous = average.getTimestamp();
+        }
+        return upload.build();
+    }
+
 
     @Override
     public void run() {
 
+            // the upload not yet acknowledged, and the number of averages it holds
+            HeartRateUpload pending = null;
+            int pendingCount = 0;
+            // once an attempt may have stored the pending upload, it is retried unchanged, so that the server drops
+            // it if it did; an upload rejected with 429 was not stored, and is rebuilt with the averages collected
+            // meanwhile
+            boolean pendingMaybeStored = false;
+            UploadBackoff backoff = new UploadBackoff();
+            long wait = backoff.idle();
             while (true) {
                 try {
-                    Thread.sleep(1000 * 10);
+                    Thread.sleep(wait);
                 } catch (InterruptedException ex) {
                     throw new RuntimeException(ex);
                 }
 
-                HeartRateMeasurements hr;
                 synchronized (averageHRList) {
-                    if (averageHRList.isEmpty()) continue;
-                    ArrayList<Double> measurements = new ArrayList<>(averageHRList);
-                    hr = new HeartRateMeasurements(id, System.currentTimeMillis(),measurements);
-                    int httpStatus = postRequest(adminAddress+"/players/heart-rate",hr).getStatus();
-                    if (httpStatus == 200) averageHRList.clear();
-
+                    // the averages of a pending upload that may have been stored are kept, it must be retried as is
+                    int keep = pendingMaybeStored ? pendingCount : 0;
+                    int excess = averageHRList.size() - Math.max(keep, MAX_BUFFERED_AVERAGES);
+                    if (excess > 0) {
+                        averageHRList.subList(keep, keep + excess).clear();
+                        if (!pendingMaybeStored) pending = null;
+                        System.out.println("[HRMeasurementsSender] Server not reachable, dropped the " + excess + " oldest averages");
+                    }
+                }
+                if (!pendingMaybeStored) {
+                    List<Measurement> measurements;
+                    synchronized (averageHRList) {
+                        measurements = new ArrayList<>(averageHRList);
+                    }
+                    if (measurements.isEmpty()) {
+                        wait = backoff.idle();
+                        continue;
+                    }
+                    if (pending == null || measurements.size() > pendingCount) {
+                        pending = toUpload(measurements, ++sequence);
+                        pendingCount = measurements.size();
+                    }
+                }
+                // the list is not locked during the request, so the consumer keeps adding averages meanwhile
+                ClientResponse response = postRequest(adminAddress+"/players/heart-rate", pending);
+                if (response != null && response.getStatus() == 200) {
+                    synchronized (averageHRList) {
+                        averageHRList.subList(0, pendingCount).clear();
+                    }
+                    pending = null;
+                    pendingMaybeStored = false;
+                    wait = backoff.accepted();
+                } else if (response != null && response.getStatus() == TOO_MANY_REQUESTS) {
+                    wait = backoff.saturated(UploadBackoff.retryAfter(response.getHeaders().getFirst("Retry-After")));
+                    System.out.println("[HRMeasurementsSender] Server saturated, next upload in " + wait + " ms");
+                } else if (response != null && response.getStatus() >= 400 && response.getStatus() < 500) {
+                    // the server refused the upload and did not store it: retrying would be refused again
+                    System.out.println("[HRMeasurementsSender] Server rejected " + pendingCount + " averages with "
+                            + response.getStatus() + ": " + response.getEntity(String.class) + ", dropping them");
+                    synchronized (averageHRList) {
+                        averageHRList.subList(0, pendingCount).clear();
+                    }
+                    pending = null;
+                    pendingMaybeStored = false;
+                    wait = backoff.rejected();
+                } else {
+                    // the server failed or was not reachable, the upload may have been stored
+                    if (response != null) response.close();
+                    pendingMaybeStored = true;
+                    wait = backoff.failed();
                 }
             }
 
@@ -19,6 +19,7 @@ import io.grpc.ServerBuilder;
 import org.eclipse.paho.client.mqttv3.*;
 import p2p.P2PServiceOuterClass;
 import player.simulator.HRSimulator;
+import player.simulator.Measurement;
 import player.simulator.SlidingWindowBuffer;
 
 /**
@@ -130,7 +131,7 @@ public class Player extends AbstractPlayer{
      */
     private void startSimulator() {
         SlidingWindowBuffer slidingWindowBuffer = new SlidingWindowBuffer();
-        List<Double> averageHRList = new ArrayList<>();
+        List<Measurement> averageHRList = new ArrayList<>();
 
         HRSimulator hrSimulator = new HRSimulator(slidingWindowBuffer);
         SlidingWindowConsumer slidingWindowConsumer = new SlidingWindowConsumer(slidingWindowBuffer, averageHRList);
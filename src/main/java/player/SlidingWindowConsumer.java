@@ -7,9 +7,9 @@ import player.simulator.SlidingWindowBuffer;
 
 class SlidingWindowConsumer extends Thread {
     private final SlidingWindowBuffer slidingWindowBuffer;
-    private final List<Double> averageHRList;
+    private final List<Measurement> averageHRList;
 
-    public SlidingWindowConsumer(SlidingWindowBuffer slidingWindowBuffer, List<Double> averageHRList) {
+    public SlidingWindowConsumer(SlidingWindowBuffer slidingWindowBuffer, List<Measurement> averageHRList) {
         this.slidingWindowBuffer = slidingWindowBuffer;
         this.averageHRList = averageHRList;
     }
@@ -18,12 +18,14 @@ class SlidingWindowConsumer extends Thread {
     @Override
     public void run() {
         while (true) {
-            double average = slidingWindowBuffer.readAllAndClean()
-                    .stream().mapToDouble(Measurement::getValue)
+            List<Measurement> window = slidingWindowBuffer.readAllAndClean();
+            double average = window.stream().mapToDouble(Measurement::getValue)
                     .average().orElse(0);
+            // the average is timestamped with the end of its window
+            Measurement last = window.get(window.size() - 1);
 
             synchronized (averageHRList) {
-                averageHRList.add(average);
+                averageHRList.add(new Measurement(last.getId(), last.getType(), average, last.getTimestamp()));
             }
 
         }
@@ -0,0 +1,75 @@
+package player;
+
+/**
+ * The waits of the measurement sender between its uploads. While the server rejects the uploads with 429 the send
+ * interval doubles, up to MAX_SEND_INTERVAL, so that the sender coalesces more averages per upload; every accepted
+ * upload halves it again, down to SEND_INTERVAL. A failed upload is retried sooner, after an interval that doubles
+ * at every consecutive failure, up to MAX_SEND_INTERVAL.
+ * Used by the sender thread only, so it is not thread safe.
+ */
+class UploadBackoff {
+    static final long SEND_INTERVAL = 1000 * 10;
+    // the longest interval to which the sender slows down while the server keeps rejecting its uploads
+    static final long MAX_SEND_INTERVAL = 1000 * 60;
+    // a failed upload is retried sooner, the server drops it if it had been stored already
+    static final long RETRY_INTERVAL = 1000;
+
+    private long sendInterval = SEND_INTERVAL;
+    private long retryInterval = RETRY_INTERVAL;
+
+    /**
+     * @return the wait before the next upload when there is nothing to send.
+     */
+    long idle() {
+        return sendInterval;
+    }
+
+    /**
+     * @return the wait after an upload accepted by the server.
+     */
+    long accepted() {
+        sendInterval = Math.max(SEND_INTERVAL, sendInterval / 2);
+        retryInterval = RETRY_INTERVAL;
+        return sendInterval;
+    }
+
+    /**
+     * @param retryAfter the time in milliseconds after which the server asked to retry, 0 if it did not say.
+     * @return the wait after an upload rejected with 429, never shorter than the one asked by the server.
+     */
+    long saturated(long retryAfter) {
+        sendInterval = Math.min(MAX_SEND_INTERVAL, sendInterval * 2);
+        retryInterval = RETRY_INTERVAL;
+        return Math.max(retryAfter, sendInterval);
+    }
+
+    /**
+     * @return the wait after an upload refused by the server, which is dropped.
+     */
+    long rejected() {
+        retryInterval = RETRY_INTERVAL;
+        return sendInterval;
+    }
+
+    /**
+     * @return the wait before retrying an upload that failed or did not reach the server.
+     */
+    long failed() {
+        long wait = retryInterval;
+        retryInterval = Math.min(MAX_SEND_INTERVAL, retryInterval * 2);
+        return wait;
+    }
+
+    /**
+     * @param header the Retry-After header of a 429 response, in seconds, or null.
+     * @return the time in milliseconds after which the server asked to retry, 0 if the header is missing or is not a
+     * number of seconds.
+     */
+    static long retryAfter(String header) {
+        try {
+            return header == null ? 0 : Math.max(0, Long.parseLong(header.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package administrator.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CompressedChunkTest {
+
+    @Test
+    void quantizesValuesToHundredthsAndKeepsTimestampsExact() {
+        Random random = new Random(1);
+        int size = 1000;
+        long[] timestamps = new long[size];
+        double[] values = new double[size];
+        long timestamp = 1_700_000_000_000L;
+        for (int i = 0; i < size; i++) {
+            // mostly regular, with some jitter and some repeated timestamps
+            timestamp += i % 10 == 0 ? random.nextInt(5000) : i % 7 == 0 ? 0 : 1000;
+            timestamps[i] = timestamp;
+            values[i] = 40 + random.nextDouble() * 160;
+        }
+        CompressedChunk chunk = CompressedChunk.encode(timestamps, values, 0, size);
+
+        long[] decodedTimestamps = new long[size];
+        double[] decodedValues = new double[size];
+        chunk.decode(decodedTimestamps, decodedValues, 0);
+        assertArrayEquals(timestamps, decodedTimestamps);
+        double sum = 0;
+        for (int i = 0; i < size; i++) {
+            double quantized = Math.round(values[i] * 100) / 100.0;
+            assertEquals(quantized, decodedValues[i]);
+            sum += quantized;
+        }
+        assertEquals(size, chunk.getCount());
+        assertEquals(timestamps[0], chunk.getFirstTimestamp());
+        assertEquals(timestamps[size - 1], chunk.getLastTimestamp());
+        assertEquals(sum, chunk.getSum(), 1e-6);
+        assertEquals(timestamps[500], chunk.timestampAt(500));
+    }
+
+    @Test
+    void storesValuesThatCannotBeQuantizedVerbatim() {
+        long[] timestamps = {1, 2, 3, 4, 5, 6};
+        double[] values = {72.5, Double.NaN, Double.POSITIVE_INFINITY, 1e15, -3e20, 80.25};
+        CompressedChunk chunk = CompressedChunk.encode(timestamps, values, 0, values.length);
+
+        double[] decoded = new double[values.length];
+        chunk.decode(new long[values.length], decoded, 0);
+        assertArrayEquals(values, decoded);
+    }
+
+    @Test
+    void encodesASubrangeOfTheArrays() {
+        long[] timestamps = {10, 20, 30, 40, 50};
+        double[] values = {60, 61, 62, 63, 64};
+        CompressedChunk chunk = CompressedChunk.encode(timestamps, values, 1, 4);
+
+        long[] decodedTimestamps = new long[5];
+        double[] decodedValues = new double[5];
+        chunk.decode(decodedTimestamps, decodedValues, 2);
+        assertArrayEquals(new long[]{0, 0, 20, 30, 40}, decodedTimestamps);
+        assertArrayEquals(new double[]{0, 0, 61, 62, 63}, decodedValues);
+        assertEquals(61 + 62, chunk.sumOfFirst(2), 1e-9);
+    }
+
+    @Test
+    void accumulatesOnlyTheValuesInTheRange() {
+        long[] timestamps = {100, 200, 300, 400, 500};
+        double[] values = {60, 70, 80, 90, 100};
+        CompressedChunk chunk = CompressedChunk.encode(timestamps, values, 0, values.length);
+
+        Aggregate range = new Aggregate();
+        chunk.accumulateRange(200, 400, range);
+        assertEquals(3, range.getCount());
+        assertEquals(240, range.getSum(), 1e-9);
+        assertEquals(70, range.getMin());
+        assertEquals(90, range.getMax());
+
+        Aggregate all = new Aggregate();
+        chunk.mergeInto(all);
+        assertEquals(5, all.getCount());
+        assertEquals(400, all.getSum(), 1e-9);
+        assertEquals(60, all.getMin());
+        assertEquals(100, all.getMax());
+    }
+
+    @Test
+    void readsBackTheColumnsItWrites() throws IOException {
+        Random random = new Random(2);
+        CompressedChunk[] chunks = new CompressedChunk[3];
+        long[][] timestamps = new long[chunks.length][];
+        double[][] values = new double[chunks.length][];
+        for (int c = 0; c < chunks.length; c++) {
+            int size = 1 + random.nextInt(300);
+            timestamps[c] = new long[size];
+            values[c] = new double[size];
+            for (int i = 0; i < size; i++) {
+                timestamps[c][i] = c * 1_000_000L + i * 1000L;
+                values[c][i] = Math.round((50 + random.nextInt(100) + random.nextDouble()) * 100) / 100.0;
+            }
+            chunks[c] = CompressedChunk.encode(timestamps[c], values[c], 0, size);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CompressedChunk.writeColumns(chunks, chunks.length, new DataOutputStream(bytes));
+        // followed by other data, which must be left in the buffer
+        new DataOutputStream(bytes).writeInt(42);
+
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        CompressedChunk[] read = CompressedChunk.readColumns(in);
+        assertEquals(42, in.getInt());
+        assertEquals(chunks.length, read.length);
+        for (int c = 0; c < chunks.length; c++) {
+            int size = values[c].length;
+            long[] decodedTimestamps = new long[size];
+            double[] decodedValues = new double[size];
+            read[c].decode(decodedTimestamps, decodedValues, 0);
+            assertArrayEquals(timestamps[c], decodedTimestamps);
+            assertArrayEquals(values[c], decodedValues);
+            assertEquals(chunks[c].getSum(), read[c].getSum());
+            assertEquals(chunks[c].estimatedBytes(), read[c].estimatedBytes());
+        }
+    }
+}
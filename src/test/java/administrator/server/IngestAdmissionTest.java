@@ -0,0 +1,67 @@
+package administrator.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IngestAdmissionTest {
+    // a rate so low that no bucket refills during a test
+    private static final double NO_REFILL = 0.001;
+
+    @Test
+    void admitsABurstThenRejectsWithAHintOfWhenToRetry() {
+        IngestAdmission admission = new IngestAdmission(100, 1, 3, 0, 0);
+        for (int i = 0; i < 3; i++) assertEquals(0, admission.tryAdmit(1, 1));
+        long retryAfter = admission.tryAdmit(1, 1);
+        // a token every second
+        assertTrue(retryAfter > 0 && retryAfter <= 1000, "retry after " + retryAfter);
+        // the other players have their own bucket
+        assertEquals(0, admission.tryAdmit(2, 1));
+    }
+
+    @Test
+    void doesNotChargeThePlayerWhenTheGlobalBucketRejects() throws InterruptedException {
+        // a global token every 50 milliseconds, a single player token that never refills
+        IngestAdmission admission = new IngestAdmission(100, NO_REFILL, 1, 20, 1);
+        assertEquals(0, admission.tryAdmit(1, 1));
+        long retryAfter = admission.tryAdmit(2, 1);
+        assertTrue(retryAfter > 0 && retryAfter <= 50, "retry after " + retryAfter);
+        Thread.sleep(retryAfter + 10);
+        // only admitted if the rejected upload left the token of the player in its bucket
+        assertEquals(0, admission.tryAdmit(2, 1));
+    }
+
+    @Test
+    void doesNotChargeTheGlobalBucketWhenThePlayerRejects() {
+        IngestAdmission admission = new IngestAdmission(100, NO_REFILL, 1, NO_REFILL, 2);
+        assertEquals(0, admission.tryAdmit(1, 1));
+        assertTrue(admission.tryAdmit(1, 1) > 0);
+        assertTrue(admission.tryAdmit(1, 1) > 0);
+        // only admitted if the rejected uploads left the second global token in its bucket
+        assertEquals(0, admission.tryAdmit(2, 1));
+        assertTrue(admission.tryAdmit(3, 1) > 0);
+    }
+
+    @Test
+    void chargesAnUploadLargerThanTheGlobalBurstTheWholeBurst() {
+        IngestAdmission admission = new IngestAdmission(100, NO_REFILL, 1, NO_REFILL, 10);
+        assertEquals(0, admission.tryAdmit(null, 50));
+        assertTrue(admission.tryAdmit(null, 1) > 0);
+    }
+
+    @Test
+    void releaseRestoresTheCapacityInFlight() {
+        IngestAdmission admission = new IngestAdmission(2, 0, 0, 0, 0);
+        assertEquals(0, admission.tryAdmit(1, 1));
+        assertEquals(0, admission.tryAdmit(1, 1));
+        assertTrue(admission.tryAdmit(2, 1) > 0);
+        admission.release();
+        assertEquals(0, admission.tryAdmit(2, 1));
+        assertTrue(admission.tryAdmit(3, 1) > 0);
+        admission.release();
+        admission.release();
+        assertEquals(0, admission.tryAdmit(3, 1));
+        assertEquals(0, admission.tryAdmit(4, 1));
+    }
+}
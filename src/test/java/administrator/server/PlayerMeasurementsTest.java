@@ -0,0 +1,240 @@
+package administrator.server;
+
+import beans.HeartRateMeasurements;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PlayerMeasurementsTest {
+    private static final long INTERVAL = 1000;
+
+    /**
+     * The values added to a store, kept in plain lists to compute the expected results by brute force.
+     */
+    private static final class Reference {
+        private final List<long[]> timestamps = new ArrayList<>();
+        private final List<Double> values = new ArrayList<>();
+        private final Random random = new Random(7);
+
+        /**
+         * Adds a batch of values with consecutive timestamps to the store and to the reference.
+         */
+        void add(PlayerMeasurements measurements, long firstTimestamp, int count) {
+            List<Long> batchTimestamps = new ArrayList<>();
+            List<Double> batchValues = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                long timestamp = firstTimestamp + i * INTERVAL;
+                // hundredths of bpm, which the chunks store exactly
+                double value = (5000 + random.nextInt(10000)) / 100.0;
+                batchTimestamps.add(timestamp);
+                batchValues.add(value);
+                timestamps.add(new long[]{timestamp, values.size()});
+                values.add(value);
+            }
+            measurements.add(new HeartRateMeasurements(1, batchTimestamps, batchValues));
+        }
+
+        void evictBefore(long cutoff) {
+            timestamps.removeIf(entry -> entry[0] < cutoff);
+        }
+
+        int size() {
+            return timestamps.size();
+        }
+
+        /**
+         * @return the average of the n values with the most recent timestamps.
+         */
+        double averageLastN(int n) {
+            List<long[]> sorted = sorted();
+            double sum = 0;
+            for (long[] entry : sorted.subList(sorted.size() - n, sorted.size())) sum += values.get((int) entry[1]);
+            return sum / n;
+        }
+
+        /**
+         * @return the count and the sum of the values between t1 and t2 (inclusive).
+         */
+        double[] range(long t1, long t2) {
+            double count = 0;
+            double sum = 0;
+            for (long[] entry : timestamps) {
+                if (entry[0] >= t1 && entry[0] <= t2) {
+                    count++;
+                    sum += values.get((int) entry[1]);
+                }
+            }
+            return new double[]{count, sum};
+        }
+
+        private List<long[]> sorted() {
+            List<long[]> sorted = new ArrayList<>(timestamps);
+            sorted.sort(Comparator.comparingLong(entry -> entry[0]));
+            return sorted;
+        }
+    }
+
+    @Test
+    void answersLastNAndRangesAcrossTheHeadAndTheChunks() {
+        PlayerMeasurements measurements = new PlayerMeasurements();
+        Reference reference = new Reference();
+        // two sealed chunks and part of the head
+        for (int batch = 0; batch < 25; batch++) reference.add(measurements, batch * 100 * INTERVAL, 100);
+        // a late batch, merged into the first chunk
+        reference.add(measurements, 500 * INTERVAL + 1, 3);
+
+        assertEquals(reference.size(), measurements.valuesCount());
+        assertSameResults(reference, measurements);
+    }
+
+    @Test
+    void keepsTheResultsWhenTheHeadIsSealedByTheCompaction() {
+        PlayerMeasurements measurements = new PlayerMeasurements();
+        Reference reference = new Reference();
+        reference.add(measurements, 0, PlayerMeasurements.CHUNK_SIZE + PlayerMeasurements.MIN_SEAL_SIZE + 10);
+        long bytesBefore = measurements.rawBytes();
+
+        measurements.compact();
+
+        assertTrue(measurements.rawBytes() < bytesBefore, "the head should have been compressed");
+        assertEquals(reference.size(), measurements.valuesCount());
+        assertSameResults(reference, measurements);
+    }
+
+    @Test
+    void keepsOnlyTheValuesAfterTheEviction() {
+        PlayerMeasurements measurements = new PlayerMeasurements();
+        Reference reference = new Reference();
+        reference.add(measurements, 0, 3000);
+
+        // in the middle of the second chunk
+        long cutoff = 1500 * INTERVAL + 1;
+        assertTrue(measurements.evictBefore(cutoff));
+        reference.evictBefore(cutoff);
+        assertEquals(reference.size(), measurements.valuesCount());
+        assertEquals(cutoff, measurements.rawRetainedFrom());
+        assertSameResults(reference, measurements);
+
+        assertTrue(measurements.evictOldest(1000));
+        reference.evictBefore(2501 * INTERVAL);
+        assertEquals(reference.size(), measurements.valuesCount());
+        assertSameResults(reference, measurements);
+
+        // the rollup keeps the evicted values: the whole range is still counted
+        Aggregate all = new Aggregate();
+        measurements.accumulate(0, 3000 * INTERVAL, all);
+        assertEquals(3000, all.getCount());
+    }
+
+    @Test
+    void readsBackWhatItWritesToASnapshot() throws IOException {
+        PlayerMeasurements measurements = new PlayerMeasurements();
+        Reference reference = new Reference();
+        reference.add(measurements, 0, 2100);
+        measurements.evictBefore(300 * INTERVAL);
+        reference.evictBefore(300 * INTERVAL);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        measurements.writeTo(new DataOutputStream(bytes));
+        PlayerMeasurements loaded = PlayerMeasurements.readFrom(ByteBuffer.wrap(bytes.toByteArray()));
+
+        assertEquals(reference.size(), loaded.valuesCount());
+        assertEquals(measurements.rawRetainedFrom(), loaded.rawRetainedFrom());
+        assertSameResults(reference, loaded);
+        // the loaded store keeps growing like the original
+        reference.add(loaded, 2100 * INTERVAL, 500);
+        assertSameResults(reference, loaded);
+    }
+
+    @Test
+    void anOldVersionStaysConsistentWhileTheWriterGoesOn() throws InterruptedException {
+        PlayerMeasurements measurements = new PlayerMeasurements();
+        Reference reference = new Reference();
+        reference.add(measurements, 0, 1500);
+        PlayerMeasurements.Version version = measurements.version();
+        int count = version.valuesCount();
+        double average = version.averageLastN(count);
+        double lastAverage = version.averageLastN(10);
+        Aggregate range = new Aggregate();
+        version.accumulateRaw(200 * INTERVAL, 1300 * INTERVAL, range);
+
+        AtomicReference<Throwable> writerFailure = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            try {
+                for (int batch = 0; batch < 100; batch++) {
+                    List<Long> timestamps = new ArrayList<>();
+                    List<Double> values = new ArrayList<>();
+                    for (int i = 0; i < 50; i++) {
+                        timestamps.add((1500 + batch * 50 + i) * INTERVAL);
+                        values.add(200.0);
+                    }
+                    measurements.add(new HeartRateMeasurements(1, timestamps, values));
+                    if (batch % 10 == 0) measurements.compact();
+                    if (batch == 50) measurements.evictBefore(700 * INTERVAL);
+                }
+                // a late value inside the oldest retained chunk
+                measurements.add(new HeartRateMeasurements(1, Collections.singletonList(800 * INTERVAL + 1),
+                        Collections.singletonList(0.0)));
+            } catch (Throwable e) {
+                writerFailure.set(e);
+            }
+        });
+        writer.start();
+        do {
+            assertEquals(count, version.valuesCount());
+            assertEquals(average, version.averageLastN(count));
+            assertEquals(lastAverage, version.averageLastN(10));
+            Aggregate again = new Aggregate();
+            version.accumulateRaw(200 * INTERVAL, 1300 * INTERVAL, again);
+            assertEquals(range.getCount(), again.getCount());
+            assertEquals(range.getSum(), again.getSum());
+        } while (writer.isAlive());
+        writer.join();
+        assertNull(writerFailure.get());
+
+        assertEquals(count, version.valuesCount());
+        assertEquals(average, version.averageLastN(count));
+        assertEquals(1500 - 700 + 5000 + 1, measurements.valuesCount());
+        assertEquals(200.0, measurements.averageLastN(50));
+    }
+
+    /**
+     * Checks last-n and the range aggregates of the store against the brute force results of the reference.
+     */
+    private static void assertSameResults(Reference reference, PlayerMeasurements measurements) {
+        int size = reference.size();
+        for (int n : new int[]{1, 7, 64, 500, PlayerMeasurements.CHUNK_SIZE, PlayerMeasurements.CHUNK_SIZE + 1, size - 1, size}) {
+            if (n < 1 || n > size) continue;
+            assertEquals(reference.averageLastN(n), measurements.averageLastN(n), 1e-9, "last " + n);
+        }
+        long last = 3000 * INTERVAL;
+        long[][] ranges = {{0, last}, {1, 999 * INTERVAL}, {1023 * INTERVAL, 1024 * INTERVAL},
+                {500 * INTERVAL, 2100 * INTERVAL + 1}, {2047 * INTERVAL + 1, last}, {10 * INTERVAL, 10 * INTERVAL}};
+        for (long[] range : ranges) {
+            double[] expected = reference.range(range[0], range[1]);
+            Aggregate raw = new Aggregate();
+            measurements.accumulateRange(range[0], range[1], raw);
+            assertEquals((long) expected[0], raw.getCount(), "count in " + range[0] + ".." + range[1]);
+            assertEquals(expected[1], raw.getSum(), 1e-6, "sum in " + range[0] + ".." + range[1]);
+            if (range[0] >= measurements.rawRetainedFrom()) {
+                Aggregate rollup = new Aggregate();
+                measurements.accumulate(range[0], range[1], rollup);
+                assertEquals((long) expected[0], rollup.getCount(), "rollup count in " + range[0] + ".." + range[1]);
+                assertEquals(expected[1], rollup.getSum(), 1e-6, "rollup sum in " + range[0] + ".." + range[1]);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package administrator.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QuantileSketchTest {
+    private static final double[] QUANTILES = {0, 0.001, 0.01, 0.05, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99, 0.999, 1};
+
+    /**
+     * @return heart rates from a resting and an exercising population, rounded to 0.01 bpm as the players send them.
+     */
+    private static double[] heartRates(int n, long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            double value = random.nextBoolean() ? 65 + 8 * random.nextGaussian() : 140 + 25 * random.nextGaussian();
+            values[i] = Math.round(Math.max(30, Math.min(220, value)) * 100) / 100.0;
+        }
+        return values;
+    }
+
+    private static QuantileSketch sketch(double[] values, int from, int to) {
+        QuantileSketch sketch = new QuantileSketch();
+        for (int i = from; i < to; i++) sketch.add(values[i]);
+        return sketch;
+    }
+
+    private static void assertSameSketch(QuantileSketch expected, QuantileSketch actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getMin(), actual.getMin());
+        assertEquals(expected.getMax(), actual.getMax());
+        for (double q : QUANTILES) assertEquals(expected.quantile(q), actual.quantile(q), "quantile " + q);
+    }
+
+    @Test
+    void answersTheQuantilesWithinTheRelativeAccuracy() {
+        for (int n : new int[]{1, 2, 10, 1000, 50_000}) {
+            double[] values = heartRates(n, n);
+            QuantileSketch sketch = sketch(values, 0, n);
+            double[] sorted = values.clone();
+            Arrays.sort(sorted);
+            assertEquals(n, sketch.getCount());
+            assertEquals(sorted[0], sketch.getMin());
+            assertEquals(sorted[n - 1], sketch.getMax());
+            for (double q : QUANTILES) {
+                double exact = sorted[(int) Math.floor(q * (n - 1))];
+                double estimate = sketch.quantile(q);
+                assertTrue(Math.abs(estimate - exact) <= QuantileSketch.RELATIVE_ACCURACY * exact * (1 + 1e-9),
+                        "quantile " + q + " of " + n + " values: " + estimate + " instead of " + exact);
+            }
+        }
+    }
+
+    @Test
+    void reportsTheValuesOutsideTheBucketsWithinTheMinimumAndMaximum() {
+        QuantileSketch sketch = new QuantileSketch();
+        assertTrue(sketch.isEmpty());
+        assertTrue(Double.isNaN(sketch.quantile(0.5)));
+        sketch.add(0);
+        sketch.add(-3);
+        sketch.add(Double.NaN);
+        sketch.add(0.2);
+        sketch.add(5000);
+        assertEquals(4, sketch.getCount());
+        // the values not greater than zero are reported as 0
+        assertEquals(0.0, sketch.quantile(0));
+        assertEquals(0.0, sketch.quantile(0.34));
+        assertEquals(-3.0, sketch.getMin());
+        // below and above the bucketed values: counted in the first and the last bucket, around 1 and 1000 bpm
+        double low = sketch.quantile(0.67);
+        assertTrue(low >= 0.2 && low <= 1.02, "reported " + low);
+        double high = sketch.quantile(1);
+        assertTrue(high >= 990 && high <= 1010, "reported " + high);
+        assertEquals(5000.0, sketch.getMax());
+    }
+
+    @Test
+    void mergingTwoSketchesMatchesASketchOfAllTheValues() {
+        double[] values = heartRates(20_000, 7);
+        QuantileSketch all = sketch(values, 0, values.length);
+        for (int split : new int[]{0, 1, 5_000, 19_999, 20_000}) {
+            QuantileSketch merged = sketch(values, 0, split);
+            merged.merge(sketch(values, split, values.length));
+            assertSameSketch(all, merged);
+        }
+        // sketches of disjoint values, so that the merge grows the buckets on either side
+        QuantileSketch low = sketch(new double[]{40, 41, 42}, 0, 3);
+        QuantileSketch high = sketch(new double[]{180, 190, 0}, 0, 3);
+        QuantileSketch lowThenHigh = sketch(new double[]{40, 41, 42}, 0, 3);
+        lowThenHigh.merge(high);
+        high.merge(low);
+        assertSameSketch(sketch(new double[]{40, 41, 42, 180, 190, 0}, 0, 6), lowThenHigh);
+        assertSameSketch(lowThenHigh, high);
+    }
+
+    @Test
+    void readsBackTheSketchesWrittenInColumns() throws IOException {
+        double[] values = heartRates(3_000, 3);
+        List<QuantileSketch> sketches = new ArrayList<>();
+        sketches.add(sketch(values, 0, 1_000));
+        sketches.add(new QuantileSketch());
+        sketches.add(sketch(new double[]{0, -1, 72.5}, 0, 3));
+        sketches.add(sketch(values, 1_000, 3_000));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            QuantileSketch.CODEC.write(sketches, out);
+        }
+        ByteBuffer in = ByteBuffer.wrap(bytes.toByteArray());
+        List<QuantileSketch> read = QuantileSketch.CODEC.read(in, sketches.size());
+        assertFalse(in.hasRemaining());
+        assertEquals(sketches.size(), read.size());
+        for (int i = 0; i < sketches.size(); i++) {
+            assertSameSketch(sketches.get(i), read.get(i));
+            assertEquals(sketches.get(i).toString(), read.get(i).toString());
+        }
+        // the sketches read back merge like the original ones
+        read.get(0).merge(read.get(3));
+        assertSameSketch(sketch(values, 0, 3_000), read.get(0));
+    }
+}
@@ -0,0 +1,162 @@
+package administrator.server;
+
+import beans.HeartRateMeasurements;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueryCacheTest {
+    private static final int WAITERS = 8;
+
+    /**
+     * A query that counts its computations and, once started, blocks until it is released.
+     */
+    private static final class BlockingQuery implements Supplier<Double> {
+        private final AtomicInteger computations = new AtomicInteger();
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public Double get() {
+            computations.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            return 42.0;
+        }
+    }
+
+    private static HeartRateMeasurements batch(int player, long... timestamps) {
+        List<Long> times = new ArrayList<>();
+        List<Double> values = new ArrayList<>();
+        for (long timestamp : timestamps) {
+            times.add(timestamp);
+            values.add(80.0);
+        }
+        return new HeartRateMeasurements(player, times, values);
+    }
+
+    /**
+     * Waits until the given number of callers are waiting for a query that is being computed.
+     */
+    private static void awaitCoalesced(QueryCache cache, long callers) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (cache.getStats().getCoalesced() < callers) {
+            assertTrue(System.currentTimeMillis() < deadline, "the callers did not wait for the query");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    void computesConcurrentIdenticalMissesOnce() throws InterruptedException {
+        QueryCache cache = new QueryCache(16);
+        QueryCache.Key key = QueryCache.Key.range(1000, 2000);
+        BlockingQuery query = new BlockingQuery();
+        Double[] results = new Double[WAITERS + 1];
+        List<Thread> threads = new ArrayList<>();
+        threads.add(new Thread(() -> results[0] = cache.get(key, query)));
+        threads.get(0).start();
+        query.started.await();
+        for (int i = 1; i <= WAITERS; i++) {
+            int caller = i;
+            Thread thread = new Thread(() -> results[caller] = cache.get(QueryCache.Key.range(1000, 2000), query));
+            threads.add(thread);
+            thread.start();
+        }
+        awaitCoalesced(cache, WAITERS);
+        query.release.countDown();
+        for (Thread thread : threads) thread.join();
+
+        assertEquals(1, query.computations.get());
+        for (double result : results) assertEquals(42.0, result);
+        assertEquals(1, cache.getStats().getMisses());
+        assertEquals(WAITERS, cache.getStats().getCoalesced());
+        // once computed, the result is a hit
+        assertEquals(42.0, (double) cache.get(key, query));
+        assertEquals(1, query.computations.get());
+        assertEquals(1, cache.getStats().getHits());
+    }
+
+    @Test
+    void restoresTheInterruptOfACallerWaitingForTheQuery() throws InterruptedException {
+        QueryCache cache = new QueryCache(16);
+        QueryCache.Key key = QueryCache.Key.lastN(1, 10);
+        BlockingQuery query = new BlockingQuery();
+        Thread owner = new Thread(() -> cache.get(key, query));
+        owner.start();
+        query.started.await();
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread waiter = new Thread(() -> {
+            try {
+                cache.get(key, query);
+            } catch (RuntimeException e) {
+                failure.set(e);
+                interrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        waiter.start();
+        awaitCoalesced(cache, 1);
+        waiter.interrupt();
+        waiter.join();
+        query.release.countDown();
+        owner.join();
+
+        assertTrue(failure.get() != null && failure.get().getCause() instanceof InterruptedException);
+        assertTrue(interrupted.get(), "the interrupt of the waiter was lost");
+        assertEquals(1, query.computations.get());
+    }
+
+    @Test
+    void invalidatesTheRangesThatContainTheNewMeasurements() {
+        QueryCache cache = new QueryCache(16);
+        AtomicInteger computations = new AtomicInteger();
+        Supplier<Double> query = () -> (double) computations.incrementAndGet();
+        QueryCache.Key range = QueryCache.Key.range(1000, 2000);
+        QueryCache.Key byPlayer = QueryCache.Key.rangeByPlayer(1000, 2000);
+        cache.get(range, query);
+        cache.get(byPlayer, query);
+        assertEquals(2, cache.getStats().getEntries());
+
+        // right before and right after the range
+        cache.invalidate(batch(1, 500, 999));
+        cache.invalidate(batch(2, 2001, 3000));
+        assertEquals(2, cache.getStats().getEntries());
+        assertEquals(0, cache.getStats().getInvalidations());
+        assertEquals(1.0, (double) cache.get(range, query));
+
+        // a single value inside the range, even on its edge
+        cache.invalidate(batch(4, 3000, 2000, 4000));
+        assertEquals(0, cache.getStats().getEntries());
+        assertEquals(2, cache.getStats().getInvalidations());
+        assertEquals(3.0, (double) cache.get(range, query));
+    }
+
+    @Test
+    void invalidatesTheLastNAveragesOfThePlayerOnly() {
+        QueryCache cache = new QueryCache(16);
+        AtomicInteger computations = new AtomicInteger();
+        Supplier<Double> query = () -> (double) computations.incrementAndGet();
+        cache.get(QueryCache.Key.lastN(1, 10), query);
+        cache.get(QueryCache.Key.lastN(2, 10), query);
+
+        cache.invalidate(new HeartRateMeasurements(1, 5000, Arrays.asList(70.0, 71.0)));
+        assertEquals(1, cache.getStats().getEntries());
+        assertEquals(2.0, (double) cache.get(QueryCache.Key.lastN(2, 10), query));
+        assertEquals(3.0, (double) cache.get(QueryCache.Key.lastN(1, 10), query));
+    }
+}
@@ -0,0 +1,165 @@
+package administrator.server;
+
+import beans.HeartRateMeasurements;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RollupTest {
+    private static final long SECOND = 1000;
+    private static final long HOUR = 3_600_000;
+
+    /**
+     * The raw values, read by brute force for the edges of the ranges and for the expected results.
+     */
+    private static final class RawValues implements Rollup.RawSource<Aggregate> {
+        private final List<Long> timestamps = new ArrayList<>();
+        private final List<Double> values = new ArrayList<>();
+        private long retainedFrom = Long.MIN_VALUE;
+        // the number of values read by the rollup
+        private long read = 0;
+
+        @Override
+        public void accumulateRaw(long t1, long t2, Aggregate acc) {
+            for (int i = 0; i < timestamps.size(); i++) {
+                if (timestamps.get(i) >= Math.max(t1, retainedFrom) && timestamps.get(i) <= t2) {
+                    acc.add(values.get(i));
+                    read++;
+                }
+            }
+        }
+
+        @Override
+        public long rawRetainedFrom() {
+            return retainedFrom;
+        }
+
+        Aggregate bruteForce(long t1, long t2) {
+            Aggregate acc = new Aggregate();
+            for (int i = 0; i < timestamps.size(); i++) {
+                if (timestamps.get(i) >= t1 && timestamps.get(i) <= t2) acc.add(values.get(i));
+            }
+            return acc;
+        }
+    }
+
+    /**
+     * Adds three hours of values, one every few seconds, to the rollup and to the raw values, in batches of the
+     * given players. Some values are one millisecond away from the boundary of a 10 second bucket.
+     */
+    private static RawValues fill(Rollup<Aggregate> rollup, long start, int players) {
+        RawValues raw = new RawValues();
+        Random random = new Random(11);
+        for (long timestamp = start; timestamp < start + 3 * HOUR; timestamp += 1 + random.nextInt(5000)) {
+            add(rollup, raw, random, random.nextInt(players), timestamp);
+        }
+        long firstBoundary = start / (10 * SECOND) * (10 * SECOND);
+        for (long boundary = firstBoundary; boundary < start + 3 * HOUR; boundary += 10 * SECOND) {
+            add(rollup, raw, random, random.nextInt(players), boundary - 1 + random.nextInt(3));
+        }
+        return raw;
+    }
+
+    private static void add(Rollup<Aggregate> rollup, RawValues raw, Random random, int player, long timestamp) {
+        List<Double> batch = new ArrayList<>();
+        for (int i = 0; i < 1 + random.nextInt(3); i++) {
+            double value = 40 + random.nextInt(16000) / 100.0;
+            batch.add(value);
+            raw.timestamps.add(timestamp);
+            raw.values.add(value);
+        }
+        rollup.add(new HeartRateMeasurements(player, timestamp, batch));
+    }
+
+    private static void assertSameAggregate(Aggregate expected, Aggregate actual, String range) {
+        assertEquals(expected.getCount(), actual.getCount(), "count in " + range);
+        assertEquals(expected.getSum(), actual.getSum(), 1e-6, "sum in " + range);
+        assertEquals(expected.getMin(), actual.getMin(), "min in " + range);
+        assertEquals(expected.getMax(), actual.getMax(), "max in " + range);
+    }
+
+    @Test
+    void matchesTheRawValuesForRangesWithEdgesInsideTheBuckets() {
+        // starts in the middle of an hour, so that every tier has partial buckets at both ends
+        long start = 1_700_000_000_000L / HOUR * HOUR + 17 * 60 * SECOND + 3 * SECOND;
+        for (int stripes : new int[]{1, 4}) {
+            Rollup<Aggregate> rollup = new Rollup<>(Rollup.RESOLUTIONS, Aggregate::new, stripes, null);
+            RawValues raw = fill(rollup, start, 8);
+            long hourStart = (start / HOUR + 1) * HOUR;
+            long[][] ranges = {
+                    // the whole history, all three tiers
+                    {start - HOUR, start + 4 * HOUR},
+                    // from inside a 10 second bucket to inside another, hours apart
+                    {start + 7 * SECOND, start + 2 * HOUR + 59 * 60 * SECOND + 3 * SECOND},
+                    // exactly one hour bucket, and one or two milliseconds more or less on each side
+                    {hourStart, hourStart + HOUR - 1},
+                    {hourStart - 1, hourStart + HOUR},
+                    {hourStart + 1, hourStart + HOUR - 2},
+                    {hourStart - 2, hourStart + HOUR + 1},
+                    // shorter than the finest bucket
+                    {hourStart + 3 * SECOND, hourStart + 8 * SECOND},
+                    // a single instant, on a bucket boundary
+                    {hourStart, hourStart},
+                    // minutes across the hour boundary
+                    {hourStart - 90 * SECOND - 1, hourStart + 150 * SECOND + 1},
+            };
+            for (long[] range : ranges) {
+                Aggregate actual = new Aggregate();
+                rollup.accumulate(range[0], range[1], raw, actual);
+                assertSameAggregate(raw.bruteForce(range[0], range[1]), actual, stripes + " stripes, " + range[0] + ".." + range[1]);
+            }
+            Random random = new Random(5);
+            for (int i = 0; i < 400; i++) {
+                long t1 = start - HOUR + (long) (random.nextDouble() * 5 * HOUR);
+                long t2 = t1 + (long) (random.nextDouble() * 4 * HOUR);
+                // half of the ranges end right around the boundary of a bucket
+                if (i % 2 == 0) t2 = t2 / (10 * SECOND) * (10 * SECOND) - 2 + random.nextInt(4);
+                Aggregate actual = new Aggregate();
+                rollup.accumulate(t1, t2, raw, actual);
+                assertSameAggregate(raw.bruteForce(t1, t2), actual, stripes + " stripes, " + t1 + ".." + t2);
+            }
+        }
+    }
+
+    @Test
+    void readsTheRawValuesOnlyAtTheEdges() {
+        long start = 1_700_000_000_000L / HOUR * HOUR;
+        Rollup<Aggregate> rollup = new Rollup<>(Aggregate::new);
+        RawValues raw = fill(rollup, start, 1);
+        Aggregate actual = new Aggregate();
+        rollup.accumulate(start + 5 * SECOND, start + 3 * HOUR - 5 * SECOND, raw, actual);
+        assertSameAggregate(raw.bruteForce(start + 5 * SECOND, start + 3 * HOUR - 5 * SECOND), actual, "long range");
+        // only the two partial buckets of 10 seconds at the edges, out of thousands of values
+        assertTrue(raw.read <= 100, "read " + raw.read + " raw values");
+    }
+
+    @Test
+    void answersWithTheCoarserBucketsOnceTheFinerTiersAreEvicted() {
+        long start = 1_700_000_000_000L / HOUR * HOUR;
+        Rollup<Aggregate> rollup = new Rollup<>(Aggregate::new);
+        RawValues raw = fill(rollup, start, 1);
+        long cutoff = start + 2 * HOUR;
+        raw.retainedFrom = cutoff;
+        rollup.evictBefore(0, cutoff);
+        rollup.evictBefore(1, cutoff);
+        assertEquals(cutoff, rollup.retainedFrom(0));
+
+        // whole hours are still exact
+        Aggregate hours = new Aggregate();
+        rollup.accumulate(start, start + 3 * HOUR - 1, raw, hours);
+        assertSameAggregate(raw.bruteForce(start, start + 3 * HOUR - 1), hours, "whole hours");
+        // before the cutoff a partial hour is approximated with the hour buckets that start inside it
+        Aggregate partial = new Aggregate();
+        rollup.accumulate(start + HOUR / 2, start + 3 * HOUR - 1, raw, partial);
+        assertSameAggregate(raw.bruteForce(start + HOUR, start + 3 * HOUR - 1), partial, "partial hour");
+        // after the cutoff the edges are read from the raw values
+        Aggregate recent = new Aggregate();
+        rollup.accumulate(cutoff + 7 * SECOND, cutoff + HOUR / 2 + 3 * SECOND, raw, recent);
+        assertSameAggregate(raw.bruteForce(cutoff + 7 * SECOND, cutoff + HOUR / 2 + 3 * SECOND), recent, "recent");
+    }
+}
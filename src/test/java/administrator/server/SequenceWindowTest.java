@@ -0,0 +1,59 @@
+package administrator.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SequenceWindowTest {
+
+    @Test
+    void rejectsDuplicates() {
+        SequenceWindow window = new SequenceWindow();
+        assertTrue(window.accept(1));
+        assertTrue(window.accept(2));
+        assertFalse(window.accept(2));
+        assertFalse(window.accept(1));
+        assertEquals(2, window.getHighest());
+    }
+
+    @Test
+    void acceptsOutOfOrderSequencesOnceWithinTheWindow() {
+        SequenceWindow window = new SequenceWindow();
+        assertTrue(window.accept(10));
+        assertTrue(window.accept(7));
+        assertFalse(window.accept(7));
+        assertTrue(window.accept(10 - SequenceWindow.WINDOW + 1));
+        assertEquals(10, window.getHighest());
+    }
+
+    @Test
+    void rejectsSequencesOlderThanTheWindow() {
+        SequenceWindow window = new SequenceWindow();
+        assertTrue(window.accept(100));
+        assertFalse(window.accept(100 - SequenceWindow.WINDOW));
+        assertFalse(window.accept(1));
+    }
+
+    @Test
+    void forgetsTheBitmapAfterAJumpLongerThanTheWindow() {
+        SequenceWindow window = new SequenceWindow();
+        assertTrue(window.accept(5));
+        assertTrue(window.accept(5 + SequenceWindow.WINDOW));
+        assertEquals(1, window.getSeen());
+        assertTrue(window.accept(6));
+        assertFalse(window.accept(6));
+    }
+
+    @Test
+    void restoresTheSavedState() {
+        SequenceWindow window = new SequenceWindow();
+        for (long sequence : new long[]{3, 1, 8, 5}) window.accept(sequence);
+        SequenceWindow restored = new SequenceWindow();
+        restored.restore(window.getHighest(), window.getSeen());
+        for (long sequence = 1; sequence <= 9; sequence++) {
+            assertEquals(window.accept(sequence), restored.accept(sequence), "sequence " + sequence);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package administrator.server;
+
+import beans.HeartRateAggregate;
+import beans.HeartRateMeasurements;
+import beans.Player;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ServerTest {
+    private static final long HOUR = 3_600_000L;
+
+    @TempDir
+    Path dataDir;
+    private Server server;
+
+    @AfterEach
+    void tearDown() {
+        if (server != null) server.shutdown();
+    }
+
+    private ServerConfig config(long retentionMaxAge) {
+        Properties properties = new Properties();
+        properties.setProperty("watchout.dataDir", dataDir.toString());
+        properties.setProperty("watchout.snapshot.interval", "0");
+        properties.setProperty("watchout.compaction.interval", String.valueOf(Long.MAX_VALUE));
+        properties.setProperty("watchout.retention.maxAge", String.valueOf(retentionMaxAge));
+        return new ServerConfig(properties);
+    }
+
+    @Test
+    void hasNoMeasurementsBeforeTheFirstBatch() {
+        server = new Server(config(0), false);
+        server.addPlayer(new Player(1, 5001, "localhost", 0, 0));
+        assertFalse(server.anyMeasurement());
+        assertFalse(server.existsPlayerHRMeasurements(1));
+    }
+
+    @Test
+    void answersBetweenTimeFromTheRollupsOnceAllTheRawValuesAreEvicted() {
+        ServerConfig config = config(HOUR);
+        server = new Server(config, false);
+        long now = System.currentTimeMillis();
+        // two whole hours of history, ending an hour before the retention cutoff
+        long start = (now - 4 * HOUR) / HOUR * HOUR;
+        long count = 0;
+        double sum = 0;
+        for (int id = 1; id <= 3; id++) {
+            server.addPlayer(new Player(id, 5000 + id, "localhost", 0, 0));
+            for (long timestamp = start; timestamp < start + 2 * HOUR; timestamp += 60_000) {
+                List<Double> values = new ArrayList<>();
+                for (int i = 0; i < 5; i++) values.add(60.0 + id + i);
+                server.addHRMeasurements(new HeartRateMeasurements(id, timestamp, values));
+                count += values.size();
+                for (double value : values) sum += value;
+            }
+        }
+
+        new Compactor(server, config).compact(now);
+
+        for (int id = 1; id <= 3; id++) {
+            assertEquals(0, server.measurementsCount(id));
+            assertTrue(server.existsPlayerHRMeasurements(id));
+        }
+        assertTrue(server.anyMeasurement());
+        HeartRateAggregate aggregate = server.getRangeAggregate(start, start + 2 * HOUR - 1);
+        assertEquals(count, aggregate.getCount());
+        assertEquals(sum / count, server.getAverageRangeHR(start, start + 2 * HOUR - 1), 1e-9);
+        assertNull(server.getAverageRangeHR(start + 3 * HOUR, now));
+    }
+}
@@ -0,0 +1,113 @@
+package administrator.server;
+
+import beans.HeartRateMeasurements;
+import beans.Player;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SnapshotFileTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void loadsBackThePlayersAndTheirMeasurements() throws IOException {
+        List<Player> players = Arrays.asList(new Player(7, 5007, "localhost", 1, 2), new Player(3, 5003, "10.0.0.3", 9, 0));
+        Map<Integer, PlayerMeasurements> measurements = measurements(7, 3);
+
+        Path snapshot = SnapshotFile.publish(SnapshotFile.write(dir, 42, players, measurements));
+        assertEquals(42, SnapshotFile.lsnOf(snapshot));
+        assertEquals(snapshot, SnapshotFile.latest(dir));
+
+        assertSameState(42, players, measurements, SnapshotFile.loadLatest(dir));
+    }
+
+    @Test
+    void receivesASnapshotShippedAsItIs() throws IOException {
+        List<Player> players = Arrays.asList(new Player(1, 5001, "localhost", 0, 0));
+        Map<Integer, PlayerMeasurements> measurements = measurements(1);
+        Path snapshot = SnapshotFile.publish(SnapshotFile.write(dir.resolve("primary"), 10, players, measurements));
+
+        byte[] bytes = Files.readAllBytes(snapshot);
+        SnapshotFile.Loaded received = SnapshotFile.receive(dir.resolve("replica"), 10,
+                new DataInputStream(new ByteArrayInputStream(bytes)), bytes.length);
+        assertSameState(10, players, measurements, received);
+        assertEquals(10, SnapshotFile.lsnOf(SnapshotFile.latest(dir.resolve("replica"))));
+    }
+
+    @Test
+    void publishingDeletesTheOlderSnapshots() throws IOException {
+        List<Player> players = Arrays.asList(new Player(1, 5001, "localhost", 0, 0));
+        Path older = SnapshotFile.publish(SnapshotFile.write(dir, 5, players, measurements(1)));
+        Path newer = SnapshotFile.publish(SnapshotFile.write(dir, 9, players, measurements(1)));
+        assertFalse(Files.exists(older));
+        assertEquals(newer, SnapshotFile.latest(dir));
+    }
+
+    @Test
+    void hasNoSnapshotInAMissingDirectory() throws IOException {
+        assertNull(SnapshotFile.latest(dir.resolve("missing")));
+        assertNull(SnapshotFile.loadLatest(dir.resolve("missing")));
+    }
+
+    @Test
+    void rejectsAFileOfAnotherFormat() throws IOException {
+        Files.write(dir.resolve(String.format("snapshot-%020d.snap", 1)), new byte[64]);
+        assertThrows(IllegalStateException.class, () -> SnapshotFile.loadLatest(dir));
+    }
+
+    /**
+     * @return the measurements of the given players, enough to be sealed into several chunks.
+     */
+    private static Map<Integer, PlayerMeasurements> measurements(int... ids) {
+        Random random = new Random(3);
+        Map<Integer, PlayerMeasurements> measurements = new LinkedHashMap<>();
+        for (int id : ids) {
+            PlayerMeasurements playerMeasurements = new PlayerMeasurements();
+            for (int batch = 0; batch < 300; batch++) {
+                List<Double> values = new ArrayList<>();
+                for (int i = 0; i < 10; i++) values.add(50 + random.nextInt(100) + random.nextInt(100) / 100.0);
+                playerMeasurements.add(new HeartRateMeasurements(id, 10_000L * batch, values));
+            }
+            playerMeasurements.compact();
+            measurements.put(id, playerMeasurements);
+        }
+        return measurements;
+    }
+
+    private static void assertSameState(long lsn, List<Player> players, Map<Integer, PlayerMeasurements> measurements,
+                                        SnapshotFile.Loaded loaded) {
+        assertEquals(lsn, loaded.getLsn());
+        assertEquals(players.toString(), loaded.getPlayers().toString());
+        assertEquals(measurements.keySet(), loaded.getMeasurements().keySet());
+        for (Map.Entry<Integer, PlayerMeasurements> entry : measurements.entrySet()) {
+            PlayerMeasurements expected = entry.getValue();
+            PlayerMeasurements actual = loaded.getMeasurements().get(entry.getKey());
+            assertEquals(expected.valuesCount(), actual.valuesCount());
+            assertEquals(expected.averageLastN(expected.valuesCount()), actual.averageLastN(actual.valuesCount()), 1e-9);
+            assertEquals(expected.averageLastN(7), actual.averageLastN(7), 1e-9);
+            Aggregate expectedRange = new Aggregate();
+            Aggregate actualRange = new Aggregate();
+            expected.accumulate(123_456, 2_345_678, expectedRange);
+            actual.accumulate(123_456, 2_345_678, actualRange);
+            assertEquals(expectedRange.getCount(), actualRange.getCount());
+            assertEquals(expectedRange.getSum(), actualRange.getSum(), 1e-6);
+        }
+    }
+}
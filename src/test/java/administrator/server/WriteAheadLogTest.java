@@ -0,0 +1,182 @@
+package administrator.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteAheadLogTest {
+    // the header and the LSN and type of a record, before its payload
+    private static final int RECORD_OVERHEAD = 17;
+
+    @TempDir
+    Path dir;
+
+    /**
+     * A record read back from the log.
+     */
+    private static final class Record {
+        private final long lsn;
+        private final byte type;
+        private final byte[] payload;
+
+        private Record(long lsn, byte type, ByteBuffer payload) {
+            this.lsn = lsn;
+            this.type = type;
+            this.payload = new byte[payload.remaining()];
+            payload.get(this.payload);
+        }
+    }
+
+    @Test
+    void replaysTheAppendedRecordsInOrder() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, 4096);
+        assertEquals(0, wal.open((lsn, type, payload) -> {}));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i + 1, wal.append((byte) (i % 3), payload(i, 1 + i % 50)));
+        }
+        wal.awaitDurable(wal.lastLsn());
+        wal.close();
+
+        List<Record> records = new ArrayList<>();
+        WriteAheadLog reopened = new WriteAheadLog(dir, 4096);
+        assertEquals(100, reopened.open((lsn, type, payload) -> records.add(new Record(lsn, type, payload))));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i + 1, records.get(i).lsn);
+            assertEquals(i % 3, records.get(i).type);
+            assertArrayEquals(payload(i, 1 + i % 50), records.get(i).payload);
+        }
+        assertTrue(segments().size() > 1, "the records should span several segments");
+        assertEquals(101, reopened.append((byte) 0, new byte[1]));
+        reopened.close();
+    }
+
+    @Test
+    void discardsATornRecordAtTheEnd() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, 4096);
+        wal.open((lsn, type, payload) -> {});
+        for (int i = 0; i < 10; i++) wal.append((byte) 1, payload(i, 20));
+        wal.awaitDurable(wal.lastLsn());
+        wal.close();
+        // flips a byte in the payload of the last record, as a crash in the middle of its write would leave it
+        try (FileChannel channel = FileChannel.open(segments().get(0), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long position = 9L * (RECORD_OVERHEAD + 20) + RECORD_OVERHEAD + 5;
+            ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, position);
+            b.put(0, (byte) ~b.get(0)).rewind();
+            channel.write(b, position);
+        }
+
+        List<Record> records = new ArrayList<>();
+        WriteAheadLog reopened = new WriteAheadLog(dir, 4096);
+        assertEquals(9, reopened.open((lsn, type, payload) -> records.add(new Record(lsn, type, payload))));
+        assertEquals(9, records.get(8).lsn);
+        assertEquals(10, reopened.append((byte) 1, payload(10, 20)));
+        reopened.awaitDurable(10);
+        reopened.close();
+
+        WriteAheadLog again = new WriteAheadLog(dir, 4096);
+        assertEquals(10, again.open((lsn, type, payload) -> {}));
+        again.close();
+    }
+
+    @Test
+    void rejectsARecordLargerThanASegmentWithoutStoppingTheLog() throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, 1024);
+        wal.open((lsn, type, payload) -> {});
+        assertThrows(IllegalArgumentException.class, () -> wal.append((byte) 1, new byte[wal.maxPayloadSize() + 1]));
+        long lsn = wal.append((byte) 1, new byte[wal.maxPayloadSize()]);
+        assertEquals(1, lsn);
+        wal.awaitDurable(lsn);
+        wal.close();
+    }
+
+    @Test
+    void restoresTheInterruptOfAThreadWaitingForDurability() throws IOException, InterruptedException {
+        WriteAheadLog wal = new WriteAheadLog(dir, 1024);
+        wal.open((lsn, type, payload) -> {});
+        long lsn = wal.append((byte) 1, new byte[10]);
+        List<Boolean> interrupted = new ArrayList<>();
+        // waits for a record that is never appended
+        Thread waiter = new Thread(() -> {
+            try {
+                wal.awaitDurable(lsn + 1);
+            } catch (RuntimeException e) {
+                if (e.getCause() instanceof InterruptedException) interrupted.add(Thread.currentThread().isInterrupted());
+            }
+        });
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING) Thread.sleep(1);
+        waiter.interrupt();
+        waiter.join();
+        assertEquals(1, interrupted.size());
+        assertTrue(interrupted.get(0), "the interrupt of the waiter was lost");
+        wal.awaitDurable(lsn);
+        wal.close();
+    }
+
+    @Test
+    void replacesAnEmptyLastSegment() throws IOException {
+        Files.createDirectories(dir);
+        Files.createFile(dir.resolve(String.format("wal-%020d.log", 1)));
+        WriteAheadLog wal = new WriteAheadLog(dir, 1024);
+        assertEquals(0, wal.open((lsn, type, payload) -> {}));
+        wal.awaitDurable(wal.append((byte) 1, new byte[10]));
+        wal.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(dir, 1024);
+        assertEquals(1, reopened.open((lsn, type, payload) -> {}));
+        reopened.close();
+    }
+
+    @Test
+    void cursorReadsTheRecordsLeftAfterTheTruncation() throws IOException, InterruptedException {
+        WriteAheadLog wal = new WriteAheadLog(dir, 256);
+        wal.open((lsn, type, payload) -> {});
+        for (int i = 0; i < 50; i++) wal.append((byte) 1, payload(i, 30));
+        wal.awaitDurable(wal.lastLsn());
+
+        assertTrue(wal.truncateBefore(30) > 0);
+        long first = wal.firstLsn();
+        assertTrue(first > 1 && first <= 30, "first LSN " + first);
+
+        List<Record> records = new ArrayList<>();
+        try (WriteAheadLog.Cursor cursor = wal.cursor(first)) {
+            cursor.read((lsn, type, payload) -> records.add(new Record(lsn, type, payload)), 0);
+        }
+        assertEquals(50 - first + 1, records.size());
+        for (Record record : records) {
+            assertArrayEquals(payload((int) record.lsn - 1, 30), record.payload);
+        }
+        try (WriteAheadLog.Cursor cursor = wal.cursor(1)) {
+            assertThrows(IOException.class, () -> cursor.read((lsn, type, payload) -> {}, 0));
+        }
+        wal.close();
+    }
+
+    private static byte[] payload(int seed, int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) payload[i] = (byte) (seed * 31 + i);
+        return payload;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+}
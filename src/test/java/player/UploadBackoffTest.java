@@ -0,0 +1,58 @@
+package player;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class UploadBackoffTest {
+
+    @Test
+    void slowsDownWhileTheServerIsSaturatedAndSpeedsUpOnceItAccepts() {
+        UploadBackoff backoff = new UploadBackoff();
+        assertEquals(UploadBackoff.SEND_INTERVAL, backoff.idle());
+        assertEquals(2 * UploadBackoff.SEND_INTERVAL, backoff.saturated(0));
+        assertEquals(4 * UploadBackoff.SEND_INTERVAL, backoff.saturated(0));
+        for (int i = 0; i < 10; i++) backoff.saturated(0);
+        assertEquals(UploadBackoff.MAX_SEND_INTERVAL, backoff.idle());
+
+        long interval = UploadBackoff.MAX_SEND_INTERVAL;
+        while (interval > UploadBackoff.SEND_INTERVAL) {
+            interval = Math.max(UploadBackoff.SEND_INTERVAL, interval / 2);
+            assertEquals(interval, backoff.accepted());
+        }
+        assertEquals(UploadBackoff.SEND_INTERVAL, backoff.accepted());
+    }
+
+    @Test
+    void waitsAtLeastAsLongAsTheServerAsks() {
+        UploadBackoff backoff = new UploadBackoff();
+        assertEquals(45_000, backoff.saturated(UploadBackoff.retryAfter("45")));
+        // a shorter hint does not shorten the doubled interval
+        assertEquals(4 * UploadBackoff.SEND_INTERVAL, backoff.saturated(UploadBackoff.retryAfter("1")));
+    }
+
+    @Test
+    void parsesTheRetryAfterHeaderInSeconds() {
+        assertEquals(3000, UploadBackoff.retryAfter(" 3 "));
+        assertEquals(0, UploadBackoff.retryAfter(null));
+        assertEquals(0, UploadBackoff.retryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+        assertEquals(0, UploadBackoff.retryAfter("-5"));
+    }
+
+    @Test
+    void retriesAFailedUploadSoonerAndBacksOffAtEveryFailure() {
+        UploadBackoff backoff = new UploadBackoff();
+        assertEquals(UploadBackoff.RETRY_INTERVAL, backoff.failed());
+        assertEquals(2 * UploadBackoff.RETRY_INTERVAL, backoff.failed());
+        assertEquals(4 * UploadBackoff.RETRY_INTERVAL, backoff.failed());
+        for (int i = 0; i < 10; i++) backoff.failed();
+        assertEquals(UploadBackoff.MAX_SEND_INTERVAL, backoff.failed());
+        // any answer of the server resets the retries, without changing the send interval
+        assertEquals(UploadBackoff.SEND_INTERVAL, backoff.rejected());
+        assertEquals(UploadBackoff.RETRY_INTERVAL, backoff.failed());
+        backoff.saturated(0);
+        assertEquals(UploadBackoff.RETRY_INTERVAL, backoff.failed());
+        backoff.accepted();
+        assertEquals(UploadBackoff.RETRY_INTERVAL, backoff.failed());
+    }
+}